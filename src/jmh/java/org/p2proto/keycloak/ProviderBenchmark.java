@@ -0,0 +1,256 @@
+package org.p2proto.keycloak;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.benchmark.BenchmarkDatabase;
+import org.p2proto.keycloak.credential.BCryptPasswordHashVerifier;
+import org.p2proto.keycloak.search.UserSearchQuery;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The provider's lookup, search and credential paths against an embedded PostgreSQL holding {@code users} rows.
+ * Each operation runs on a provider created for it, as Keycloak creates one per session, unless the name says
+ * the session cache is hit. In a package of its own so it can reach {@code mapUser}.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=ProviderBenchmark -Pjmh.users=1000000}, as a user other than root (see
+ * {@link BenchmarkDatabase}). {@code isValid} uses BCrypt cost {@code bcryptCost} so the provider's own overhead
+ * stays visible, {@code PasswordHashBenchmark} covers realistic costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final int SAMPLE_SIZE = 10000;
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"DISABLED", "LOCAL"})
+    public String cacheMode;
+
+    @Param({"4"})
+    public int bcryptCost;
+
+    @Param({"true"})
+    public boolean prefetchPasswordHash;
+
+    @Param({"DIRECT"})
+    public String executionMode;
+
+    private BenchmarkDatabase database;
+    private HikariDataSource dataSource;
+    private ComponentModel model;
+    private ComponentResources resources;
+    private KeycloakSession session;
+    private RealmModel realm;
+    private List<String> ids;
+    private ExternalUser sampleUser;
+    private ExternalDatabaseUserStorageProvider sessionProvider;
+    private Map<String, String> searchParams;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        database = BenchmarkDatabase.start(users, new BCryptPasswordHashVerifier(bcryptCost).hash(PASSWORD));
+        dataSource = database.pool();
+
+        model = new ComponentModel();
+        model.setId("benchmark");
+        model.put(ExternalDatabaseConfig.CACHE_MODE, cacheMode);
+        model.put(ExternalDatabaseConfig.NEGATIVE_CACHE_TTL_SECONDS, 0);
+        model.put(ExternalDatabaseConfig.PREFETCH_PASSWORD_HASH, prefetchPasswordHash);
+        model.put(ExternalDatabaseConfig.EXECUTION_MODE, executionMode);
+        resources = new ComponentResources(model, dataSource);
+        session = stub(KeycloakSession.class);
+        realm = stub(RealmModel.class);
+
+        ids = database.sampleUuids(SAMPLE_SIZE).stream()
+                .map(uuid -> "f:" + model.getId() + ":" + uuid)
+                .collect(Collectors.toList());
+        sampleUser = new ExternalUser(ids.get(0).substring(ids.get(0).lastIndexOf(':') + 1),
+                BenchmarkDatabase.username(1), "user1@mail1.example.com", "Jan", "Nowak");
+        searchParams = Map.of(UserModel.SEARCH, "kowalski");
+    }
+
+    @Setup(Level.Iteration)
+    public void openSession() {
+        sessionProvider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        sessionProvider.getUserById(realm, ids.get(0));
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeSession() {
+        sessionProvider.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        resources.close();
+        database.close();
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername() {
+        ExternalDatabaseUserStorageProvider provider = newProvider();
+        try {
+            return provider.getUserByUsername(realm, BenchmarkDatabase.username(randomIndex(users) + 1));
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Benchmark
+    public UserModel getUserById() {
+        ExternalDatabaseUserStorageProvider provider = newProvider();
+        try {
+            return provider.getUserById(realm, ids.get(randomIndex(ids.size())));
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * Id parsing and the per-session cache, no shared cache or database.
+     */
+    @Benchmark
+    public UserModel getUserByIdSessionHit() {
+        return sessionProvider.getUserById(realm, ids.get(0));
+    }
+
+    @Benchmark
+    public UserModel mapUser() {
+        return sessionProvider.mapUser(sampleUser, realm);
+    }
+
+    /**
+     * A search row as Keycloak consumes it: the adapter and its id, which the admin console reads twice.
+     */
+    @Benchmark
+    public int mapUserAndId() {
+        UserModel user = sessionProvider.mapUser(sampleUser, realm);
+        return user.getId().length() + user.getId().length();
+    }
+
+    @Benchmark
+    public String compileSearch() {
+        return resources.getSearchTemplates().sql(UserSearchQuery.compile(searchParams), false, true, false);
+    }
+
+    /**
+     * First page of 20 of an admin console search, fully consumed.
+     */
+    @Benchmark
+    public List<UserModel> searchForUserStream() {
+        ExternalDatabaseUserStorageProvider provider = newProvider();
+        try {
+            return provider.searchForUserStream(realm, searchParams, 0, 20).collect(Collectors.toList());
+        } finally {
+            provider.close();
+        }
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        ExternalDatabaseUserStorageProvider provider = newProvider();
+        try {
+            UserModel user = provider.mapUser(new ExternalUser(null,
+                    BenchmarkDatabase.username(randomIndex(users) + 1), null, null, null), realm);
+            return provider.isValid(realm, user, UserCredentialModel.password(PASSWORD));
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * A password login as Keycloak runs it: lookup by username, then the password check, in one session.
+     * Sampled for percentiles, run with {@code -p prefetchPasswordHash=false,true -p cacheMode=DISABLED}.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public boolean login() {
+        ExternalDatabaseUserStorageProvider provider = newProvider();
+        try {
+            UserModel user = provider.getUserByUsername(realm, BenchmarkDatabase.username(randomIndex(users) + 1));
+            return provider.isValid(realm, user, UserCredentialModel.password(PASSWORD));
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * Logins from far more threads than the pool has connections, as under a login storm. Run with
+     * {@code -p executionMode=DIRECT,QUEUED -p cacheMode=DISABLED}. JMH threads are platform threads, so this
+     * compares queueing in front of the pool with queueing inside it, not virtual with platform request threads.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(64)
+    public boolean concurrentLogins() {
+        return login();
+    }
+
+    private ExternalDatabaseUserStorageProvider newProvider() {
+        return new ExternalDatabaseUserStorageProvider(session, model, resources);
+    }
+
+    private static int randomIndex(int bound) {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+
+    /**
+     * Neither the session nor the realm is used on these paths, so every method answers with a default value.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                default:
+                    Class<?> returnType = method.getReturnType();
+                    if (returnType == boolean.class) {
+                        return false;
+                    }
+                    if (returnType == int.class || returnType == long.class) {
+                        return returnType == int.class ? (Object) 0 : (Object) 0L;
+                    }
+                    return null;
+            }
+        });
+    }
+}
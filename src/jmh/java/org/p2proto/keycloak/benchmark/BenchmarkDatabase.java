@@ -0,0 +1,116 @@
+package org.p2proto.keycloak.benchmark;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Embedded PostgreSQL with {@code platform.users} and {@code platform.user_attributes} shaped like
+ * {@code init.sql} and its migrations, filled with generated users. {@code platform} comes first on the
+ * search path, so the unqualified {@code users} of the search queries resolves to the same table.
+ * <p>
+ * PostgreSQL refuses to start as root, run the benchmarks as another user.
+ */
+public final class BenchmarkDatabase implements AutoCloseable {
+
+    private final EmbeddedPostgres postgres;
+
+    private BenchmarkDatabase(EmbeddedPostgres postgres) {
+        this.postgres = postgres;
+    }
+
+    /**
+     * Usernames are {@code user0000001} to {@code user<count>}, every tenth user is called Kowalski and each
+     * has a {@code department} attribute out of {@code dept0} to {@code dept99}.
+     */
+    public static BenchmarkDatabase start(int users, String passwordHash) throws IOException, SQLException {
+        BenchmarkDatabase database = new BenchmarkDatabase(EmbeddedPostgres.start());
+        try (Connection connection = database.connect(); Statement ddl = connection.createStatement()) {
+            ddl.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+            ddl.execute("CREATE SCHEMA platform");
+            ddl.execute("ALTER DATABASE postgres SET search_path = platform, public");
+            ddl.execute("SET search_path = platform, public");
+            ddl.execute("CREATE TABLE users ("
+                    + " uuid UUID PRIMARY KEY DEFAULT gen_random_uuid(),"
+                    + " username VARCHAR(255) UNIQUE NOT NULL,"
+                    + " email VARCHAR(255) UNIQUE,"
+                    + " first_name VARCHAR(255),"
+                    + " last_name VARCHAR(255),"
+                    + " password_hash VARCHAR(255) NOT NULL,"
+                    + " email_verified BOOLEAN DEFAULT FALSE,"
+                    + " enabled BOOLEAN DEFAULT TRUE,"
+                    + " updated_at TIMESTAMPTZ NOT NULL DEFAULT now(),"
+                    + " search_text TEXT GENERATED ALWAYS AS (lower(coalesce(username, '') || ' ' || coalesce(email, '')"
+                    + "  || ' ' || coalesce(first_name, '') || ' ' || coalesce(last_name, ''))) STORED)");
+            ddl.execute("CREATE TABLE user_attributes ("
+                    + " id UUID PRIMARY KEY DEFAULT gen_random_uuid(),"
+                    + " user_id UUID NOT NULL REFERENCES users(uuid) ON DELETE CASCADE,"
+                    + " name VARCHAR(255) NOT NULL,"
+                    + " value VARCHAR(255),"
+                    + " UNIQUE (user_id, name))");
+            ddl.execute("INSERT INTO users (username, email, first_name, last_name, password_hash)"
+                    + " SELECT 'user' || lpad(i::text, 7, '0'), 'user' || i || '@mail' || (i % 97) || '.example.com',"
+                    + " (ARRAY['Anna','Jan','Maria','Piotr','Kasia','Tomasz','Ewa','Marek','Ola','Adam'])[i % 10 + 1],"
+                    + " (ARRAY['Nowak','Kowalski','Wisniewski','Wojcik','Kowalczyk','Kaminski','Lewandowski',"
+                    + "   'Zielinski','Szymanski','Wozniak'])[i / 10 % 10 + 1],"
+                    + " '" + passwordHash + "'"
+                    + " FROM generate_series(1, " + users + ") AS i");
+            ddl.execute("INSERT INTO user_attributes (user_id, name, value)"
+                    + " SELECT uuid, 'department', 'dept' || (abs(hashtext(username)) % 100) FROM users");
+            ddl.execute("CREATE INDEX idx_users_updated_at ON users(updated_at)");
+            ddl.execute("CREATE INDEX idx_users_search_text_trgm ON users USING gin (search_text gin_trgm_ops)");
+            ddl.execute("CREATE INDEX idx_user_attributes_user_id ON user_attributes(user_id)");
+            ddl.execute("CREATE INDEX idx_user_attributes_name_value ON user_attributes(name, value)");
+            ddl.execute("CREATE INDEX idx_user_attributes_value ON user_attributes(value)");
+            ddl.execute("VACUUM ANALYZE");
+        } catch (SQLException | RuntimeException e) {
+            database.close();
+            throw e;
+        }
+        return database;
+    }
+
+    public static String username(int index) {
+        return String.format("user%07d", index);
+    }
+
+    public Connection connect() throws SQLException {
+        return postgres.getPostgresDatabase().getConnection();
+    }
+
+    /**
+     * Pool configured like the one of the provider factory.
+     */
+    public HikariDataSource pool() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+        hikariConfig.setMaximumPoolSize(10);
+        hikariConfig.setMinimumIdle(2);
+        hikariConfig.setPoolName("BenchmarkUserStoragePool");
+        return new HikariDataSource(hikariConfig);
+    }
+
+    public List<String> sampleUuids(int limit) throws SQLException {
+        List<String> uuids = new ArrayList<>(limit);
+        try (Connection connection = connect(); Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT uuid FROM platform.users ORDER BY random() LIMIT " + limit)) {
+            while (rs.next()) {
+                uuids.add(rs.getString(1));
+            }
+        }
+        return uuids;
+    }
+
+    @Override
+    public void close() throws IOException {
+        postgres.close();
+    }
+}
@@ -0,0 +1,138 @@
+package org.p2proto.keycloak.benchmark;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.metrics.Operation;
+import org.p2proto.keycloak.metrics.OperationMetrics;
+import org.p2proto.keycloak.metrics.ProviderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the provider's logging. {@code infoSync} and {@code infoAsync} are the INFO line every lookup
+ * used to write, through a synchronous appender and through an asynchronous one; the output is discarded, so
+ * real I/O would only add to them. {@code traceDisabled} is what a lookup pays for it now. {@code record} and
+ * {@code recordWithSlowCallLog} are the metrics update every call makes, without and with the slow call
+ * threshold check.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=LoggingBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingBenchmark {
+
+    private static final String PATTERN = "%d{yyyy-MM-dd HH:mm:ss.SSS} %-5level [%logger] (%thread) %msg%n";
+
+    private final String[] ids = new String[1024];
+    private Logger syncLogger;
+    private Logger asyncLogger;
+    private Logger quietLogger;
+    private OperationMetrics lookups;
+    private OperationMetrics lookupsWithSlowCallLog;
+    private AsyncAppender async;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "f:component:" + UUID.randomUUID();
+        }
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+
+        OutputStreamAppender<ILoggingEvent> discard = discardingAppender(context);
+        async = new AsyncAppender();
+        async.setContext(context);
+        async.setQueueSize(16384);
+        async.setNeverBlock(true);
+        async.addAppender(discardingAppender(context));
+        async.start();
+
+        syncLogger = logger(context, "bench.sync", Level.INFO, discard);
+        asyncLogger = logger(context, "bench.async", Level.INFO, async);
+        quietLogger = logger(context, "bench.quiet", Level.INFO, discard);
+
+        lookups = new ProviderMetrics().get(Operation.GET_USER_BY_ID);
+        ProviderMetrics metrics = new ProviderMetrics();
+        metrics.logSlowCalls("component", 1000);
+        lookupsWithSlowCallLog = metrics.get(Operation.GET_USER_BY_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        async.stop();
+    }
+
+    @Benchmark
+    public void infoSync() {
+        syncLogger.info("getUserById, id = {}", nextId());
+    }
+
+    @Benchmark
+    public void infoAsync() {
+        asyncLogger.info("getUserById, id = {}", nextId());
+    }
+
+    @Benchmark
+    public void traceDisabled() {
+        quietLogger.trace("getUserById, id = {}", nextId());
+    }
+
+    @Benchmark
+    public void record() {
+        lookups.record(System.nanoTime(), nextId());
+    }
+
+    @Benchmark
+    public void recordWithSlowCallLog() {
+        lookupsWithSlowCallLog.record(System.nanoTime(), nextId());
+    }
+
+    private String nextId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    private static OutputStreamAppender<ILoggingEvent> discardingAppender(LoggerContext context) {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern(PATTERN);
+        encoder.start();
+        OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
+        appender.setContext(context);
+        appender.setEncoder(encoder);
+        appender.setOutputStream(OutputStream.nullOutputStream());
+        appender.start();
+        return appender;
+    }
+
+    private static Logger logger(LoggerContext context, String name, Level level, Appender<ILoggingEvent> appender) {
+        ch.qos.logback.classic.Logger logger = context.getLogger(name);
+        logger.setLevel(level);
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        return logger;
+    }
+}
@@ -0,0 +1,75 @@
+package org.p2proto.keycloak.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.credential.LoginThrottle;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the login throttle check on every core at once, to set against the milliseconds of the password check
+ * it guards. {@code spread} draws from many usernames and addresses as regular traffic does, {@code hot} sends
+ * every thread to one username and address, as a brute-force run does, so all threads compete for the same slots.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=LoginThrottleBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class LoginThrottleBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    @Param({"spread", "hot"})
+    public String keys;
+
+    private LoginThrottle throttle;
+    private String[] usernames;
+    private String[] addresses;
+
+    @Setup
+    public void setUp() {
+        // budgets large enough that the benchmark measures admitted attempts, the common case
+        throttle = new LoginThrottle(1000, Integer.MAX_VALUE / 2, 1000, Integer.MAX_VALUE / 2,
+                LoginThrottle.DEFAULT_SLOTS);
+        int count = "hot".equals(keys) ? 1 : KEYS;
+        usernames = new String[count];
+        addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            usernames[i] = BenchmarkDatabase.username(i + 1);
+            addresses[i] = "10." + (i >>> 16 & 0xff) + "." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+            usernames[i].hashCode();
+            addresses[i].hashCode();
+        }
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        int i = ThreadLocalRandom.current().nextInt(usernames.length);
+        return throttle.tryAcquire(usernames[i], addresses[i]);
+    }
+
+    /**
+     * The key selection alone, subtracted from {@link #tryAcquire()} it leaves the throttle's share.
+     */
+    @Benchmark
+    public int baseline() {
+        int i = ThreadLocalRandom.current().nextInt(usernames.length);
+        return usernames[i].length() + addresses[i].length();
+    }
+}
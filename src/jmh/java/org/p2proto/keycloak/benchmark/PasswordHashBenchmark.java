@@ -0,0 +1,98 @@
+package org.p2proto.keycloak.benchmark;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.credential.Argon2PasswordHashVerifier;
+import org.p2proto.keycloak.credential.BCryptPasswordHashVerifier;
+import org.p2proto.keycloak.credential.PasswordHashVerifier;
+import org.p2proto.keycloak.credential.Pbkdf2PasswordHashVerifier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one password verification per engine, the number to tune {@code passwordHashCost} against.
+ * {@code jbcrypt} is the library the provider used before the verifiers were introduced.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=PasswordHashBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    /**
+     * Engine and cost, cost meaning log2 rounds for BCrypt and iterations otherwise.
+     */
+    @Param({"jbcrypt:10", "bcrypt:10", "bcrypt:12", "argon2id:2", "pbkdf2-sha256:600000"})
+    public String engine;
+
+    private PasswordHashVerifier verifier;
+    private String hash;
+
+    @Setup
+    public void setUp() {
+        String[] parts = engine.split(":");
+        int cost = Integer.parseInt(parts[1]);
+        switch (parts[0]) {
+            case "jbcrypt" -> verifier = new JBCryptVerifier(cost);
+            case BCryptPasswordHashVerifier.ALGORITHM -> verifier = new BCryptPasswordHashVerifier(cost);
+            case Argon2PasswordHashVerifier.ALGORITHM -> verifier = new Argon2PasswordHashVerifier(cost,
+                    Argon2PasswordHashVerifier.DEFAULT_MEMORY_KB, Argon2PasswordHashVerifier.DEFAULT_PARALLELISM);
+            default -> verifier = new Pbkdf2PasswordHashVerifier(parts[0], cost);
+        }
+        hash = verifier.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return verifier.verify(PASSWORD, hash);
+    }
+
+    private static final class JBCryptVerifier implements PasswordHashVerifier {
+        private final int cost;
+
+        private JBCryptVerifier(int cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "jbcrypt";
+        }
+
+        @Override
+        public boolean supports(String storedHash) {
+            return storedHash.startsWith("$2a$");
+        }
+
+        @Override
+        public boolean verify(String password, String storedHash) {
+            return BCrypt.checkpw(password, storedHash);
+        }
+
+        @Override
+        public String hash(String password) {
+            return BCrypt.hashpw(password, BCrypt.gensalt(cost));
+        }
+
+        @Override
+        public boolean needsRehash(String storedHash) {
+            return false;
+        }
+    }
+}
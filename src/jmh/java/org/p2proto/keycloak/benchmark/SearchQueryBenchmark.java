@@ -0,0 +1,73 @@
+package org.p2proto.keycloak.benchmark;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.p2proto.keycloak.search.SearchBackend;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+import org.p2proto.keycloak.search.UserSearchQuery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning search parameters into statement text and bind values, with the SQL rendered on every call versus
+ * taken from the {@link SearchTemplateCache}.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=SearchQueryBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchQueryBenchmark {
+
+    /**
+     * {@code search}: two free-text terms. {@code filters}: username, enabled and two attributes.
+     */
+    @Param({"search", "filters"})
+    public String shape;
+
+    private final SearchTemplateCache templates = new SearchTemplateCache();
+    private Map<String, String> params;
+
+    @Setup
+    public void setUp() {
+        params = new LinkedHashMap<>();
+        if ("search".equals(shape)) {
+            params.put(UserModel.SEARCH, "anna kowalski");
+        } else {
+            params.put(UserModel.USERNAME, "user00001");
+            params.put(UserModel.ENABLED, "true");
+            params.put("department", "dept7");
+            params.put("region", "emea");
+        }
+    }
+
+    @Benchmark
+    public void rendered(Blackhole blackhole) {
+        UserSearchQuery query = UserSearchQuery.compile(params, SearchBackend.LIKE);
+        blackhole.consume(query.getParameters());
+        blackhole.consume(query.toSql(true, true, false));
+    }
+
+    @Benchmark
+    public void templated(Blackhole blackhole) {
+        UserSearchQuery query = UserSearchQuery.compile(params, SearchBackend.LIKE);
+        blackhole.consume(query.getParameters());
+        blackhole.consume(templates.sql(query, true, true, false));
+    }
+}
@@ -0,0 +1,124 @@
+package org.p2proto.keycloak.benchmark;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.search.SearchBackend;
+import org.p2proto.keycloak.search.UserSearchQuery;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One page of an admin console search ({@code search} parameter, 20 rows ordered by username) against an
+ * embedded PostgreSQL holding {@code users} rows, per search backend. Terms: {@code 77777} matches a few hundred
+ * usernames, {@code kowalski} every tenth user and {@code nobody} no one. The admin console also asks for the
+ * number of matches, {@code countMatches}, and the unfiltered total, {@code countAll} against {@code estimateAll}.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=UserSearchBenchmark}, as a user other than root (see {@link BenchmarkDatabase}).
+ * Setup loads the table, which takes about a minute per parameter combination.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserSearchBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1000000"})
+    public int users;
+
+    @Param({"LIKE", "TRIGRAM"})
+    public SearchBackend backend;
+
+    @Param({"77777", "kowalski", "nobody"})
+    public String term;
+
+    private BenchmarkDatabase database;
+    private Connection connection;
+    private PreparedStatement statement;
+    private PreparedStatement countStatement;
+    private PreparedStatement countAllStatement;
+    private PreparedStatement estimateAllStatement;
+    private List<Object> parameters;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        database = BenchmarkDatabase.start(users, "$2a$10$F.RKkkj5BaSipxxpAQnx2.dogjoEsBNvgSLAwvcgkvQcUYThxke52");
+        connection = database.connect();
+
+        UserSearchQuery query = UserSearchQuery.compile(Map.of(UserModel.SEARCH, term), backend);
+        statement = connection.prepareStatement("SELECT uuid, username, email, first_name, last_name FROM users"
+                + query.getWhere() + " ORDER BY username COLLATE \"C\" ASC LIMIT ?");
+        parameters = query.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setObject(i + 1, parameters.get(i));
+        }
+        statement.setInt(parameters.size() + 1, PAGE_SIZE);
+        countStatement = connection.prepareStatement(query.toCountSql());
+        for (int i = 0; i < parameters.size(); i++) {
+            countStatement.setObject(i + 1, parameters.get(i));
+        }
+        countAllStatement = connection.prepareStatement("SELECT count(*) FROM users");
+        estimateAllStatement = connection.prepareStatement(
+                "SELECT reltuples::bigint FROM pg_class WHERE oid = 'users'::regclass");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, SQLException {
+        connection.close();
+        database.close();
+    }
+
+    @Benchmark
+    public int searchPage() throws SQLException {
+        int rows = 0;
+        try (ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public long countMatches() throws SQLException {
+        return single(countStatement);
+    }
+
+    @Benchmark
+    public long countAll() throws SQLException {
+        return single(countAllStatement);
+    }
+
+    @Benchmark
+    public long estimateAll() throws SQLException {
+        return single(estimateAllStatement);
+    }
+
+    private static long single(PreparedStatement statement) throws SQLException {
+        try (ResultSet rs = statement.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.p2proto.keycloak.benchmark;
+
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.p2proto.keycloak.ExternalUser;
+import org.p2proto.keycloak.cache.UserSnapshot;
+import org.p2proto.keycloak.search.UserSearchQuery;
+import org.p2proto.keycloak.sync.SyncedUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and one page of an admin console search served from a {@link UserSnapshot}, with the rows
+ * {@link BenchmarkDatabase} generates, to set against {@link UserSearchBenchmark} and the round trip of a lookup.
+ * The snapshot is built in memory, no database is started.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=UserSnapshotBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserSnapshotBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserSnapshotBenchmark.class);
+
+    private static final int PAGE_SIZE = 20;
+    private static final String[] FIRST_NAMES =
+            {"Anna", "Jan", "Maria", "Piotr", "Kasia", "Tomasz", "Ewa", "Marek", "Ola", "Adam"};
+    private static final String[] LAST_NAMES = {"Nowak", "Kowalski", "Wisniewski", "Wojcik", "Kowalczyk",
+            "Kaminski", "Lewandowski", "Zielinski", "Szymanski", "Wozniak"};
+
+    @Param({"300000"})
+    public int users;
+
+    @Param({"77777", "kowalski", "nobody"})
+    public String term;
+
+    private UserSnapshot snapshot;
+    private String[] uuids;
+    private UserSearchQuery.Matcher matcher;
+
+    @Setup
+    public void setUp() {
+        List<SyncedUser> rows = new ArrayList<>(users);
+        uuids = new String[users];
+        for (int i = 1; i <= users; i++) {
+            uuids[i - 1] = UUID.randomUUID().toString();
+            rows.add(new SyncedUser(uuids[i - 1], BenchmarkDatabase.username(i),
+                    "user" + i + "@mail" + (i % 97) + ".example.com", FIRST_NAMES[i % 10], LAST_NAMES[i / 10 % 10],
+                    true, false));
+        }
+        snapshot = UserSnapshot.of(rows);
+        matcher = UserSearchQuery.compile(Map.of(UserModel.SEARCH, term)).matcher();
+        logger.info("{} users in {} KiB", snapshot.size(), snapshot.getSizeInBytes() / 1024);
+    }
+
+    @Benchmark
+    public ExternalUser getById() {
+        return snapshot.getById(uuids[ThreadLocalRandom.current().nextInt(users)]);
+    }
+
+    @Benchmark
+    public ExternalUser getByUsername() {
+        return snapshot.getByUsername(BenchmarkDatabase.username(ThreadLocalRandom.current().nextInt(users) + 1));
+    }
+
+    @Benchmark
+    public List<ExternalUser> searchPage() {
+        return snapshot.search(matcher, 0, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,65 @@
+package org.p2proto.keycloak.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.p2proto.keycloak.sync.UserSyncReader;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading side of a full user sync: the whole {@code users} table streamed in batches through a cursor, with a
+ * handler that only consumes the batches. Users per second is {@code users} divided by the score; the import
+ * into Keycloak's own database comes on top and depends on that database.
+ * <p>
+ * {@code gradlew jmh -Pjmh.includes=UserSyncBenchmark}, as a user other than root (see {@link BenchmarkDatabase}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserSyncBenchmark {
+
+    @Param({"1000000"})
+    public int users;
+
+    @Param({"1000", "10000"})
+    public int batchSize;
+
+    private BenchmarkDatabase database;
+    private HikariDataSource dataSource;
+    private UserSyncReader reader;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        database = BenchmarkDatabase.start(users, "$2a$10$F.RKkkj5BaSipxxpAQnx2.dogjoEsBNvgSLAwvcgkvQcUYThxke52");
+        dataSource = database.pool();
+        reader = new UserSyncReader(dataSource, batchSize, "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dataSource.close();
+        database.close();
+    }
+
+    @Benchmark
+    public long readAll(Blackhole blackhole) throws SQLException {
+        return reader.readAll(blackhole::consume);
+    }
+}
@@ -0,0 +1,48 @@
+package org.p2proto.keycloak;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users of one lookup or search page. Their attributes are read together, with one query, the first time
+ * any of them is asked for its attributes; users that are never asked cost nothing. Bound to a session like the
+ * adapters that share it.
+ */
+final class AttributeBatch {
+
+    @FunctionalInterface
+    interface Loader {
+        /**
+         * @return the attributes by uuid, users without any may be left out; {@code null} if they could not be read
+         */
+        Map<String, UserAttributes> load(Collection<String> uuids);
+    }
+
+    private final Collection<String> uuids;
+    private final Loader loader;
+    private Map<String, UserAttributes> loaded;
+
+    AttributeBatch(Collection<String> uuids, Loader loader) {
+        this.uuids = uuids;
+        this.loader = loader;
+    }
+
+    static AttributeBatch single(String uuid, Loader loader) {
+        return new AttributeBatch(List.of(uuid), loader);
+    }
+
+    /**
+     * @return the attributes of a user of this batch, {@code null} if they could not be read and should be asked
+     * for again later
+     */
+    UserAttributes get(String uuid) {
+        if (loaded == null) {
+            loaded = loader.load(uuids);
+            if (loaded == null) {
+                return null;
+            }
+        }
+        return loaded.getOrDefault(uuid, UserAttributes.EMPTY);
+    }
+}
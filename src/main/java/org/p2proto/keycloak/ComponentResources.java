@@ -0,0 +1,336 @@
+package org.p2proto.keycloak;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.component.ComponentModel;
+import org.p2proto.keycloak.cache.CacheMode;
+import org.p2proto.keycloak.cache.CacheStatistics;
+import org.p2proto.keycloak.cache.LookupCoalescer;
+import org.p2proto.keycloak.cache.NegativeLookupCache;
+import org.p2proto.keycloak.cache.UserCache;
+import org.p2proto.keycloak.cache.UserCacheInvalidationEvent;
+import org.p2proto.keycloak.cache.UserMembershipFilter;
+import org.p2proto.keycloak.cache.UserSnapshotLoader;
+import org.p2proto.keycloak.credential.LoginThrottle;
+import org.p2proto.keycloak.credential.PasswordHashing;
+import org.p2proto.keycloak.credential.PasswordVerificationExecutor;
+import org.p2proto.keycloak.jdbc.BlockingBridge;
+import org.p2proto.keycloak.jdbc.CircuitBreaker;
+import org.p2proto.keycloak.jdbc.ReplicaRouter;
+import org.p2proto.keycloak.jdbc.SlowQueryTrace;
+import org.p2proto.keycloak.metrics.ProviderMetrics;
+import org.p2proto.keycloak.search.KeysetBookmarks;
+import org.p2proto.keycloak.search.SearchBackend;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+import org.p2proto.keycloak.search.UserCountCache;
+import org.p2proto.keycloak.sync.UserSyncReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * State shared by all provider instances of one component (one configured "User federation" entry).
+ * The factory creates it on first use and drops it when the component is updated or removed;
+ * the connection pool passed in is owned by it and closed with it.
+ */
+public class ComponentResources implements AutoCloseable {
+
+    private final String componentId;
+    private final String realmId;
+    private final Map<String, List<String>> settings;
+    private final ExternalDatabaseConfig config;
+    private final HikariDataSource dataSource;
+    private final ReplicaRouter router;
+    private final BlockingBridge blockingBridge;
+    private final CircuitBreaker circuitBreaker;
+    private final CacheStatistics cacheStatistics;
+    private final UserCache userCache;
+    private final PasswordVerificationExecutor passwordVerifier;
+    private final PasswordHashing passwordHashing;
+    private final LoginThrottle loginThrottle;
+    private final NegativeLookupCache negativeLookupCache;
+    private final UserMembershipFilter membershipFilter;
+    private final UserSnapshotLoader userSnapshot;
+    private final KeysetBookmarks keysetBookmarks = new KeysetBookmarks();
+    private final UserCountCache userCounts;
+    private final SlowQueryTrace slowQueries;
+    private final LookupCoalescer<List<String>, ExternalUser> lookupCoalescer = new LookupCoalescer<>();
+    private final SearchTemplateCache searchTemplates = new SearchTemplateCache();
+    private final ProviderMetrics metrics = new ProviderMetrics();
+    private volatile SearchBackend searchBackend;
+
+    public ComponentResources(ComponentModel model, HikariDataSource dataSource) {
+        this(model, dataSource, PasswordVerificationExecutor.inline(), null);
+    }
+
+    /**
+     * @param scheduler runs background maintenance such as filter refreshes, {@code null} disables it
+     */
+    public ComponentResources(ComponentModel model, HikariDataSource dataSource,
+                              PasswordVerificationExecutor passwordVerifier, ScheduledExecutorService scheduler) {
+        this.componentId = model.getId();
+        this.realmId = model.getParentId();
+        this.settings = ExternalDatabaseConfig.settings(model);
+        this.config = ExternalDatabaseConfig.from(model);
+        this.searchBackend = config.getSearchBackend();
+        this.dataSource = dataSource;
+        this.router = createRouter(dataSource, scheduler);
+        int connections = config.getPoolMaxSize() + router.getReplicaCount() * config.getReplicaPoolSize();
+        if (config.getExecutionMode() == BlockingBridge.Mode.QUEUED) {
+            // one permit per connection reads can be served from, waiting for one takes as long as the pool would
+            this.blockingBridge = BlockingBridge.create(BlockingBridge.Mode.QUEUED, connections,
+                    dataSource.getConnectionTimeout());
+        } else {
+            this.blockingBridge = BlockingBridge.direct();
+        }
+        // a healthy database may have as many calls queued for a connection as it has connections
+        this.circuitBreaker = new CircuitBreaker(componentId, config.getCircuitBreakerFailures(),
+                config.getCircuitBreakerOpenSeconds(), 2 * connections);
+        this.cacheStatistics = new CacheStatistics();
+        this.userCache = new UserCache(config.getCacheMode(), config.getCacheMaxEntries(),
+                config.getCacheTtlSeconds(), config.getCacheStaleSeconds(), cacheStatistics);
+        this.passwordVerifier = passwordVerifier;
+        this.passwordHashing = PasswordHashing.create(config.getPasswordHashAlgorithm(),
+                config.getPasswordHashCost(), config.isRehashOnLogin());
+        this.loginThrottle = new LoginThrottle(config.getThrottleUsernameAttempts(),
+                config.getThrottleUsernamePerMinute(), config.getThrottleAddressAttempts(),
+                config.getThrottleAddressPerMinute(), LoginThrottle.DEFAULT_SLOTS);
+        this.negativeLookupCache = new NegativeLookupCache(
+                config.getCacheMode() == CacheMode.DISABLED ? 0 : config.getCacheMaxEntries(),
+                config.getNegativeCacheTtlSeconds());
+        this.userCounts = new UserCountCache(config.getCountCacheSeconds());
+        metrics.logSlowCalls(componentId, config.getSlowCallThresholdMillis());
+        this.slowQueries = new SlowQueryTrace(componentId, config.getSlowQueryThresholdMillis(), router,
+                config.isSlowQueryExplain() ? scheduler : null);
+        if (config.isMembershipFilterEnabled() && scheduler != null) {
+            this.membershipFilter = new UserMembershipFilter(dataSource, config.getMembershipFilterFalsePositiveRate(),
+                    config.getMembershipFilterMaxMb() * 1024L * 1024L, config.getMembershipFilterRefreshSeconds());
+            this.membershipFilter.start(scheduler);
+        } else {
+            this.membershipFilter = null;
+        }
+        if (config.isUserSnapshotEnabled() && scheduler != null) {
+            this.userSnapshot = new UserSnapshotLoader(
+                    new UserSyncReader(dataSource, 5000, "user snapshot of " + componentId),
+                    config.getUserSnapshotRefreshSeconds());
+            this.userSnapshot.start(scheduler);
+        } else {
+            this.userSnapshot = null;
+        }
+    }
+
+    private ReplicaRouter createRouter(HikariDataSource primary, ScheduledExecutorService scheduler) {
+        List<String> urls = config.getReplicaUrls();
+        if (urls.isEmpty()) {
+            return ReplicaRouter.primaryOnly(primary);
+        }
+        List<HikariDataSource> replicas = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            HikariConfig hikariConfig = new HikariConfig();
+            hikariConfig.setJdbcUrl(urls.get(i));
+            hikariConfig.setUsername(primary.getUsername());
+            hikariConfig.setPassword(primary.getPassword());
+            hikariConfig.setDataSourceProperties(primary.getDataSourceProperties());
+            hikariConfig.setMaximumPoolSize(config.getReplicaPoolSize());
+            hikariConfig.setMinimumIdle(1);
+            hikariConfig.setLeakDetectionThreshold(primary.getLeakDetectionThreshold());
+            hikariConfig.setIdleTimeout(30000);
+            // a replica that is down should fail over quickly instead of holding up the login
+            hikariConfig.setConnectionTimeout(2000);
+            hikariConfig.setInitializationFailTimeout(-1);
+            hikariConfig.setReadOnly(true);
+            hikariConfig.setPoolName("KeycloakUserStorageReplica-" + componentId + "-" + i);
+            ProviderMetrics.configurePool(hikariConfig);
+            replicas.add(new HikariDataSource(hikariConfig));
+        }
+        ReplicaRouter created = new ReplicaRouter(primary, replicas, config.getReplicaMaxLagSeconds());
+        if (scheduler != null) {
+            created.start(scheduler, config.getReplicaHealthCheckSeconds());
+        }
+        return created;
+    }
+
+    /**
+     * Components can be edited on another cluster node, in which case {@code onUpdate} never runs here. Only the
+     * provider's own settings count, Keycloak's sync bookkeeping changes after every sync run.
+     */
+    public boolean isStale(ComponentModel model) {
+        return !settings.equals(ExternalDatabaseConfig.settings(model));
+    }
+
+    public String getComponentId() {
+        return componentId;
+    }
+
+    /**
+     * The realm the component belongs to, its parent.
+     */
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public ExternalDatabaseConfig getConfig() {
+        return config;
+    }
+
+    public HikariDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Routes reads to the replicas of this component and writes to {@link #getDataSource()}.
+     */
+    public ReplicaRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Runs the blocking queries of this component in the configured {@link ExternalDatabaseConfig#EXECUTION_MODE}.
+     */
+    public BlockingBridge getBlockingBridge() {
+        return blockingBridge;
+    }
+
+    /**
+     * Fails the database calls of this component fast while its database is degraded.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public CacheStatistics getCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Shared by all components, owned by the factory.
+     */
+    public PasswordVerificationExecutor getPasswordVerifier() {
+        return passwordVerifier;
+    }
+
+    public PasswordHashing getPasswordHashing() {
+        return passwordHashing;
+    }
+
+    public LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    public NegativeLookupCache getNegativeLookupCache() {
+        return negativeLookupCache;
+    }
+
+    /**
+     * @return the membership filter, or {@code null} when it is not enabled for this component
+     */
+    public UserMembershipFilter getMembershipFilter() {
+        return membershipFilter;
+    }
+
+    /**
+     * @return the in-memory copy of the users table, or {@code null} when it is not enabled for this component
+     */
+    public UserSnapshotLoader getUserSnapshot() {
+        return userSnapshot;
+    }
+
+    public KeysetBookmarks getKeysetBookmarks() {
+        return keysetBookmarks;
+    }
+
+    public UserCountCache getUserCounts() {
+        return userCounts;
+    }
+
+    public SlowQueryTrace getSlowQueries() {
+        return slowQueries;
+    }
+
+    public SearchTemplateCache getSearchTemplates() {
+        return searchTemplates;
+    }
+
+    public ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes the metrics of this component over JMX and Micrometer until it is closed.
+     */
+    public void publishMetrics() {
+        metrics.register(componentId, cacheStatistics, searchTemplates, router, loginThrottle, slowQueries,
+                circuitBreaker);
+    }
+
+    /**
+     * Drops users changed in the database from the caches of this component.
+     *
+     * @param uuids       the changed users, {@code null} drops all of them
+     * @param keysChanged users were added or updated, so usernames and emails cached or filtered as absent may
+     *                    exist now
+     * @see org.p2proto.keycloak.cache.UserChangeListener
+     */
+    public void applyUserChanges(Collection<String> uuids, boolean keysChanged) {
+        if (uuids == null) {
+            userCache.invalidateAll();
+            if (userSnapshot != null) {
+                userSnapshot.apply(UserCacheInvalidationEvent.all(componentId));
+            }
+        } else {
+            for (String uuid : uuids) {
+                userCache.invalidate(uuid);
+                if (userSnapshot != null) {
+                    userSnapshot.apply(UserCacheInvalidationEvent.byId(componentId, uuid));
+                }
+            }
+        }
+        userCounts.invalidateAll();
+        if (keysChanged || uuids == null) {
+            negativeLookupCache.invalidateAll();
+            if (membershipFilter != null) {
+                membershipFilter.refreshNow();
+            }
+        }
+    }
+
+    /**
+     * Shares single-user queries between concurrent sessions, keyed by SQL and value.
+     */
+    public LookupCoalescer<List<String>, ExternalUser> getLookupCoalescer() {
+        return lookupCoalescer;
+    }
+
+    /**
+     * The configured search backend, or {@link SearchBackend#LIKE} once the configured one turned out to be
+     * unusable on this database.
+     */
+    public SearchBackend getSearchBackend() {
+        return searchBackend;
+    }
+
+    public void fallBackToLikeSearch() {
+        searchBackend = SearchBackend.LIKE;
+    }
+
+    @Override
+    public void close() {
+        metrics.close();
+        router.close();
+        blockingBridge.close();
+        if (membershipFilter != null) {
+            membershipFilter.close();
+        }
+        if (userSnapshot != null) {
+            userSnapshot.close();
+        }
+        dataSource.close();
+    }
+}
@@ -0,0 +1,853 @@
+package org.p2proto.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.p2proto.keycloak.cache.CacheMode;
+import org.p2proto.keycloak.credential.Argon2PasswordHashVerifier;
+import org.p2proto.keycloak.credential.BCryptPasswordHashVerifier;
+import org.p2proto.keycloak.credential.Pbkdf2PasswordHashVerifier;
+import org.p2proto.keycloak.jdbc.BlockingBridge;
+import org.p2proto.keycloak.search.CountMode;
+import org.p2proto.keycloak.search.SearchBackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Per-component settings of the provider, as entered on the "User federation" page of the admin console.
+ * Values that are missing or can't be parsed fall back to the defaults below.
+ */
+public final class ExternalDatabaseConfig {
+
+    public static final String CACHE_MODE = "cacheMode";
+    public static final String CACHE_MAX_ENTRIES = "cacheMaxEntries";
+    public static final String CACHE_TTL_SECONDS = "cacheTtlSeconds";
+    public static final String CACHE_STALE_SECONDS = "cacheStaleSeconds";
+    public static final String PASSWORD_HASH_ALGORITHM = "passwordHashAlgorithm";
+    public static final String PASSWORD_HASH_COST = "passwordHashCost";
+    public static final String REHASH_ON_LOGIN = "rehashOnLogin";
+    public static final String PREFETCH_PASSWORD_HASH = "prefetchPasswordHash";
+    public static final String THROTTLE_USERNAME_ATTEMPTS = "throttleUsernameAttempts";
+    public static final String THROTTLE_USERNAME_PER_MINUTE = "throttleUsernamePerMinute";
+    public static final String THROTTLE_ADDRESS_ATTEMPTS = "throttleAddressAttempts";
+    public static final String THROTTLE_ADDRESS_PER_MINUTE = "throttleAddressPerMinute";
+    public static final String NEGATIVE_CACHE_TTL_SECONDS = "negativeCacheTtlSeconds";
+    public static final String MEMBERSHIP_FILTER_ENABLED = "membershipFilterEnabled";
+    public static final String MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE = "membershipFilterFalsePositiveRate";
+    public static final String MEMBERSHIP_FILTER_MAX_MB = "membershipFilterMaxMb";
+    public static final String MEMBERSHIP_FILTER_REFRESH_SECONDS = "membershipFilterRefreshSeconds";
+    public static final String USER_SNAPSHOT_ENABLED = "userSnapshotEnabled";
+    public static final String USER_SNAPSHOT_REFRESH_SECONDS = "userSnapshotRefreshSeconds";
+    public static final String SEARCH_BACKEND = "searchBackend";
+    public static final String COUNT_MODE = "countMode";
+    public static final String COUNT_CACHE_SECONDS = "countCacheSeconds";
+    public static final String GROUP_ATTRIBUTE = "groupAttribute";
+    public static final String POOL_MAX_SIZE = "poolMaxSize";
+    public static final String POOL_MIN_IDLE = "poolMinIdle";
+    public static final String EXECUTION_MODE = "executionMode";
+    public static final String FETCH_SIZE = "fetchSize";
+    public static final String STATEMENT_TIMEOUT_MILLIS = "statementTimeoutMillis";
+    public static final String CONNECTION_TIMEOUT_MILLIS = "connectionTimeoutMillis";
+    public static final String LOOKUP_TIMEOUT_SECONDS = "lookupTimeoutSeconds";
+    public static final String SEARCH_TIMEOUT_SECONDS = "searchTimeoutSeconds";
+    public static final String CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+    public static final String CIRCUIT_BREAKER_OPEN_SECONDS = "circuitBreakerOpenSeconds";
+    public static final String SLOW_CALL_THRESHOLD_MILLIS = "slowCallThresholdMillis";
+    public static final String SLOW_QUERY_THRESHOLD_MILLIS = "slowQueryThresholdMillis";
+    public static final String SLOW_QUERY_EXPLAIN = "slowQueryExplain";
+    public static final String LEAK_DETECTION_THRESHOLD_MILLIS = "leakDetectionThresholdMillis";
+    public static final String REWRITE_BATCHED_INSERTS = "reWriteBatchedInserts";
+    public static final String PREPARED_STATEMENT_CACHE_QUERIES = "preparedStatementCacheQueries";
+    public static final String PREPARED_STATEMENT_CACHE_SIZE_MIB = "preparedStatementCacheSizeMiB";
+    public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+    public static final String REPLICA_URLS = "replicaUrls";
+    public static final String REPLICA_POOL_SIZE = "replicaPoolSize";
+    public static final String REPLICA_MAX_LAG_SECONDS = "replicaMaxLagSeconds";
+    public static final String REPLICA_HEALTH_CHECK_SECONDS = "replicaHealthCheckSeconds";
+
+    static final CacheMode DEFAULT_CACHE_MODE = CacheMode.LOCAL;
+    static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    static final int DEFAULT_CACHE_TTL_SECONDS = 60;
+    static final String DEFAULT_PASSWORD_HASH_ALGORITHM = BCryptPasswordHashVerifier.ALGORITHM;
+    static final int DEFAULT_THROTTLE_USERNAME_ATTEMPTS = 0;
+    static final int DEFAULT_THROTTLE_USERNAME_PER_MINUTE = 60;
+    static final int DEFAULT_THROTTLE_ADDRESS_PER_MINUTE = 300;
+    static final int DEFAULT_NEGATIVE_CACHE_TTL_SECONDS = 10;
+    static final double DEFAULT_MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    static final int DEFAULT_MEMBERSHIP_FILTER_MAX_MB = 16;
+    static final int DEFAULT_MEMBERSHIP_FILTER_REFRESH_SECONDS = 30;
+    static final int DEFAULT_USER_SNAPSHOT_REFRESH_SECONDS = 30;
+    static final SearchBackend DEFAULT_SEARCH_BACKEND = SearchBackend.LIKE;
+    static final CountMode DEFAULT_COUNT_MODE = CountMode.EXACT;
+    static final int DEFAULT_COUNT_CACHE_SECONDS = 30;
+    static final int DEFAULT_POOL_MAX_SIZE = 10;
+    static final int DEFAULT_POOL_MIN_IDLE = 2;
+    static final BlockingBridge.Mode DEFAULT_EXECUTION_MODE = BlockingBridge.Mode.DIRECT;
+    static final int DEFAULT_FETCH_SIZE = 500;
+    static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 5000;
+    static final int DEFAULT_LOOKUP_TIMEOUT_SECONDS = 5;
+    static final int DEFAULT_SEARCH_TIMEOUT_SECONDS = 30;
+    static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+    static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 10;
+    static final int DEFAULT_SLOW_CALL_THRESHOLD_MILLIS = 1000;
+    static final int DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 500;
+    static final int DEFAULT_SYNC_BATCH_SIZE = 1000;
+    static final int DEFAULT_REPLICA_POOL_SIZE = 10;
+    static final double DEFAULT_REPLICA_MAX_LAG_SECONDS = 5;
+    static final int DEFAULT_REPLICA_HEALTH_CHECK_SECONDS = 5;
+
+    private final CacheMode cacheMode;
+    private final int cacheMaxEntries;
+    private final int cacheTtlSeconds;
+    private final int cacheStaleSeconds;
+    private final String passwordHashAlgorithm;
+    private final int passwordHashCost;
+    private final boolean rehashOnLogin;
+    private final boolean prefetchPasswordHash;
+    private final int throttleUsernameAttempts;
+    private final int throttleUsernamePerMinute;
+    private final int throttleAddressAttempts;
+    private final int throttleAddressPerMinute;
+    private final int negativeCacheTtlSeconds;
+    private final boolean membershipFilterEnabled;
+    private final double membershipFilterFalsePositiveRate;
+    private final int membershipFilterMaxMb;
+    private final int membershipFilterRefreshSeconds;
+    private final boolean userSnapshotEnabled;
+    private final int userSnapshotRefreshSeconds;
+    private final SearchBackend searchBackend;
+    private final CountMode countMode;
+    private final int countCacheSeconds;
+    private final String groupAttribute;
+    private final int poolMaxSize;
+    private final int poolMinIdle;
+    private final BlockingBridge.Mode executionMode;
+    private final int fetchSize;
+    private final int statementTimeoutMillis;
+    private final int connectionTimeoutMillis;
+    private final int lookupTimeoutSeconds;
+    private final int searchTimeoutSeconds;
+    private final int circuitBreakerFailures;
+    private final int circuitBreakerOpenSeconds;
+    private final int slowCallThresholdMillis;
+    private final int slowQueryThresholdMillis;
+    private final boolean slowQueryExplain;
+    private final int leakDetectionThresholdMillis;
+    private final boolean reWriteBatchedInserts;
+    private final int preparedStatementCacheQueries;
+    private final int preparedStatementCacheSizeMiB;
+    private final int syncBatchSize;
+    private final List<String> replicaUrls;
+    private final int replicaPoolSize;
+    private final double replicaMaxLagSeconds;
+    private final int replicaHealthCheckSeconds;
+
+    private ExternalDatabaseConfig(ComponentModel model) {
+        this.cacheMode = CacheMode.parse(model.get(CACHE_MODE), DEFAULT_CACHE_MODE);
+        this.cacheMaxEntries = getInt(model, CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES);
+        this.cacheTtlSeconds = getInt(model, CACHE_TTL_SECONDS, DEFAULT_CACHE_TTL_SECONDS);
+        this.cacheStaleSeconds = getInt(model, CACHE_STALE_SECONDS, 0);
+        this.passwordHashAlgorithm = getString(model, PASSWORD_HASH_ALGORITHM, DEFAULT_PASSWORD_HASH_ALGORITHM);
+        this.passwordHashCost = getInt(model, PASSWORD_HASH_COST, 0);
+        this.rehashOnLogin = getBoolean(model, REHASH_ON_LOGIN, false);
+        this.prefetchPasswordHash = getBoolean(model, PREFETCH_PASSWORD_HASH, true);
+        this.throttleUsernameAttempts = getInt(model, THROTTLE_USERNAME_ATTEMPTS, DEFAULT_THROTTLE_USERNAME_ATTEMPTS);
+        this.throttleUsernamePerMinute = getInt(model, THROTTLE_USERNAME_PER_MINUTE,
+                DEFAULT_THROTTLE_USERNAME_PER_MINUTE);
+        this.throttleAddressAttempts = getInt(model, THROTTLE_ADDRESS_ATTEMPTS, 0);
+        this.throttleAddressPerMinute = getInt(model, THROTTLE_ADDRESS_PER_MINUTE, DEFAULT_THROTTLE_ADDRESS_PER_MINUTE);
+        this.negativeCacheTtlSeconds = getInt(model, NEGATIVE_CACHE_TTL_SECONDS, DEFAULT_NEGATIVE_CACHE_TTL_SECONDS);
+        this.membershipFilterEnabled = getBoolean(model, MEMBERSHIP_FILTER_ENABLED, false);
+        this.membershipFilterFalsePositiveRate = getDouble(model, MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE,
+                DEFAULT_MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE);
+        this.membershipFilterMaxMb = getInt(model, MEMBERSHIP_FILTER_MAX_MB, DEFAULT_MEMBERSHIP_FILTER_MAX_MB);
+        this.membershipFilterRefreshSeconds = getInt(model, MEMBERSHIP_FILTER_REFRESH_SECONDS,
+                DEFAULT_MEMBERSHIP_FILTER_REFRESH_SECONDS);
+        this.userSnapshotEnabled = getBoolean(model, USER_SNAPSHOT_ENABLED, false);
+        this.userSnapshotRefreshSeconds = getInt(model, USER_SNAPSHOT_REFRESH_SECONDS,
+                DEFAULT_USER_SNAPSHOT_REFRESH_SECONDS);
+        this.searchBackend = SearchBackend.parse(model.get(SEARCH_BACKEND), DEFAULT_SEARCH_BACKEND);
+        this.countMode = CountMode.parse(model.get(COUNT_MODE), DEFAULT_COUNT_MODE);
+        this.countCacheSeconds = getInt(model, COUNT_CACHE_SECONDS, DEFAULT_COUNT_CACHE_SECONDS);
+        this.groupAttribute = getString(model, GROUP_ATTRIBUTE, null);
+        this.poolMaxSize = Math.max(getInt(model, POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE), 1);
+        this.poolMinIdle = Math.min(getInt(model, POOL_MIN_IDLE, DEFAULT_POOL_MIN_IDLE), poolMaxSize);
+        this.executionMode = BlockingBridge.Mode.parse(model.get(EXECUTION_MODE), DEFAULT_EXECUTION_MODE);
+        this.fetchSize = getInt(model, FETCH_SIZE, DEFAULT_FETCH_SIZE);
+        this.statementTimeoutMillis = getInt(model, STATEMENT_TIMEOUT_MILLIS, 0);
+        // below 250 ms Hikari falls back to its own 30 s default
+        this.connectionTimeoutMillis = Math.max(getInt(model, CONNECTION_TIMEOUT_MILLIS,
+                DEFAULT_CONNECTION_TIMEOUT_MILLIS), 250);
+        this.lookupTimeoutSeconds = getInt(model, LOOKUP_TIMEOUT_SECONDS, DEFAULT_LOOKUP_TIMEOUT_SECONDS);
+        this.searchTimeoutSeconds = getInt(model, SEARCH_TIMEOUT_SECONDS, DEFAULT_SEARCH_TIMEOUT_SECONDS);
+        this.circuitBreakerFailures = getInt(model, CIRCUIT_BREAKER_FAILURES, DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        this.circuitBreakerOpenSeconds = getInt(model, CIRCUIT_BREAKER_OPEN_SECONDS,
+                DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS);
+        this.slowCallThresholdMillis = getInt(model, SLOW_CALL_THRESHOLD_MILLIS, DEFAULT_SLOW_CALL_THRESHOLD_MILLIS);
+        this.slowQueryThresholdMillis = getInt(model, SLOW_QUERY_THRESHOLD_MILLIS,
+                DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS);
+        this.slowQueryExplain = getBoolean(model, SLOW_QUERY_EXPLAIN, false);
+        this.leakDetectionThresholdMillis = getInt(model, LEAK_DETECTION_THRESHOLD_MILLIS, 0);
+        this.reWriteBatchedInserts = getBoolean(model, REWRITE_BATCHED_INSERTS, false);
+        this.preparedStatementCacheQueries = getInt(model, PREPARED_STATEMENT_CACHE_QUERIES, -1);
+        this.preparedStatementCacheSizeMiB = getInt(model, PREPARED_STATEMENT_CACHE_SIZE_MIB, -1);
+        this.syncBatchSize = getInt(model, SYNC_BATCH_SIZE, DEFAULT_SYNC_BATCH_SIZE);
+        this.replicaUrls = getList(model, REPLICA_URLS);
+        this.replicaPoolSize = getInt(model, REPLICA_POOL_SIZE, DEFAULT_REPLICA_POOL_SIZE);
+        this.replicaMaxLagSeconds = getDouble(model, REPLICA_MAX_LAG_SECONDS, DEFAULT_REPLICA_MAX_LAG_SECONDS);
+        this.replicaHealthCheckSeconds = getInt(model, REPLICA_HEALTH_CHECK_SECONDS,
+                DEFAULT_REPLICA_HEALTH_CHECK_SECONDS);
+    }
+
+    public static ExternalDatabaseConfig from(ComponentModel model) {
+        return new ExternalDatabaseConfig(model);
+    }
+
+    /**
+     * The raw values of the settings above. Keycloak keeps its own entries in the same map, {@code lastSync}
+     * is rewritten after every sync run, so components are compared by these only.
+     */
+    static Map<String, List<String>> settings(ComponentModel model) {
+        Map<String, List<String>> settings = new HashMap<>();
+        if (model.getConfig() != null) {
+            model.getConfig().forEach((key, values) -> {
+                if (SettingNames.ALL.contains(key)) {
+                    settings.put(key, values == null ? null : new ArrayList<>(values));
+                }
+            });
+        }
+        return settings;
+    }
+
+    private static final class SettingNames {
+        static final Set<String> ALL = configProperties().stream()
+                .map(ProviderConfigProperty::getName)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    static List<ProviderConfigProperty> configProperties() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(CACHE_MODE)
+                .label("User cache")
+                .helpText("DISABLED keeps only the per-request cache. LOCAL adds a shared cache on each node. "
+                        + "CLUSTERED additionally broadcasts invalidations to the other Keycloak nodes.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(CacheMode.LOCAL.name(), CacheMode.CLUSTERED.name(), CacheMode.DISABLED.name())
+                .defaultValue(DEFAULT_CACHE_MODE.name())
+                .add()
+                .property()
+                .name(CACHE_MAX_ENTRIES)
+                .label("User cache size")
+                .helpText("Maximum number of users kept in the shared cache, least recently used entries are evicted first.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_CACHE_MAX_ENTRIES))
+                .add()
+                .property()
+                .name(CACHE_TTL_SECONDS)
+                .label("User cache TTL (seconds)")
+                .helpText("How long a user loaded from the database is served from the shared cache.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_CACHE_TTL_SECONDS))
+                .add()
+                .property()
+                .name(CACHE_STALE_SECONDS)
+                .label("Serve stale users (seconds)")
+                .helpText("Keep expired users this much longer and return them from lookups while the database "
+                        + "fails or its circuit breaker is open. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .add()
+                .property()
+                .name(PASSWORD_HASH_ALGORITHM)
+                .label("Password hash algorithm")
+                .helpText("Scheme used for upgraded hashes when rehash on login is enabled. "
+                        + "Existing hashes are always verified by their prefix.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(BCryptPasswordHashVerifier.ALGORITHM, Argon2PasswordHashVerifier.ALGORITHM,
+                        Pbkdf2PasswordHashVerifier.SHA256, Pbkdf2PasswordHashVerifier.SHA512)
+                .defaultValue(DEFAULT_PASSWORD_HASH_ALGORITHM)
+                .add()
+                .property()
+                .name(PASSWORD_HASH_COST)
+                .label("Password hash cost")
+                .helpText("Log2 rounds for bcrypt, iterations for argon2id and PBKDF2. Empty uses the algorithm's default.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(REHASH_ON_LOGIN)
+                .label("Rehash on login")
+                .helpText("After a successful login, replace hashes that use another algorithm or a lower cost "
+                        + "than configured above in platform.users.password_hash.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(PREFETCH_PASSWORD_HASH)
+                .label("Prefetch password hash")
+                .helpText("Read the password hash with the user when looking up by username or email, so the "
+                        + "password check of the same login needs no second query. The hash is kept for that "
+                        + "request only and never cached.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("true")
+                .add()
+                .property()
+                .name(THROTTLE_USERNAME_ATTEMPTS)
+                .label("Password attempts per user")
+                .helpText("Password checks a username may make in a burst before further attempts fail without "
+                        + "touching the database, even with the correct password. Anyone who knows a username can "
+                        + "then keep that user locked out by sending wrong passwords at the refill rate. "
+                        + "0 (the default) disables the limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_THROTTLE_USERNAME_ATTEMPTS))
+                .add()
+                .property()
+                .name(THROTTLE_USERNAME_PER_MINUTE)
+                .label("Password attempts per user and minute")
+                .helpText("Rate at which a throttled username gets attempts back.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_THROTTLE_USERNAME_PER_MINUTE))
+                .add()
+                .property()
+                .name(THROTTLE_ADDRESS_ATTEMPTS)
+                .label("Password attempts per client address")
+                .helpText("The same limit per client IP address, across all usernames. Only useful when Keycloak "
+                        + "sees the real client address, behind a proxy that needs the proxy headers option. "
+                        + "0 disables the limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .add()
+                .property()
+                .name(THROTTLE_ADDRESS_PER_MINUTE)
+                .label("Password attempts per client address and minute")
+                .helpText("Rate at which a throttled client address gets attempts back.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_THROTTLE_ADDRESS_PER_MINUTE))
+                .add()
+                .property()
+                .name(NEGATIVE_CACHE_TTL_SECONDS)
+                .label("Unknown user cache TTL (seconds)")
+                .helpText("How long a username or email that was not found is answered without a query. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_NEGATIVE_CACHE_TTL_SECONDS))
+                .add()
+                .property()
+                .name(MEMBERSHIP_FILTER_ENABLED)
+                .label("Unknown user filter")
+                .helpText("Keep an in-memory Bloom filter of all usernames and emails, so lookups of names that "
+                        + "do not exist skip the database. Needs the updated_at column of platform.users. A user "
+                        + "created outside Keycloak is reported as not found for up to 5 seconds, until the filter "
+                        + "has caught up.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE)
+                .label("Unknown user filter false-positive rate")
+                .helpText("Share of unknown names that still go to the database.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_MEMBERSHIP_FILTER_FALSE_POSITIVE_RATE))
+                .add()
+                .property()
+                .name(MEMBERSHIP_FILTER_MAX_MB)
+                .label("Unknown user filter memory (MB)")
+                .helpText("Upper bound for the filter size. When reached, the false-positive rate rises instead.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_MEMBERSHIP_FILTER_MAX_MB))
+                .add()
+                .property()
+                .name(MEMBERSHIP_FILTER_REFRESH_SECONDS)
+                .label("Unknown user filter refresh (seconds)")
+                .helpText("Interval for picking up new and changed users. Lookups of unknown names also refresh "
+                        + "the filter when it is older than 5 seconds, and so do change notifications.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_MEMBERSHIP_FILTER_REFRESH_SECONDS))
+                .add()
+                .property()
+                .name(USER_SNAPSHOT_ENABLED)
+                .label("In-memory users")
+                .helpText("Keep a compact copy of platform.users on each node and answer lookups and searches "
+                        + "without attribute filters from it. Meant for tables of up to a few hundred thousand "
+                        + "users that change rarely; new users are still found in the database before the next "
+                        + "refresh. Needs the updated_at column of platform.users.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(USER_SNAPSHOT_REFRESH_SECONDS)
+                .label("In-memory users refresh (seconds)")
+                .helpText("Interval for picking up changed users. Deleted users are dropped by a full reload "
+                        + "every 15 minutes.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_USER_SNAPSHOT_REFRESH_SECONDS))
+                .add()
+                .property()
+                .name(SEARCH_BACKEND)
+                .label("Search backend")
+                .helpText("LIKE scans the users table for every admin console search. TRIGRAM finds the same users "
+                        + "through a pg_trgm index, it needs sql/migrations/002_users_search_text.sql and falls back "
+                        + "to LIKE while the search_text column is missing.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(SearchBackend.LIKE.name(), SearchBackend.TRIGRAM.name())
+                .defaultValue(DEFAULT_SEARCH_BACKEND.name())
+                .add()
+                .property()
+                .name(COUNT_MODE)
+                .label("User count")
+                .helpText("EXACT counts the users table for the admin console's user count. ESTIMATED takes the "
+                        + "total from the PostgreSQL statistics instead, which are updated by autovacuum, and only "
+                        + "counts exactly when a search filters the users.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(CountMode.EXACT.name(), CountMode.ESTIMATED.name())
+                .defaultValue(DEFAULT_COUNT_MODE.name())
+                .add()
+                .property()
+                .name(COUNT_CACHE_SECONDS)
+                .label("User count cache (seconds)")
+                .helpText("How long a user count is reused for the same search, 0 counts every time.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_COUNT_CACHE_SECONDS))
+                .add()
+                .property()
+                .name(GROUP_ATTRIBUTE)
+                .label("Group attribute")
+                .helpText("Name of the user_attributes entry that holds the name of the user's group. When set, "
+                        + "users with that value are listed as members of the Keycloak group of the same name.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(POOL_MAX_SIZE)
+                .label("Connection pool size")
+                .helpText("Maximum number of connections this provider keeps to the primary. Every configured "
+                        + "provider has its own pool, so a busy realm can't take connections from the others.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_POOL_MAX_SIZE))
+                .add()
+                .property()
+                .name(POOL_MIN_IDLE)
+                .label("Connection pool idle connections")
+                .helpText("Connections kept open while the provider is idle.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_POOL_MIN_IDLE))
+                .add()
+                .property()
+                .name(EXECUTION_MODE)
+                .label("Database call queue")
+                .helpText("DIRECT runs database calls as they come and lets them wait inside the pool. QUEUED runs "
+                        + "at most one call per pooled connection, searches included until their rows are read, "
+                        + "and queues the rest in order in front of the pool. Both run the calls on the request "
+                        + "thread; queued calls only stop holding a platform thread when Keycloak handles requests "
+                        + "on virtual threads (Java 21 and later). PLATFORM and VIRTUAL are accepted as the old "
+                        + "names.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(BlockingBridge.Mode.DIRECT.name(), BlockingBridge.Mode.QUEUED.name())
+                .defaultValue(DEFAULT_EXECUTION_MODE.name())
+                .add()
+                .property()
+                .name(FETCH_SIZE)
+                .label("Search fetch size")
+                .helpText("Rows fetched per round trip while a search result is read.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_FETCH_SIZE))
+                .add()
+                .property()
+                .name(STATEMENT_TIMEOUT_MILLIS)
+                .label("Statement timeout (ms)")
+                .helpText("PostgreSQL cancels statements of this provider that run longer. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .add()
+                .property()
+                .name(CONNECTION_TIMEOUT_MILLIS)
+                .label("Connection timeout (ms)")
+                .helpText("How long a call waits for a pooled connection before it fails, at least 250.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_CONNECTION_TIMEOUT_MILLIS))
+                .add()
+                .property()
+                .name(LOOKUP_TIMEOUT_SECONDS)
+                .label("Lookup timeout (seconds)")
+                .helpText("The driver cancels user lookups and password queries that run longer. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_LOOKUP_TIMEOUT_SECONDS))
+                .add()
+                .property()
+                .name(SEARCH_TIMEOUT_SECONDS)
+                .label("Search timeout (seconds)")
+                .helpText("The driver cancels searches and counts that run longer. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_SEARCH_TIMEOUT_SECONDS))
+                .add()
+                .property()
+                .name(CIRCUIT_BREAKER_FAILURES)
+                .label("Circuit breaker failures")
+                .helpText("After this many timeouts or connection failures in a row, calls fail immediately "
+                        + "without asking the database until a probe succeeds. 0 disables the breaker.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_FAILURES))
+                .add()
+                .property()
+                .name(CIRCUIT_BREAKER_OPEN_SECONDS)
+                .label("Circuit breaker open time (seconds)")
+                .helpText("How long calls fail immediately before the next probe of the database.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS))
+                .add()
+                .property()
+                .name(SLOW_CALL_THRESHOLD_MILLIS)
+                .label("Slow call log (ms)")
+                .helpText("Log lookups, searches and password checks that take longer, with their arguments, at "
+                        + "most once per second per operation. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_SLOW_CALL_THRESHOLD_MILLIS))
+                .add()
+                .property()
+                .name(SLOW_QUERY_THRESHOLD_MILLIS)
+                .label("Slow query trace (ms)")
+                .helpText("Keep the last 128 statements that take longer, with the calling method and the types of "
+                        + "their parameters, for the JMX bean name=slowQueries. 0 disables it.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS))
+                .add()
+                .property()
+                .name(SLOW_QUERY_EXPLAIN)
+                .label("Explain slow queries")
+                .helpText("Also capture the plan of slow statements with EXPLAIN (ANALYZE, BUFFERS), which runs the "
+                        + "statement a second time in the background, at most once per statement every 10 minutes.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(LEAK_DETECTION_THRESHOLD_MILLIS)
+                .label("Connection leak detection (ms)")
+                .helpText("Log a warning with the borrowing stack trace when a connection is held longer. "
+                        + "0 disables it, otherwise at least 2000.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue("0")
+                .add()
+                .property()
+                .name(REWRITE_BATCHED_INSERTS)
+                .label("Rewrite batched inserts")
+                .helpText("Let PgJDBC send batched INSERT statements as multi-row inserts.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(PREPARED_STATEMENT_CACHE_QUERIES)
+                .label("Prepared statement cache (statements)")
+                .helpText("Server-side prepared statements kept per connection. Empty uses the server-wide "
+                        + "preparedStatementCacheQueries option of the provider.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(PREPARED_STATEMENT_CACHE_SIZE_MIB)
+                .label("Prepared statement cache (MiB)")
+                .helpText("Memory bound of that cache per connection. Empty uses the server-wide "
+                        + "preparedStatementCacheSizeMiB option of the provider.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(SYNC_BATCH_SIZE)
+                .label("Sync batch size")
+                .helpText("Users imported per transaction when \"Import users\" and periodic sync are enabled. "
+                        + "Changed users are found through the updated_at column of platform.users.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_SYNC_BATCH_SIZE))
+                .add()
+                .property()
+                .name(REPLICA_URLS)
+                .label("Read replica URLs")
+                .helpText("JDBC URLs of streaming replicas, separated by commas, using the credentials of the primary. "
+                        + "Lookups, searches and password checks are spread over them; writes such as password "
+                        + "rehashes stay on the primary. Empty sends everything to the primary.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(REPLICA_POOL_SIZE)
+                .label("Read replica pool size")
+                .helpText("Maximum number of connections to each replica.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_REPLICA_POOL_SIZE))
+                .add()
+                .property()
+                .name(REPLICA_MAX_LAG_SECONDS)
+                .label("Read replica max lag (seconds)")
+                .helpText("Replicas further behind the primary stop serving reads until they catch up. "
+                        + "This is also how long a changed password may still be accepted.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_REPLICA_MAX_LAG_SECONDS))
+                .add()
+                .property()
+                .name(REPLICA_HEALTH_CHECK_SECONDS)
+                .label("Read replica health check (seconds)")
+                .helpText("Interval for checking that replicas are reachable and measuring their lag.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_REPLICA_HEALTH_CHECK_SECONDS))
+                .add()
+                .build();
+    }
+
+    public CacheMode getCacheMode() {
+        return cacheMode;
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public int getCacheTtlSeconds() {
+        return cacheTtlSeconds;
+    }
+
+    /**
+     * @return how long expired users may still be served while the database fails, 0 when they are not
+     */
+    public int getCacheStaleSeconds() {
+        return cacheStaleSeconds;
+    }
+
+    public String getPasswordHashAlgorithm() {
+        return passwordHashAlgorithm;
+    }
+
+    public int getPasswordHashCost() {
+        return passwordHashCost;
+    }
+
+    public boolean isRehashOnLogin() {
+        return rehashOnLogin;
+    }
+
+    public boolean isPrefetchPasswordHash() {
+        return prefetchPasswordHash;
+    }
+
+    /**
+     * @return the burst of password attempts per username, 0 when usernames are not throttled
+     */
+    public int getThrottleUsernameAttempts() {
+        return throttleUsernameAttempts;
+    }
+
+    public int getThrottleUsernamePerMinute() {
+        return throttleUsernamePerMinute;
+    }
+
+    /**
+     * @return the burst of password attempts per client address, 0 when addresses are not throttled
+     */
+    public int getThrottleAddressAttempts() {
+        return throttleAddressAttempts;
+    }
+
+    public int getThrottleAddressPerMinute() {
+        return throttleAddressPerMinute;
+    }
+
+    public int getNegativeCacheTtlSeconds() {
+        return negativeCacheTtlSeconds;
+    }
+
+    public boolean isMembershipFilterEnabled() {
+        return membershipFilterEnabled;
+    }
+
+    public double getMembershipFilterFalsePositiveRate() {
+        return membershipFilterFalsePositiveRate;
+    }
+
+    public int getMembershipFilterMaxMb() {
+        return membershipFilterMaxMb;
+    }
+
+    public int getMembershipFilterRefreshSeconds() {
+        return membershipFilterRefreshSeconds;
+    }
+
+    public boolean isUserSnapshotEnabled() {
+        return userSnapshotEnabled;
+    }
+
+    public int getUserSnapshotRefreshSeconds() {
+        return userSnapshotRefreshSeconds;
+    }
+
+    public SearchBackend getSearchBackend() {
+        return searchBackend;
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    public int getCountCacheSeconds() {
+        return countCacheSeconds;
+    }
+
+    /**
+     * @return the attribute name, or {@code null} when group members are not mapped from attributes
+     */
+    public String getGroupAttribute() {
+        return groupAttribute;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    public int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    public BlockingBridge.Mode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @return the server-side statement timeout, 0 when statements may run indefinitely
+     */
+    public int getStatementTimeoutMillis() {
+        return statementTimeoutMillis;
+    }
+
+    public int getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    /**
+     * @return the {@code setQueryTimeout} of single-user and password queries, 0 for none
+     */
+    public int getLookupTimeoutSeconds() {
+        return lookupTimeoutSeconds;
+    }
+
+    /**
+     * @return the {@code setQueryTimeout} of searches and counts, 0 for none
+     */
+    public int getSearchTimeoutSeconds() {
+        return searchTimeoutSeconds;
+    }
+
+    /**
+     * @return the consecutive failures that open the circuit, 0 when the breaker is disabled
+     */
+    public int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    public int getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    public int getSlowCallThresholdMillis() {
+        return slowCallThresholdMillis;
+    }
+
+    public int getSlowQueryThresholdMillis() {
+        return slowQueryThresholdMillis;
+    }
+
+    public boolean isSlowQueryExplain() {
+        return slowQueryExplain;
+    }
+
+    public int getLeakDetectionThresholdMillis() {
+        return leakDetectionThresholdMillis;
+    }
+
+    public boolean isReWriteBatchedInserts() {
+        return reWriteBatchedInserts;
+    }
+
+    /**
+     * @return the statement count of the prepared statement cache, -1 when the server-wide default applies
+     */
+    public int getPreparedStatementCacheQueries() {
+        return preparedStatementCacheQueries;
+    }
+
+    /**
+     * @return the size of the prepared statement cache, -1 when the server-wide default applies
+     */
+    public int getPreparedStatementCacheSizeMiB() {
+        return preparedStatementCacheSizeMiB;
+    }
+
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    /**
+     * @return the JDBC URLs of the read replicas, empty when reads go to the primary
+     */
+    public List<String> getReplicaUrls() {
+        return replicaUrls;
+    }
+
+    public int getReplicaPoolSize() {
+        return replicaPoolSize;
+    }
+
+    public double getReplicaMaxLagSeconds() {
+        return replicaMaxLagSeconds;
+    }
+
+    public int getReplicaHealthCheckSeconds() {
+        return replicaHealthCheckSeconds;
+    }
+
+    static String getString(ComponentModel model, String key, String defaultValue) {
+        String value = model.get(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    static List<String> getList(ComponentModel model, String key) {
+        String value = model.get(key);
+        if (value == null || value.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(item -> !item.isEmpty())
+                .toList();
+    }
+
+    static boolean getBoolean(ComponentModel model, String key, boolean defaultValue) {
+        String value = model.get(key);
+        return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    static double getDouble(ComponentModel model, String key, double defaultValue) {
+        String value = model.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static int getInt(ComponentModel model, String key, int defaultValue) {
+        String value = model.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -1,16 +1,48 @@
 package org.p2proto.keycloak;
 
 import com.zaxxer.hikari.HikariDataSource;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.models.*;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProvider;
-import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
+import org.keycloak.storage.user.UserCountMethodsProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
-import org.mindrot.jbcrypt.BCrypt;
+import org.p2proto.keycloak.cache.CacheMode;
+import org.p2proto.keycloak.cache.CacheStatistics;
+import org.p2proto.keycloak.cache.LookupCoalescer;
+import org.p2proto.keycloak.cache.NegativeLookupCache;
+import org.p2proto.keycloak.cache.SessionUserCache;
+import org.p2proto.keycloak.cache.UserCache;
+import org.p2proto.keycloak.cache.UserCacheInvalidationEvent;
+import org.p2proto.keycloak.cache.UserMembershipFilter;
+import org.p2proto.keycloak.cache.UserSnapshot;
+import org.p2proto.keycloak.cache.UserSnapshotLoader;
+import org.p2proto.keycloak.credential.PasswordHashVerifier;
+import org.p2proto.keycloak.credential.LoginThrottle;
+import org.p2proto.keycloak.credential.PasswordHashing;
+import org.p2proto.keycloak.credential.PasswordVerificationExecutor;
+import org.p2proto.keycloak.credential.PrefetchedPasswordHash;
+import org.p2proto.keycloak.jdbc.BlockingBridge;
+import org.p2proto.keycloak.jdbc.CircuitBreaker;
+import org.p2proto.keycloak.jdbc.CursorStream;
+import org.p2proto.keycloak.jdbc.ReplicaRouter;
+import org.p2proto.keycloak.jdbc.SlowQueryTrace;
+import org.p2proto.keycloak.metrics.Operation;
+import org.p2proto.keycloak.metrics.OperationMetrics;
+import org.p2proto.keycloak.metrics.ProviderMetrics;
+import org.p2proto.keycloak.search.KeysetBookmarks;
+import org.p2proto.keycloak.search.CountMode;
+import org.p2proto.keycloak.search.SearchBackend;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+import org.p2proto.keycloak.search.UserCountCache;
+import org.p2proto.keycloak.search.UserSearchQuery;
+import org.p2proto.keycloak.sync.LocalUserImporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,36 +51,141 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Stream;
 
 public class ExternalDatabaseUserStorageProvider implements
         UserStorageProvider,
         UserLookupProvider,
         CredentialInputValidator,
-        UserQueryProvider {
+        UserQueryProvider,
+        UserCountMethodsProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(ExternalDatabaseUserStorageProvider.class);
 
+    private static final String UNDEFINED_COLUMN = "42703";
+    // resolved through search_path like the search and count statements, so both count modes read one table
+    private static final String ESTIMATE_USERS_SQL =
+            "SELECT reltuples::bigint FROM pg_class WHERE oid = 'users'::regclass";
+
+    private static final String USER_COLUMNS = "uuid, username, email, first_name, last_name";
+    private static final String LOGIN_COLUMNS = USER_COLUMNS + ", password_hash";
+    private static final String ATTRIBUTES_SQL =
+            "SELECT user_id, name, value FROM platform.user_attributes WHERE user_id = ANY(?::uuid[])";
+
     private final KeycloakSession session;
     private final ComponentModel model;
     private final HikariDataSource dataSource;
+    private final ComponentResources resources;
+    private final ReplicaRouter router;
+    private final BlockingBridge blockingBridge;
+    private final CircuitBreaker circuitBreaker;
+    private final UserCache userCache;
+    private final SessionUserCache sessionCache;
+    private final NegativeLookupCache negativeLookupCache;
+    private final UserMembershipFilter membershipFilter;
+    private final UserSnapshotLoader userSnapshot;
+    private final PasswordVerificationExecutor passwordVerifier;
+    private final PasswordHashing passwordHashing;
+    private final LoginThrottle loginThrottle;
+    private final KeysetBookmarks keysetBookmarks;
+    private final UserCountCache userCounts;
+    private final LookupCoalescer<List<String>, ExternalUser> lookupCoalescer;
+    private final ProviderMetrics metrics;
+    private final SearchTemplateCache searchTemplates;
+    private final SlowQueryTrace slowQueries;
+    private final List<CursorStream<?>> openCursors = new ArrayList<>();
+    private final PrefetchedPasswordHash prefetchedHash = new PrefetchedPasswordHash();
+    private final boolean prefetchPasswordHash;
+    private final int lookupTimeoutSeconds;
+    private final int searchTimeoutSeconds;
+    private final boolean usersImported;
 
     public ExternalDatabaseUserStorageProvider(KeycloakSession session, ComponentModel model, HikariDataSource dataSource) {
+        this(session, model, new ComponentResources(model, dataSource));
+    }
+
+    public ExternalDatabaseUserStorageProvider(KeycloakSession session, ComponentModel model, ComponentResources resources) {
         this.session = session;
         this.model = model;
-        this.dataSource = dataSource;
+        this.resources = resources;
+        this.dataSource = resources.getDataSource();
+        this.router = resources.getRouter();
+        this.blockingBridge = resources.getBlockingBridge();
+        this.circuitBreaker = resources.getCircuitBreaker();
+        this.userCache = resources.getUserCache();
+        this.sessionCache = new SessionUserCache(resources.getCacheStatistics());
+        this.negativeLookupCache = resources.getNegativeLookupCache();
+        this.membershipFilter = resources.getMembershipFilter();
+        this.userSnapshot = resources.getUserSnapshot();
+        this.passwordVerifier = resources.getPasswordVerifier();
+        this.passwordHashing = resources.getPasswordHashing();
+        this.loginThrottle = resources.getLoginThrottle();
+        this.keysetBookmarks = resources.getKeysetBookmarks();
+        this.userCounts = resources.getUserCounts();
+        this.lookupCoalescer = resources.getLookupCoalescer();
+        this.metrics = resources.getMetrics();
+        this.searchTemplates = resources.getSearchTemplates();
+        this.slowQueries = resources.getSlowQueries();
+        this.prefetchPasswordHash = resources.getConfig().isPrefetchPasswordHash();
+        this.lookupTimeoutSeconds = resources.getConfig().getLookupTimeoutSeconds();
+        this.searchTimeoutSeconds = resources.getConfig().getSearchTimeoutSeconds();
+        this.usersImported = LocalUserImporter.hasImportedUsers(model);
     }
 
 
+    /**
+     * A connection to the primary, for writes.
+     */
     public Connection getConnection() throws SQLException {
         return dataSource.getConnection();
     }
 
+    /**
+     * A connection to one of the read replicas, or to the primary when none is configured or usable.
+     */
+    private Connection getReadConnection() throws SQLException {
+        return router.getReadConnection();
+    }
+
+    /**
+     * Runs a database call through the circuit breaker, then the blocking bridge, so that rejected calls take no
+     * permit.
+     */
+    private <T> T callDatabase(BlockingBridge.SqlWork<T> work) throws SQLException {
+        return circuitBreaker.call(() -> blockingBridge.call(work));
+    }
+
+    /**
+     * Rejections of the circuit breaker come in bursts while the database is down, they are logged without the
+     * stack trace and only at DEBUG.
+     */
+    private static void logFailure(SQLException e, String format, Object value) {
+        if (e instanceof CircuitBreaker.RejectedException) {
+            logger.debug(format + " ({})", value, e.getMessage());
+        } else {
+            logger.error(format, value, e);
+        }
+    }
+
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        logger.info("isValid, user = " + user);
+        long start = System.nanoTime();
+        try {
+            return validate(user, credentialInput);
+        } finally {
+            metrics.get(Operation.IS_VALID).record(start, user.getUsername());
+        }
+    }
+
+    private boolean validate(UserModel user, CredentialInput credentialInput) {
+        logger.trace("isValid, user = {}", user.getUsername());
         if (!(credentialInput instanceof UserCredentialModel)) {
             return false;
         }
@@ -60,27 +197,116 @@ public class ExternalDatabaseUserStorageProvider implements
         String username = user.getUsername();
         String password = credentialInput.getChallengeResponse();
 
-        try (Connection connection = getConnection()) {
-            String sql = "SELECT password_hash FROM platform.users WHERE username = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, username);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        String storedHash = rs.getString("password_hash");
-                        return verifyPassword(password, storedHash);
-                    } else {
-                        return false; // User not found
-                    }
-                }
+        if (!loginThrottle.tryAcquire(username, clientAddress())) {
+            logger.debug("Password attempt for user {} throttled", username);
+            return false;
+        }
+
+        // The connection is released before hashing, verification runs on the shared verifier pool
+        String storedHash = prefetchedHash.take(username);
+        try {
+            if (storedHash == null) {
+                storedHash = fetchPasswordHash(username);
             }
         } catch (SQLException e) {
-            logger.error("Error validating credentials for user: {}", username, e);
+            logFailure(e, "Error validating credentials for user: {}", username);
+            metrics.get(Operation.IS_VALID).recordError();
+            return false;
+        }
+        if (storedHash == null) {
+            return false; // User not found
+        }
+
+        PasswordHashVerifier verifier = passwordHashing.verifierFor(storedHash);
+        if (verifier == null) {
+            logger.warn("Unsupported password hash format for user {}", username);
+            return false;
+        }
+
+        boolean valid;
+        OperationMetrics hashMetrics = metrics.get(Operation.PASSWORD_HASH);
+        long hashStart = System.nanoTime();
+        try {
+            valid = passwordVerifier.verify(verifier, password, storedHash);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Password verification for user {} rejected: {}", username, e.getMessage());
+            hashMetrics.recordError();
             return false;
+        } finally {
+            hashMetrics.record(hashStart);
+        }
+
+        if (valid && passwordHashing.shouldRehash(storedHash)) {
+            rehash(username, password, storedHash);
+        }
+        return valid;
+    }
+
+    /**
+     * Replaces the stored hash by one from the configured scheme. The hash is computed on the verifier pool, the
+     * update runs here so that blocking JDBC never holds a hashing thread. The update only applies if the hash was
+     * not changed in the meantime; when the verifier pool is busy the upgrade waits for the next login.
+     */
+    private void rehash(String username, String password, String storedHash) {
+        PasswordHashVerifier target = passwordHashing.getTarget();
+        String newHash = passwordVerifier.tryHash(target, password);
+        if (newHash == null) {
+            logger.debug("Verifier pool busy, password hash upgrade for user {} skipped", username);
+            return;
+        }
+        String sql = "UPDATE platform.users SET password_hash = ? WHERE username = ? AND password_hash = ?";
+        try {
+            boolean upgraded = callDatabase(() -> {
+                try (Connection connection = getConnection();
+                     PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.setQueryTimeout(lookupTimeoutSeconds);
+                    stmt.setString(1, newHash);
+                    stmt.setString(2, username);
+                    stmt.setString(3, storedHash);
+                    return stmt.executeUpdate() == 1;
+                }
+            });
+            if (upgraded) {
+                logger.info("Upgraded password hash of user {} to {}", username, target.getAlgorithm());
+            }
+        } catch (SQLException e) {
+            logFailure(e, "Error upgrading password hash for user: {}", username);
         }
     }
 
-    private boolean verifyPassword(String password, String storedHash) {
-        return BCrypt.checkpw(password, storedHash);
+    private String clientAddress() {
+        if (!loginThrottle.isAddressLimited()) {
+            return null;
+        }
+        KeycloakContext context = session.getContext();
+        ClientConnection connection = context == null ? null : context.getConnection();
+        return connection == null ? null : connection.getRemoteAddr();
+    }
+
+    /**
+     * Reads the hash from the primary: a lagging replica could still accept a password that was just changed.
+     */
+    private String fetchPasswordHash(String username) throws SQLException {
+        OperationMetrics isValidMetrics = metrics.get(Operation.IS_VALID);
+        return callDatabase(() -> {
+            long start = System.nanoTime();
+            try (Connection connection = getConnection()) {
+                String sql = "SELECT password_hash FROM platform.users WHERE username = ?";
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.setQueryTimeout(lookupTimeoutSeconds);
+                    stmt.setString(1, username);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        isValidMetrics.recordQuery(start);
+                        slowQueries.record(Operation.IS_VALID, sql, List.of(username), start);
+                        if (!rs.next()) {
+                            return null;
+                        }
+                        isValidMetrics.recordRows(1);
+                        return rs.getString("password_hash");
+                    }
+                }
+            }
+        });
     }
 
     @Override
@@ -95,7 +321,16 @@ public class ExternalDatabaseUserStorageProvider implements
 
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
-        logger.info("getUserById, id = " + id);
+        long start = System.nanoTime();
+        try {
+            return findUserById(realm, id);
+        } finally {
+            metrics.get(Operation.GET_USER_BY_ID).record(start, id);
+        }
+    }
+
+    private UserModel findUserById(RealmModel realm, String id) {
+        logger.trace("getUserById, id = {}", id);
         //new Exception().printStackTrace();
 
         String uuid = extractExternalUserId(id);
@@ -104,21 +339,30 @@ public class ExternalDatabaseUserStorageProvider implements
             return null;
         }
 
-        try (Connection connection = getConnection()) {
-            String sql = "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE uuid = ?::uuid";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, uuid);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        return mapUser(rs, realm);
-                    }
+        UserModel cached = sessionCache.getById(uuid);
+        if (cached != null) {
+            return cached;
+        }
+
+        ExternalUser user = userCache.getById(uuid);
+        if (user == null) {
+            UserSnapshot snapshot = currentSnapshot();
+            user = snapshot != null ? userSnapshot.getById(snapshot, uuid) : null;
+        }
+        if (user == null) {
+            try {
+                user = queryUser(Operation.GET_USER_BY_ID,
+                        "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE uuid = ?::uuid", uuid);
+            } catch (SQLException e) {
+                logFailure(e, "Error fetching user by ID: {}", id);
+                metrics.get(Operation.GET_USER_BY_ID).recordError();
+                user = userCache.getStaleById(uuid);
+                if (user == null) {
+                    return null;
                 }
             }
-        } catch (SQLException e) {
-            logger.error("Error fetching user by ID: {}", id, e);
         }
-
-        return null;
+        return toUserModel(realm, user);
     }
 
     /**
@@ -127,295 +371,777 @@ public class ExternalDatabaseUserStorageProvider implements
      * If the format doesn't match or the component doesn't match this provider, return null.
      */
     private String extractExternalUserId(String keycloakUserId) {
-        if (keycloakUserId == null) {
-            logger.warn("User ID is null");
-            return null;
+        String uuid = FederatedUserId.decode(keycloakUserId, model.getId());
+        if (uuid == null) {
+            if (keycloakUserId == null) {
+                logger.warn("User ID is null");
+            } else if (!FederatedUserId.isWellFormed(keycloakUserId)) {
+                logger.warn("Invalid user ID format: {}", keycloakUserId);
+            } else {
+                logger.warn("User ID {} does not match this provider's component ID {}", keycloakUserId, model.getId());
+            }
+        }
+        return uuid;
+    }
+
+    @Override
+    public UserModel getUserByUsername(RealmModel realm, String username) {
+        long start = System.nanoTime();
+        try {
+            return findUserByUsername(realm, username);
+        } finally {
+            metrics.get(Operation.GET_USER_BY_USERNAME).record(start, username);
         }
+    }
 
-        String[] parts = keycloakUserId.split(":");
-        if (parts.length != 3 || !"f".equals(parts[0])) {
-            logger.warn("Invalid user ID format: " + keycloakUserId);
-            return null;
+    private UserModel findUserByUsername(RealmModel realm, String username) {
+        logger.trace("getUserByUsername, username = {}", username);
+        UserModel cached = sessionCache.getByUsername(username);
+        if (cached != null) {
+            return cached;
+        }
+
+        ExternalUser user = userCache.getByUsername(username);
+        if (user == null) {
+            UserSnapshot snapshot = currentSnapshot();
+            user = snapshot != null ? userSnapshot.getByUsername(snapshot, username) : null;
+        }
+        if (user == null) {
+            if (isKnownMissing(NegativeLookupCache.USERNAME, username)) {
+                return null;
+            }
+            try {
+                user = queryUser(Operation.GET_USER_BY_USERNAME,
+                        "SELECT " + loginColumns() + " FROM platform.users WHERE username = ?", username,
+                        prefetchPasswordHash);
+            } catch (SQLException e) {
+                logFailure(e, "Error fetching user by username: {}", username);
+                metrics.get(Operation.GET_USER_BY_USERNAME).recordError();
+                return toUserModel(realm, userCache.getStaleByUsername(username));
+            }
+            if (user == null) {
+                negativeLookupCache.markMissing(NegativeLookupCache.USERNAME, username);
+            }
         }
+        return toUserModel(realm, user);
+    }
 
-        String componentId = parts[1];
-        String externalId = parts[2];
+    @Override
+    public UserModel getUserByEmail(RealmModel realm, String email) {
+        long start = System.nanoTime();
+        try {
+            return findUserByEmail(realm, email);
+        } finally {
+            metrics.get(Operation.GET_USER_BY_EMAIL).record(start, email);
+        }
+    }
 
-        // Verify that this user ID belongs to this provider
-        if (!model.getId().equals(componentId)) {
-            logger.warn("User ID " + keycloakUserId + " does not match this provider's component ID " + model.getId());
-            return null;
+    private UserModel findUserByEmail(RealmModel realm, String email) {
+        logger.trace("getUserByEmail, email = {}", email);
+        UserModel cached = sessionCache.getByEmail(email);
+        if (cached != null) {
+            return cached;
         }
 
-        return externalId;
+        ExternalUser user = userCache.getByEmail(email);
+        if (user == null) {
+            UserSnapshot snapshot = currentSnapshot();
+            user = snapshot != null ? userSnapshot.getByEmail(snapshot, email) : null;
+        }
+        if (user == null) {
+            if (isKnownMissing(NegativeLookupCache.EMAIL, email)) {
+                return null;
+            }
+            try {
+                user = queryUser(Operation.GET_USER_BY_EMAIL,
+                        "SELECT " + loginColumns() + " FROM platform.users WHERE email = ?", email,
+                        prefetchPasswordHash);
+            } catch (SQLException e) {
+                logFailure(e, "Error fetching user by email: {}", email);
+                metrics.get(Operation.GET_USER_BY_EMAIL).recordError();
+                return toUserModel(realm, userCache.getStaleByEmail(email));
+            }
+            if (user == null) {
+                negativeLookupCache.markMissing(NegativeLookupCache.EMAIL, email);
+            }
+        }
+        return toUserModel(realm, user);
     }
 
-    @Override
-    public UserModel getUserByUsername(RealmModel realm, String username) {
-        logger.info("getUserByName, name = " + username);
-        //new Exception().printStackTrace();
-        try (Connection connection = getConnection()) {
-            String sql = "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE username = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, username);
+    /**
+     * Username and email lookups start most logins, so they can bring the password hash along for {@link #isValid}.
+     */
+    private String loginColumns() {
+        return prefetchPasswordHash ? LOGIN_COLUMNS : USER_COLUMNS;
+    }
+
+    /**
+     * Runs a single-row lookup and stores the result in the shared cache. Concurrent lookups of the same value
+     * share one query.
+     */
+    private ExternalUser queryUser(Operation operation, String sql, String value) throws SQLException {
+        return queryUser(operation, sql, value, false);
+    }
+
+    /**
+     * @param withPasswordHash the statement also selects {@code password_hash}, which is kept for this session's
+     *                         password check; like {@link #fetchPasswordHash} it is then read from the primary
+     */
+    private ExternalUser queryUser(Operation operation, String sql, String value, boolean withPasswordHash)
+            throws SQLException {
+        // coalesced callers wait for the leader's query and take no permit of their own
+        return lookupCoalescer.load(List.of(sql, value), () -> callDatabase(() -> {
+            OperationMetrics operationMetrics = metrics.get(operation);
+            long start = System.nanoTime();
+            try (Connection connection = withPasswordHash ? getConnection() : getReadConnection();
+                 PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setQueryTimeout(lookupTimeoutSeconds);
+                stmt.setString(1, value);
                 try (ResultSet rs = stmt.executeQuery()) {
+                    operationMetrics.recordQuery(start);
+                    slowQueries.record(operation, sql, List.of(value), start);
                     if (rs.next()) {
-                        return mapUser(rs, realm);
+                        operationMetrics.recordRows(1);
+                        ExternalUser user = mapRow(rs);
+                        if (withPasswordHash) {
+                            // only this session sees the hash, coalesced callers query it when they need it
+                            prefetchedHash.put(user.getUsername(), rs.getString("password_hash"));
+                        }
+                        return remember(user);
                     }
                 }
             }
-        } catch (SQLException e) {
-            logger.error("Error fetching user by username: {}", username, e);
+            return null;
+        }));
+    }
+
+    private ExternalUser remember(ExternalUser user) {
+        userCache.put(user);
+        if (membershipFilter != null) {
+            membershipFilter.add(NegativeLookupCache.USERNAME, user.getUsername());
+            membershipFilter.add(NegativeLookupCache.EMAIL, user.getEmail());
         }
-        return null;
+        return user;
     }
 
-    @Override
-    public UserModel getUserByEmail(RealmModel realm, String email) {
-        logger.info("getUserByEmail, email = " + email);
-        try (Connection connection = getConnection()) {
-            String sql = "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE email = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, email);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        return mapUser(rs, realm);
-                    }
-                }
+    /**
+     * Resolves many Keycloak user ids with at most one query, ids found in the caches are not queried.
+     *
+     * @return users keyed by the id they were requested with, in request order; ids that are unknown, malformed
+     * or belong to another component are left out
+     */
+    public Map<String, UserModel> getUsersByIds(RealmModel realm, Collection<String> ids) {
+        Map<String, String> requested = new LinkedHashMap<>();
+        for (String id : ids) {
+            String uuid = extractExternalUserId(id);
+            if (uuid != null && isUuid(uuid)) {
+                requested.put(uuid.toLowerCase(Locale.ROOT), id);
             }
-        } catch (SQLException e) {
-            logger.error("Error fetching user by email: {}", email, e);
         }
-        return null;
+        return lookupAll(realm, BatchLookup.ID, requested);
     }
 
-    private UserModel mapUser(ResultSet rs, RealmModel realm) throws SQLException {
-        String uuid = rs.getString("uuid");
-        String username = rs.getString("username");
-        String email = rs.getString("email");
-        String firstName = rs.getString("first_name");
-        String lastName = rs.getString("last_name");
+    /**
+     * Username counterpart of {@link #getUsersByIds}.
+     */
+    public Map<String, UserModel> getUsersByUsernames(RealmModel realm, Collection<String> usernames) {
+        Map<String, String> requested = new LinkedHashMap<>();
+        for (String username : usernames) {
+            requested.put(username, username);
+        }
+        return lookupAll(realm, BatchLookup.USERNAME, requested);
+    }
 
-        return new AbstractUserAdapterFederatedStorage(session, realm, model) {
-            @Override
-            public String getUsername() {
-                return username;
-            }
+    /**
+     * Email counterpart of {@link #getUsersByIds}.
+     */
+    public Map<String, UserModel> getUsersByEmails(RealmModel realm, Collection<String> emails) {
+        Map<String, String> requested = new LinkedHashMap<>();
+        for (String email : emails) {
+            requested.put(email, email);
+        }
+        return lookupAll(realm, BatchLookup.EMAIL, requested);
+    }
 
-            @Override
-            public void setUsername(String username) {
-                // Implement if needed
-            }
+    /**
+     * @param requested the column values to look up, mapped to the key the caller used for them
+     */
+    private Map<String, UserModel> lookupAll(RealmModel realm, BatchLookup lookup, Map<String, String> requested) {
+        long start = System.nanoTime();
+        try {
+            return resolveAll(realm, lookup, requested);
+        } finally {
+            metrics.get(Operation.GET_USERS_BATCH).record(start, requested.keySet());
+        }
+    }
 
-            @Override
-            public String getEmail() {
-                return email;
+    private Map<String, UserModel> resolveAll(RealmModel realm, BatchLookup lookup, Map<String, String> requested) {
+        Map<String, UserModel> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String value : requested.keySet()) {
+            UserModel cached = switch (lookup) {
+                case ID -> sessionCache.getById(value);
+                case USERNAME -> sessionCache.getByUsername(value);
+                case EMAIL -> sessionCache.getByEmail(value);
+            };
+            if (cached != null) {
+                found.put(value, cached);
+                continue;
             }
-
-            @Override
-            public void setEmail(String email) {
-                // Implement if needed
+            ExternalUser user = switch (lookup) {
+                case ID -> userCache.getById(value);
+                case USERNAME -> userCache.getByUsername(value);
+                case EMAIL -> userCache.getByEmail(value);
+            };
+            if (user != null) {
+                found.put(value, toUserModel(realm, user));
+            } else if (lookup == BatchLookup.ID || !isKnownMissing(lookup.negativeType, value)) {
+                missing.add(value);
             }
+        }
 
-            @Override
-            public String getFirstName() {
-                return firstName;
+        if (!missing.isEmpty()) {
+            try {
+                List<ExternalUser> queried = queryUsers(lookup, missing);
+                List<UserModel> userModels = mapPage(queried, realm);
+                for (int i = 0; i < queried.size(); i++) {
+                    ExternalUser user = queried.get(i);
+                    String value = switch (lookup) {
+                        case ID -> user.getUuid();
+                        case USERNAME -> user.getUsername();
+                        case EMAIL -> user.getEmail();
+                    };
+                    UserModel local = localCopy(realm, user.getUuid());
+                    UserModel userModel = local != null ? local : userModels.get(i);
+                    sessionCache.put(user.getUuid(), userModel);
+                    found.put(value, userModel);
+                }
+                if (lookup != BatchLookup.ID) {
+                    for (String value : missing) {
+                        if (!found.containsKey(value)) {
+                            negativeLookupCache.markMissing(lookup.negativeType, value);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                logFailure(e, "Error fetching {} users by " + lookup, missing.size());
+                metrics.get(Operation.GET_USERS_BATCH).recordError();
             }
+        }
 
-            @Override
-            public void setFirstName(String firstName) {
-                // Implement if needed
+        Map<String, UserModel> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : requested.entrySet()) {
+            UserModel user = found.get(entry.getKey());
+            if (user != null) {
+                result.put(entry.getValue(), user);
             }
+        }
+        return result;
+    }
 
-            @Override
-            public String getLastName() {
-                return lastName;
+    private List<ExternalUser> queryUsers(BatchLookup lookup, List<String> values) throws SQLException {
+        String sql = "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE " + lookup.predicate;
+        OperationMetrics batchMetrics = metrics.get(Operation.GET_USERS_BATCH);
+        List<ExternalUser> users = callDatabase(() -> {
+            List<ExternalUser> found = new ArrayList<>(values.size());
+            long start = System.nanoTime();
+            try (Connection connection = getReadConnection();
+                 PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setQueryTimeout(lookupTimeoutSeconds);
+                String[] array = values.toArray(new String[0]);
+                stmt.setArray(1, connection.createArrayOf("text", array));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    batchMetrics.recordQuery(start);
+                    slowQueries.record(Operation.GET_USERS_BATCH, sql, List.of((Object) array), start);
+                    while (rs.next()) {
+                        found.add(remember(mapRow(rs)));
+                    }
+                }
             }
+            return found;
+        });
+        batchMetrics.recordRows(users.size());
+        return users;
+    }
 
-            @Override
-            public void setLastName(String lastName) {
-                // Implement if needed
+    /**
+     * One malformed value would make the {@code ::uuid[]} cast fail the whole batch.
+     */
+    private static boolean isUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    private enum BatchLookup {
+        ID("uuid = ANY(?::uuid[])", (char) 0),
+        USERNAME("username = ANY(?)", NegativeLookupCache.USERNAME),
+        EMAIL("email = ANY(?)", NegativeLookupCache.EMAIL);
+
+        private final String predicate;
+        private final char negativeType;
+
+        BatchLookup(String predicate, char negativeType) {
+            this.predicate = predicate;
+            this.negativeType = negativeType;
+        }
+    }
+
+    /**
+     * Whether a username or email can be answered with "not found" without a query.
+     */
+    private boolean isKnownMissing(char type, String value) {
+        return negativeLookupCache.isKnownMissing(type, value)
+                || (membershipFilter != null && membershipFilter.isDefinitelyAbsent(type, value));
+    }
 
-            @Override
-            public String getId() {
-                return "f:"+model.getId()+":"+uuid;
+    private UserModel toUserModel(RealmModel realm, ExternalUser user) {
+        if (user == null) {
+            return null;
+        }
+        UserModel local = localCopy(realm, user.getUuid());
+        UserModel userModel = local != null ? local : mapUser(user, realm);
+        sessionCache.put(user.getUuid(), userModel);
+        return userModel;
+    }
+
+    /**
+     * @return the user imported by a sync (see {@link LocalUserImporter}), which is the
+     * one Keycloak works with once it exists, or {@code null}
+     */
+    private UserModel localCopy(RealmModel realm, String uuid) {
+        if (!usersImported) {
+            return null;
+        }
+        UserModel local = UserStoragePrivateUtil.userLocalStorage(session).getUserById(realm, uuid);
+        return local != null && model.getId().equals(local.getFederationLink()) ? local : null;
+    }
+
+    /**
+     * Keycloak lists the local copies of imported users next to what this provider finds, so like the LDAP provider
+     * searches only return the users that were not imported yet.
+     */
+    private List<UserModel> mapSearchPage(List<ExternalUser> users, RealmModel realm) {
+        if (!usersImported) {
+            return mapPage(users, realm);
+        }
+        List<ExternalUser> notImported = new ArrayList<>(users.size());
+        for (ExternalUser user : users) {
+            if (localCopy(realm, user.getUuid()) == null) {
+                notImported.add(user);
             }
-        };
+        }
+        return mapPage(notImported, realm);
+    }
+
+    private ExternalUser mapRow(ResultSet rs) throws SQLException {
+        return new ExternalUser(
+                rs.getString("uuid"),
+                rs.getString("username"),
+                rs.getString("email"),
+                rs.getString("first_name"),
+                rs.getString("last_name"));
+    }
+
+    /**
+     * Builds the session-bound adapter Keycloak works with, package-private for the benchmarks.
+     */
+    UserModel mapUser(ExternalUser user, RealmModel realm) {
+        return mapUser(user, realm, AttributeBatch.single(user.getUuid(), this::loadAttributes));
+    }
+
+    private UserModel mapUser(ExternalUser user, RealmModel realm, AttributeBatch attributeBatch) {
+        return new ExternalUserAdapter(session, realm, model, user, attributeBatch);
+    }
+
+    /**
+     * Maps a page of users whose attributes are read together once one of them needs its attributes.
+     */
+    private List<UserModel> mapPage(List<ExternalUser> users, RealmModel realm) {
+        List<String> uuids = new ArrayList<>(users.size());
+        for (ExternalUser user : users) {
+            uuids.add(user.getUuid());
+        }
+        AttributeBatch attributeBatch = new AttributeBatch(uuids, this::loadAttributes);
+        List<UserModel> page = new ArrayList<>(users.size());
+        for (ExternalUser user : users) {
+            page.add(mapUser(user, realm, attributeBatch));
+        }
+        return page;
+    }
+
+    /**
+     * Reads the attributes of a batch of users with one query, {@code null} when the database can't answer.
+     */
+    private Map<String, UserAttributes> loadAttributes(Collection<String> uuids) {
+        OperationMetrics attributeMetrics = metrics.get(Operation.GET_ATTRIBUTES);
+        long start = System.nanoTime();
+        try {
+            return callDatabase(() -> {
+                Map<String, UserAttributes.Builder> builders = new HashMap<>();
+                long queryStart = System.nanoTime();
+                try (Connection connection = getReadConnection();
+                     PreparedStatement stmt = connection.prepareStatement(ATTRIBUTES_SQL)) {
+                    stmt.setQueryTimeout(lookupTimeoutSeconds);
+                    String[] array = uuids.toArray(new String[0]);
+                    stmt.setArray(1, connection.createArrayOf("text", array));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        attributeMetrics.recordQuery(queryStart);
+                        slowQueries.record(Operation.GET_ATTRIBUTES, ATTRIBUTES_SQL, List.of((Object) array), queryStart);
+                        long rows = 0;
+                        while (rs.next()) {
+                            builders.computeIfAbsent(rs.getString(1), uuid -> UserAttributes.builder())
+                                    .add(rs.getString(2), rs.getString(3));
+                            rows++;
+                        }
+                        attributeMetrics.recordRows(rows);
+                    }
+                }
+                Map<String, UserAttributes> byUser = new HashMap<>(builders.size() * 2);
+                builders.forEach((uuid, builder) -> byUser.put(uuid, builder.build()));
+                return byUser;
+            });
+        } catch (SQLException e) {
+            logFailure(e, "Error loading the attributes of {} users", uuids.size());
+            attributeMetrics.recordError();
+            return null;
+        } finally {
+            attributeMetrics.record(start, uuids.size());
+        }
     }
 
+    /**
+     * The measured time ends when the first rows are available, rows are counted as the caller consumes them.
+     */
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        logger.info("searchForUserStream, params = " + params);
-        List<UserModel> users = new ArrayList<>();
-
-        StringBuilder sqlBuilder = new StringBuilder("SELECT uuid, username, email, first_name, last_name FROM users WHERE 1=1");
-        List<Object> parameters = new ArrayList<>();
-
-        boolean exact = Boolean.parseBoolean(params.getOrDefault(UserModel.EXACT, "false"));
-
-        if (params.containsKey(UserModel.SEARCH)) {
-            // Handle the SEARCH parameter
-            String search = params.get(UserModel.SEARCH).trim();
-
-            // If search is "*", return all users without additional filters
-            if (!"*".equals(search)) {
-                String[] searchTerms = search.split("\\s+");
-                sqlBuilder.append(" AND (");
-                List<String> searchConditions = new ArrayList<>();
-                for (String term : searchTerms) {
-                    String condition = "(LOWER(username) LIKE ? OR LOWER(email) LIKE ? OR LOWER(first_name) LIKE ? OR LOWER(last_name) LIKE ?)";
-                    searchConditions.add(condition);
-                    String likeTerm = "%" + term.toLowerCase() + "%";
-                    parameters.add(likeTerm);
-                    parameters.add(likeTerm);
-                    parameters.add(likeTerm);
-                    parameters.add(likeTerm);
-                }
-                sqlBuilder.append(String.join(" OR ", searchConditions));
-                sqlBuilder.append(")");
-            }
-        } else {
-            // Handle individual parameters when SEARCH is not present
-
-            if (params.containsKey(UserModel.USERNAME)) {
-                String username = params.get(UserModel.USERNAME);
-                sqlBuilder.append(" AND ");
-                if (exact) {
-                    sqlBuilder.append("LOWER(username) = ?");
-                    parameters.add(username.toLowerCase());
-                } else {
-                    sqlBuilder.append("LOWER(username) LIKE ?");
-                    parameters.add("%" + username.toLowerCase() + "%");
-                }
-            }
+        long start = System.nanoTime();
+        try {
+            return search(realm, params, firstResult, maxResults);
+        } finally {
+            metrics.get(Operation.SEARCH_FOR_USER).record(start, params);
+        }
+    }
 
-            if (params.containsKey(UserModel.EMAIL)) {
-                String email = params.get(UserModel.EMAIL);
-                sqlBuilder.append(" AND ");
-                if (exact) {
-                    sqlBuilder.append("LOWER(email) = ?");
-                    parameters.add(email.toLowerCase());
-                } else {
-                    sqlBuilder.append("LOWER(email) LIKE ?");
-                    parameters.add("%" + email.toLowerCase() + "%");
-                }
-            }
+    private Stream<UserModel> search(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
+        logger.debug("searchForUserStream, params = {}", params);
 
-            if (params.containsKey(UserModel.FIRST_NAME)) {
-                String firstName = params.get(UserModel.FIRST_NAME);
-                sqlBuilder.append(" AND ");
-                if (exact) {
-                    sqlBuilder.append("LOWER(first_name) = ?");
-                    parameters.add(firstName.toLowerCase());
-                } else {
-                    sqlBuilder.append("LOWER(first_name) LIKE ?");
-                    parameters.add("%" + firstName.toLowerCase() + "%");
-                }
+        SearchBackend backend = resources.getSearchBackend();
+        UserSearchQuery query = UserSearchQuery.compile(params, backend);
+        UserSnapshot snapshot = currentSnapshot();
+        UserSearchQuery.Matcher matcher = snapshot != null && userSnapshot.isSearchable() ? query.matcher() : null;
+        if (matcher != null) {
+            return mapSearchPage(snapshot.search(matcher, firstResult != null && firstResult > 0 ? firstResult : 0,
+                    maxResults != null && maxResults > 0 ? maxResults : Integer.MAX_VALUE), realm).stream();
+        }
+        try {
+            return openSearch(Operation.SEARCH_FOR_USER, realm, query, firstResult, maxResults);
+        } catch (SQLException e) {
+            if (backend != SearchBackend.LIKE && UNDEFINED_COLUMN.equals(e.getSQLState())) {
+                logger.warn("Search backend {} is not set up in the database, falling back to LIKE: {}",
+                        backend, e.getMessage());
+                resources.fallBackToLikeSearch();
+                return search(realm, params, firstResult, maxResults);
             }
+            logFailure(e, "Error searching for users with {}", params);
+            metrics.get(Operation.SEARCH_FOR_USER).recordError();
+            return Stream.empty();
+        }
+    }
 
-            if (params.containsKey(UserModel.LAST_NAME)) {
-                String lastName = params.get(UserModel.LAST_NAME);
-                sqlBuilder.append(" AND ");
-                if (exact) {
-                    sqlBuilder.append("LOWER(last_name) = ?");
-                    parameters.add(lastName.toLowerCase());
-                } else {
-                    sqlBuilder.append("LOWER(last_name) LIKE ?");
-                    parameters.add("%" + lastName.toLowerCase() + "%");
-                }
-            }
+    @Override
+    public int getUsersCount(RealmModel realm) {
+        return getUsersCount(realm, Map.of());
+    }
 
-            if (params.containsKey(UserModel.EMAIL_VERIFIED)) {
-                boolean emailVerified = Boolean.parseBoolean(params.get(UserModel.EMAIL_VERIFIED));
-                sqlBuilder.append(" AND email_verified = ?");
-                parameters.add(emailVerified);
-            }
+    /**
+     * Service accounts live in Keycloak's own storage, this provider has none to leave out.
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        return getUsersCount(realm, Map.of());
+    }
+
+    @Override
+    @SuppressWarnings("deprecation") // still called by Keycloak 24, the replacement is the Map variant below
+    public int getUsersCount(RealmModel realm, String search) {
+        return getUsersCount(realm, Map.of(UserModel.SEARCH, search));
+    }
+
+    /**
+     * Counts what {@link #searchForUserStream(RealmModel, Map, Integer, Integer)} finds for the same parameters.
+     * Once users are imported Keycloak counts their local copies, and like the LDAP provider this one adds none.
+     */
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params) {
+        if (usersImported) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            return (int) Math.min(count(params), Integer.MAX_VALUE);
+        } finally {
+            metrics.get(Operation.GET_USERS_COUNT).record(start, params);
+        }
+    }
 
-            if (params.containsKey(UserModel.ENABLED)) {
-                boolean enabled = Boolean.parseBoolean(params.get(UserModel.ENABLED));
-                sqlBuilder.append(" AND enabled = ?");
-                parameters.add(enabled);
+    private long count(Map<String, String> params) {
+        logger.debug("getUsersCount, params = {}", params);
+
+        SearchBackend backend = resources.getSearchBackend();
+        UserSearchQuery query = UserSearchQuery.compile(params, backend);
+        UserSnapshot snapshot = currentSnapshot();
+        UserSearchQuery.Matcher matcher = snapshot != null && userSnapshot.isSearchable() ? query.matcher() : null;
+        if (matcher != null) {
+            return snapshot.count(matcher);
+        }
+        long count = userCounts.get(query.getFilterKey());
+        if (count >= 0) {
+            return count;
+        }
+        try {
+            if (query.isUnfiltered() && resources.getConfig().getCountMode() == CountMode.ESTIMATED) {
+                count = estimateUsers();
             }
+            if (count < 0) {
+                count = countUsers(query);
+            }
+        } catch (SQLException e) {
+            if (backend != SearchBackend.LIKE && UNDEFINED_COLUMN.equals(e.getSQLState())) {
+                logger.warn("Search backend {} is not set up in the database, falling back to LIKE: {}",
+                        backend, e.getMessage());
+                resources.fallBackToLikeSearch();
+                return count(params);
+            }
+            logFailure(e, "Error counting users with {}", params);
+            metrics.get(Operation.GET_USERS_COUNT).recordError();
+            return 0;
+        }
+        userCounts.put(query.getFilterKey(), count);
+        return count;
+    }
 
-            // Handle custom user attributes
-            for (Map.Entry<String, String> entry : params.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-
-                // Skip known parameters
-                if (UserModel.SEARCH.equals(key) ||
-                        UserModel.USERNAME.equals(key) ||
-                        UserModel.EMAIL.equals(key) ||
-                        UserModel.FIRST_NAME.equals(key) ||
-                        UserModel.LAST_NAME.equals(key) ||
-                        UserModel.EXACT.equals(key) ||
-                        UserModel.EMAIL_VERIFIED.equals(key) ||
-                        UserModel.ENABLED.equals(key)) {
-                    continue;
+    private long countUsers(UserSearchQuery query) throws SQLException {
+        String sql = searchTemplates.countSql(query);
+        OperationMetrics countMetrics = metrics.get(Operation.GET_USERS_COUNT);
+        return callDatabase(() -> {
+            long start = System.nanoTime();
+            try (Connection connection = getReadConnection();
+                 PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setQueryTimeout(searchTimeoutSeconds);
+                List<Object> parameters = query.getParameters();
+                for (int i = 0; i < parameters.size(); i++) {
+                    stmt.setObject(i + 1, parameters.get(i));
                 }
-
-                // Assume the key is a custom attribute
-                sqlBuilder.append(" AND id IN (SELECT user_id FROM user_attributes WHERE name = ? AND value ");
-                if (exact) {
-                    sqlBuilder.append("= ?)");
-                    parameters.add(key);
-                    parameters.add(value);
-                } else {
-                    sqlBuilder.append("LIKE ?)");
-                    parameters.add(key);
-                    parameters.add("%" + value + "%");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    countMetrics.recordQuery(start);
+                    slowQueries.record(Operation.GET_USERS_COUNT, sql, parameters, start);
+                    rs.next();
+                    return rs.getLong(1);
                 }
             }
-        }
+        });
+    }
+
+    /**
+     * @return the row count of the last {@code ANALYZE}, or {@code -1} if the table was never analyzed
+     */
+    private long estimateUsers() throws SQLException {
+        return callDatabase(() -> {
+            try (Connection connection = getReadConnection();
+                 PreparedStatement stmt = connection.prepareStatement(ESTIMATE_USERS_SQL);
+                 ResultSet rs = stmt.executeQuery()) {
+                // PostgreSQL 14 reports -1 before the first ANALYZE, older versions 0
+                long estimate = rs.next() ? rs.getLong(1) : -1;
+                return estimate > 0 ? estimate : -1;
+            }
+        });
+    }
+
+    private Stream<UserModel> openSearch(Operation operation, RealmModel realm, UserSearchQuery query,
+                                         Integer firstResult, Integer maxResults) throws SQLException {
+        List<Object> parameters = new ArrayList<>(query.getParameters());
 
-        // Add ordering and pagination
-        sqlBuilder.append(" ORDER BY username ASC");
-        if (maxResults != null && maxResults > 0) {
-            sqlBuilder.append(" LIMIT ?");
+        // Continue right after the previous page if we saw where it ended, usernames are unique
+        int offset = firstResult != null && firstResult > 0 ? firstResult : 0;
+        String afterUsername = offset > 0 ? keysetBookmarks.get(query.getFilterKey(), offset) : null;
+        if (afterUsername != null) {
+            parameters.add(afterUsername);
+        }
+        boolean limit = maxResults != null && maxResults > 0;
+        if (limit) {
             parameters.add(maxResults);
         }
-        if (firstResult != null && firstResult > 0) {
-            sqlBuilder.append(" OFFSET ?");
-            parameters.add(firstResult);
+        boolean skip = offset > 0 && afterUsername == null;
+        if (skip) {
+            parameters.add(offset);
         }
 
-        String sql = sqlBuilder.toString();
-        logger.info("sql=" + sql);
+        String sql = searchTemplates.sql(query, afterUsername != null, limit, skip);
+        logger.trace("sql={}", sql);
 
-        try (Connection connection = getConnection();
-             PreparedStatement stmt = connection.prepareStatement(sql)) {
+        OperationMetrics operationMetrics = metrics.get(operation);
+        // the breaker only covers opening the cursor, reading the rows is up to the caller
+        // attributes are read per batch, the whole page with one query if it fits into one fetch
+        int fetchSize = resources.getConfig().getFetchSize();
+        int batchSize = limit ? Math.min(maxResults, fetchSize) : fetchSize;
+        return circuitBreaker.call(() -> {
+            // the cursor keeps its connection until it is closed, and its permit of the blocking bridge with it
+            Runnable release = blockingBridge.acquire();
+            try {
+                return openCursor(operation, realm, query, sql, parameters, offset, batchSize, operationMetrics,
+                        release);
+            } catch (SQLException | RuntimeException e) {
+                release.run();
+                throw e;
+            }
+        });
+    }
+
+    private Stream<UserModel> openCursor(Operation operation, RealmModel realm, UserSearchQuery query, String sql,
+                                         List<Object> parameters, int offset, int batchSize,
+                                         OperationMetrics operationMetrics, Runnable release)
+            throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = getReadConnection();
+        try {
+            connection.setAutoCommit(false); // lets PgJDBC stream the rows through a cursor
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            stmt.setFetchSize(resources.getConfig().getFetchSize());
+            stmt.setQueryTimeout(searchTimeoutSeconds);
 
             // Set parameters
             for (int i = 0; i < parameters.size(); i++) {
                 stmt.setObject(i + 1, parameters.get(i));
             }
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    users.add(mapUser(rs, realm));
-                }
-            }
+            ResultSet rs = stmt.executeQuery();
+            operationMetrics.recordQuery(start);
+            slowQueries.record(operation, sql, parameters, start);
+            KeysetBookmarks.Page page = keysetBookmarks.page(query.getFilterKey(), offset);
+            CursorStream<UserModel> cursor = CursorStream.open(connection, stmt, rs, row -> {
+                ExternalUser user = mapRow(row);
+                operationMetrics.recordRows(1);
+                page.row(user.getUsername());
+                return user;
+            }, batchSize, users -> mapSearchPage(users, realm), page::end).whenReleased(release);
+            openCursors.removeIf(CursorStream::isClosed);
+            openCursors.add(cursor);
+            return cursor.stream();
         } catch (SQLException e) {
-            logger.error("Error searching for users", e);
+            try {
+                connection.close();
+            } catch (SQLException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
         }
-
-        return users.stream();
     }
 
+    /**
+     * Members are the users whose group attribute (see {@link ExternalDatabaseConfig#GROUP_ATTRIBUTE}) equals the
+     * group name. Without that setting groups only hold the members Keycloak keeps in its own federated storage,
+     * which it lists itself.
+     */
     @Override
-    public Stream<UserModel> getGroupMembersStream(RealmModel realmModel, GroupModel groupModel, Integer integer, Integer integer1) {
-        logger.info("getGroupMembers");
-        return Stream.empty();
+    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
+        logger.debug("getGroupMembers, group = {}", group.getName());
+        String groupAttribute = resources.getConfig().getGroupAttribute();
+        if (groupAttribute == null) {
+            return Stream.empty();
+        }
+        return streamUsers(Operation.GET_GROUP_MEMBERS, realm, UserSearchQuery.attribute(groupAttribute, group.getName()),
+                firstResult, maxResults);
     }
 
     @Override
-    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realmModel, String s, String s1) {
-        logger.info("searchForUserByUserAttribute");
-        return Stream.empty();
+    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
+        logger.debug("searchForUserByUserAttribute, name = {}", attrName);
+        // Keycloak pages this stream itself, the cursor only fetches what it consumes
+        return streamUsers(Operation.SEARCH_BY_ATTRIBUTE, realm, UserSearchQuery.attribute(attrName, attrValue), null, null);
+    }
+
+    private Stream<UserModel> streamUsers(Operation operation, RealmModel realm, UserSearchQuery query,
+                                          Integer firstResult, Integer maxResults) {
+        OperationMetrics operationMetrics = metrics.get(operation);
+        long start = System.nanoTime();
+        try {
+            return openSearch(operation, realm, query, firstResult, maxResults);
+        } catch (SQLException e) {
+            logFailure(e, "Error searching for users with {}", query.getParameters());
+            operationMetrics.recordError();
+            return Stream.empty();
+        } finally {
+            operationMetrics.record(start, query.getParameters());
+        }
+    }
+
+    /**
+     * Drops one user from the caches of this component. In {@link CacheMode#CLUSTERED} mode the
+     * invalidation is also sent to the other Keycloak nodes.
+     */
+    public void invalidateUser(String uuid) {
+        sessionCache.invalidate(uuid);
+        userCache.invalidate(uuid);
+        applyToSnapshot(UserCacheInvalidationEvent.byId(model.getId(), uuid));
+        broadcast(UserCacheInvalidationEvent.byId(model.getId(), uuid));
+    }
+
+    /**
+     * Drops every cached user of this component, on all nodes in {@link CacheMode#CLUSTERED} mode.
+     */
+    public void invalidateAll() {
+        sessionCache.clear();
+        userCache.invalidateAll();
+        negativeLookupCache.invalidateAll();
+        userCounts.invalidateAll();
+        applyToSnapshot(UserCacheInvalidationEvent.all(model.getId()));
+        broadcast(UserCacheInvalidationEvent.all(model.getId()));
+    }
+
+    /**
+     * The in-memory users, {@code null} when they are disabled or not loaded yet and the database has to answer.
+     */
+    private UserSnapshot currentSnapshot() {
+        return userSnapshot != null ? userSnapshot.current() : null;
+    }
+
+    private void applyToSnapshot(UserCacheInvalidationEvent event) {
+        if (userSnapshot != null) {
+            userSnapshot.apply(event);
+        }
+    }
+
+    public CacheStatistics getCacheStatistics() {
+        return resources.getCacheStatistics();
+    }
+
+    @SuppressWarnings("deprecation") // ClusterProvider is still the only way to reach the other nodes in Keycloak 24
+    private void broadcast(UserCacheInvalidationEvent event) {
+        if (resources.getConfig().getCacheMode() != CacheMode.CLUSTERED) {
+            return;
+        }
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            logger.warn("Clustered user cache configured but no ClusterProvider available, {} not sent", event);
+            return;
+        }
+        cluster.notify(UserCacheInvalidationEvent.TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
     }
 
     @Override
     public void close() {
+        // search streams Keycloak did not drain still hold a connection
+        openCursors.forEach(CursorStream::close);
+        openCursors.clear();
+        prefetchedHash.clear();
     }
 }
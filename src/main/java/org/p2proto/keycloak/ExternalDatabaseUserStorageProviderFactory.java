@@ -3,49 +3,346 @@ package org.p2proto.keycloak;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.keycloak.Config;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.p2proto.keycloak.cache.CacheMode;
+import org.p2proto.keycloak.cache.UserChangeListener;
+import org.p2proto.keycloak.cache.UserCacheInvalidationEvent;
+import org.p2proto.keycloak.credential.PasswordVerificationExecutor;
+import org.p2proto.keycloak.metrics.ProviderMetrics;
+import org.p2proto.keycloak.sync.LocalUserImporter;
+import org.p2proto.keycloak.sync.UserSyncReader;
+import org.postgresql.Driver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ExternalDatabaseUserStorageProviderFactory implements UserStorageProviderFactory<ExternalDatabaseUserStorageProvider> {
+public class ExternalDatabaseUserStorageProviderFactory
+        implements UserStorageProviderFactory<ExternalDatabaseUserStorageProvider>, ImportSynchronization {
 
     private static final Logger logger = LoggerFactory.getLogger(ExternalDatabaseUserStorageProviderFactory.class);
 
     private static final String NO_DB_URL = "DB_URL environment variable is not set";
     private static final String NO_DB_USERNAME = "DB_USERNAME environment variable is not set";
     private static final String NO_DB_PASSWORD = "DB_PASSWORD environment variable is not set";
+    private static final String POOL_NAME = "KeycloakUserStoragePool";
 
-    private HikariDataSource dataSource;
+    private String dbUrl;
+    private String dbUsername;
+    private String dbPassword;
+    private int prepareThreshold;
+    private int preparedStatementCacheQueries;
+    private int preparedStatementCacheSizeMiB;
+    private PasswordVerificationExecutor passwordVerifier;
+    private AutoCloseable passwordVerifierMetrics;
+    private ScheduledExecutorService scheduler;
+    private UserChangeListener changeListener;
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    private final ConcurrentMap<String, ComponentResources> components = new ConcurrentHashMap<>();
+    private final ReentrantLock clusterListenerLock = new ReentrantLock();
+    private volatile boolean clusterListenerRegistered;
 
     @Override
     public void init(Config.Scope config) {
         UserStorageProviderFactory.super.init(config);
         try {
-            HikariConfig hikariConfig = new HikariConfig();
-            hikariConfig.setJdbcUrl(getDbUrl());
-            hikariConfig.setUsername(getDbUsername());
-            hikariConfig.setPassword(getDbPassword());
-            hikariConfig.setMaximumPoolSize(10);
-            hikariConfig.setMinimumIdle(2);
-            hikariConfig.setIdleTimeout(30000);
-            hikariConfig.setConnectionTimeout(30000);
-            hikariConfig.setPoolName("KeycloakUserStoragePool");
-            this.dataSource = new HikariDataSource(hikariConfig);
+            this.dbUrl = getDbUrl();
+            this.dbUsername = getDbUsername();
+            this.dbPassword = getDbPassword();
         } catch (IllegalStateException e) {
             logger.error(e.getMessage());
             throw e;
         }
+        // The provider only sends a small, fixed set of statement texts (searches come from templates),
+        // so PgJDBC can switch them to server-side prepared statements right away and keep them per connection
+        this.prepareThreshold = config.getInt("prepareThreshold", 1);
+        this.preparedStatementCacheQueries = config.getInt("preparedStatementCacheQueries", 256);
+        this.preparedStatementCacheSizeMiB = config.getInt("preparedStatementCacheSizeMiB", 5);
+
+        // BCrypt is CPU bound, so by default there is one verifier thread per core
+        int hashThreads = config.getInt("hashThreads", Runtime.getRuntime().availableProcessors());
+        int hashQueueSize = config.getInt("hashQueueSize", hashThreads * 16);
+        long hashTimeoutMillis = config.getLong("hashTimeoutMillis", 10000L);
+        this.passwordVerifier = new PasswordVerificationExecutor(hashThreads, hashQueueSize, hashTimeoutMillis);
+        logger.info("Password verification pool: threads={}, queueSize={}, timeout={}ms",
+                hashThreads, hashQueueSize, hashTimeoutMillis);
+        this.passwordVerifierMetrics = ProviderMetrics.registerPasswordVerifier(passwordVerifier);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "p2-user-storage-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // every node listens itself, so the changes don't need to be sent through the cluster
+        if (config.getBoolean("changeNotifications", false)) {
+            long coalesceMillis = config.getLong("changeCoalesceMillis", 50L);
+            this.changeListener = new UserChangeListener(this::connectForNotifications, coalesceMillis,
+                    this::applyUserChanges);
+            this.changeListener.start();
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
+
+    private void applyUserChanges(Set<String> uuids, boolean keysChanged) {
+        for (ComponentResources resources : components.values()) {
+            resources.applyUserChanges(uuids, keysChanged);
+            if (uuids != null) {
+                importChangedUsers(resources, uuids);
+            }
+        }
+    }
+
+    /**
+     * Updates the local copies of changed users right away instead of at the next sync, for components that import
+     * users. Users deleted from {@code platform.users} keep their local copy, as with a sync; when everything
+     * changed, the copies are updated by the next sync.
+     */
+    private void importChangedUsers(ComponentResources resources, Set<String> uuids) {
+        KeycloakSessionFactory factory = sessionFactory;
+        String realmId = resources.getRealmId();
+        if (factory == null || realmId == null) {
+            return;
+        }
+        String componentId = resources.getComponentId();
+        boolean imported = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel model = realm == null ? null : realm.getComponent(componentId);
+            return model != null && LocalUserImporter.hasImportedUsers(model);
+        });
+        if (!imported) {
+            return;
+        }
+        UserSyncReader reader = new UserSyncReader(resources.getDataSource(), resources.getConfig().getSyncBatchSize(),
+                "changes of " + componentId);
+        LocalUserImporter importer = new LocalUserImporter(factory, realmId, componentId);
+        try {
+            reader.readByIds(uuids, importer);
+            logger.debug("Updated local copies of changed users of component {}: {}", componentId,
+                    importer.getResult().getStatus());
+        } catch (SQLException e) {
+            logger.warn("Could not update local copies of changed users of component {}: {}", componentId,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * The connection {@link UserChangeListener} listens on. It stays open for the life of the factory, so it is
+     * kept out of the component pools.
+     */
+    private Connection connectForNotifications() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", dbUsername);
+        props.setProperty("password", dbPassword);
+        props.setProperty("ApplicationName", "keycloak-user-storage-changes");
+        props.setProperty("tcpKeepAlive", "true");
+        Connection connection = new Driver().connect(dbUrl, props);
+        if (connection == null) {
+            throw new SQLException("Not a PostgreSQL URL: " + dbUrl);
+        }
+        return connection;
     }
 
     @Override
     public ExternalDatabaseUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        return new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+        ComponentResources resources = resourcesFor(model);
+        if (resources.getConfig().getCacheMode() == CacheMode.CLUSTERED) {
+            registerClusterListener(session);
+        }
+        return new ExternalDatabaseUserStorageProvider(session, model, resources);
+    }
+
+    private ComponentResources resourcesFor(ComponentModel model) {
+        return components.compute(model.getId(), (id, existing) -> {
+            if (existing != null && !existing.isStale(model)) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.close();
+            }
+            HikariDataSource pool = createPool(id, ExternalDatabaseConfig.from(model));
+            try {
+                ComponentResources created = new ComponentResources(model, pool, passwordVerifier, scheduler);
+                created.publishMetrics();
+                return created;
+            } catch (RuntimeException e) {
+                pool.close();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Imports all users of {@code platform.users} into Keycloak's local storage. Keycloak only calls this for
+     * components with "Import users" enabled, from its sync timer or the admin console, never on a login.
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        return importUsers(sessionFactory, realmId, model, null);
+    }
+
+    /**
+     * Imports the users whose {@code updated_at} is later than the last sync.
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+                                           UserStorageProviderModel model) {
+        return importUsers(sessionFactory, realmId, model, lastSync);
+    }
+
+    private SynchronizationResult importUsers(KeycloakSessionFactory sessionFactory, String realmId,
+                                              UserStorageProviderModel model, Date since) {
+        ComponentResources resources = resourcesFor(model);
+        UserSyncReader reader = new UserSyncReader(resources.getDataSource(), resources.getConfig().getSyncBatchSize(),
+                "sync of " + model.getName() + " (" + model.getId() + ")");
+        LocalUserImporter importer = new LocalUserImporter(sessionFactory, realmId, model.getId());
+        try {
+            if (since == null) {
+                reader.readAll(importer);
+            } else {
+                reader.readChangedSince(since.getTime(), importer);
+            }
+        } catch (SQLException e) {
+            logger.error("User sync of component {} stopped: {}", model.getId(), e.getMessage(), e);
+        }
+        SynchronizationResult result = importer.getResult();
+        logger.info("User sync of component {} finished: {}", model.getId(), result.getStatus());
+        return result;
+    }
+
+    /**
+     * Each component gets its own pool, sized and tuned by its settings, so that one busy realm can't
+     * exhaust the connections of the others. The pool is closed together with the component's resources.
+     */
+    private HikariDataSource createPool(String componentId, ExternalDatabaseConfig config) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl(dbUrl);
+        hikariConfig.setUsername(dbUsername);
+        hikariConfig.setPassword(dbPassword);
+        hikariConfig.setMaximumPoolSize(config.getPoolMaxSize());
+        hikariConfig.setMinimumIdle(config.getPoolMinIdle());
+        hikariConfig.setIdleTimeout(30000);
+        hikariConfig.setConnectionTimeout(config.getConnectionTimeoutMillis());
+        hikariConfig.setLeakDetectionThreshold(config.getLeakDetectionThresholdMillis());
+        // don't fail provider creation while the database is down, lookups report the error instead
+        hikariConfig.setInitializationFailTimeout(-1);
+        hikariConfig.setPoolName(POOL_NAME + "-" + componentId);
+        hikariConfig.addDataSourceProperty("prepareThreshold", prepareThreshold);
+        hikariConfig.addDataSourceProperty("preparedStatementCacheQueries",
+                config.getPreparedStatementCacheQueries() >= 0
+                        ? config.getPreparedStatementCacheQueries() : preparedStatementCacheQueries);
+        hikariConfig.addDataSourceProperty("preparedStatementCacheSizeMiB",
+                config.getPreparedStatementCacheSizeMiB() >= 0
+                        ? config.getPreparedStatementCacheSizeMiB() : preparedStatementCacheSizeMiB);
+        hikariConfig.addDataSourceProperty("reWriteBatchedInserts", config.isReWriteBatchedInserts());
+        if (config.getStatementTimeoutMillis() > 0) {
+            hikariConfig.addDataSourceProperty("options", "-c statement_timeout=" + config.getStatementTimeoutMillis());
+        }
+        ProviderMetrics.configurePool(hikariConfig);
+        logger.info("Connection pool {}: maxSize={}, minIdle={}, connectionTimeout={}ms, statementTimeout={}ms",
+                hikariConfig.getPoolName(), config.getPoolMaxSize(), config.getPoolMinIdle(),
+                config.getConnectionTimeoutMillis(), config.getStatementTimeoutMillis());
+        return new HikariDataSource(hikariConfig);
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return ExternalDatabaseConfig.configProperties();
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        // Keycloak updates the component after each sync run to store lastSync, which must not cost the pool
+        ComponentResources resources = components.get(newModel.getId());
+        if (resources != null && !resources.isStale(newModel)) {
+            return;
+        }
+        // settings have changed, resources and pool are rebuilt with the new model on the next create()
+        closeComponent(newModel.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeComponent(model.getId());
+    }
+
+    private void closeComponent(String componentId) {
+        ComponentResources resources = components.remove(componentId);
+        if (resources != null) {
+            resources.close();
+        }
+    }
+
+    /**
+     * The cluster provider is only reachable through a session, so the listener is registered
+     * the first time a provider with a clustered cache is created.
+     */
+    @SuppressWarnings("deprecation") // ClusterProvider is still the only way to reach the other nodes in Keycloak 24
+    private void registerClusterListener(KeycloakSession session) {
+        if (clusterListenerRegistered) {
+            return;
+        }
+        // a lock instead of synchronized, which would pin a virtual thread for the provider lookup
+        clusterListenerLock.lock();
+        try {
+            if (clusterListenerRegistered) {
+                return;
+            }
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                logger.warn("Clustered user cache configured but no ClusterProvider available, falling back to local invalidation");
+            } else {
+                cluster.registerListener(UserCacheInvalidationEvent.TASK_KEY, this::onInvalidation);
+                logger.info("Registered user cache invalidation listener");
+            }
+            clusterListenerRegistered = true;
+        } finally {
+            clusterListenerLock.unlock();
+        }
+    }
+
+    private void onInvalidation(ClusterEvent event) {
+        if (!(event instanceof UserCacheInvalidationEvent)) {
+            return;
+        }
+        UserCacheInvalidationEvent invalidation = (UserCacheInvalidationEvent) event;
+        ComponentResources resources = components.get(invalidation.getComponentId());
+        if (resources != null) {
+            logger.debug("Received {}", invalidation);
+            resources.getUserCache().apply(invalidation);
+            if (resources.getUserSnapshot() != null) {
+                resources.getUserSnapshot().apply(invalidation);
+            }
+        }
     }
 
     @Override
@@ -88,10 +385,23 @@ public class ExternalDatabaseUserStorageProviderFactory implements UserStoragePr
 
     @Override
     public void close() {
-        if (dataSource != null && !dataSource.isClosed()) {
-            new Exception().printStackTrace();
-            dataSource.close();
-            logger.info("HikariCP DataSource closed");
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        components.values().forEach(ComponentResources::close);
+        components.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (passwordVerifierMetrics != null) {
+            try {
+                passwordVerifierMetrics.close();
+            } catch (Exception e) {
+                logger.warn("Could not remove password verifier metrics: {}", e.getMessage());
+            }
+        }
+        if (passwordVerifier != null) {
+            passwordVerifier.close();
         }
     }
 }
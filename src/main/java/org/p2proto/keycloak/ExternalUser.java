@@ -0,0 +1,48 @@
+package org.p2proto.keycloak;
+
+/**
+ * Immutable copy of one row of {@code platform.users}.
+ * Unlike the {@link org.keycloak.models.UserModel} adapters it is not bound to a session or realm,
+ * so it is safe to share between sessions and to keep in caches.
+ */
+public final class ExternalUser {
+
+    private final String uuid;
+    private final String username;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+
+    public ExternalUser(String uuid, String username, String email, String firstName, String lastName) {
+        this.uuid = uuid;
+        this.username = username;
+        this.email = email;
+        this.firstName = firstName;
+        this.lastName = lastName;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    @Override
+    public String toString() {
+        return "ExternalUser{uuid=" + uuid + ", username=" + username + "}";
+    }
+}
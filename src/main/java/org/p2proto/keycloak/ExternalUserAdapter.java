@@ -0,0 +1,123 @@
+package org.p2proto.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Read-only view of an {@link ExternalUser} for one session and realm. Profile changes are not written back to
+ * {@code platform.users}; everything else Keycloak stores about the user goes to its federated storage.
+ * <p>
+ * Attributes from {@code platform.user_attributes} are read on first use, for the whole {@link AttributeBatch}
+ * the adapter was created with, and take precedence over attributes of the same name in federated storage.
+ */
+class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
+
+    private final ExternalUser user;
+    private final AttributeBatch attributeBatch;
+    private String id;
+    private UserAttributes attributes;
+
+    ExternalUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, ExternalUser user,
+                        AttributeBatch attributeBatch) {
+        super(session, realm, model);
+        this.user = user;
+        this.attributeBatch = attributeBatch;
+    }
+
+    @Override
+    public String getId() {
+        // composed on first use, search rows that are never displayed don't need it
+        String result = id;
+        if (result == null) {
+            result = FederatedUserId.encode(storageProviderModel.getId(), user.getUuid());
+            id = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the attributes from {@code platform.user_attributes}, empty while they can't be read
+     */
+    UserAttributes getExternalAttributes() {
+        UserAttributes result = attributes;
+        if (result == null) {
+            result = attributeBatch.get(user.getUuid());
+            if (result == null) {
+                return UserAttributes.EMPTY;
+            }
+            attributes = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        String value = getExternalAttributes().get(name);
+        return value != null ? value : super.getFirstAttribute(name);
+    }
+
+    @Override
+    public Stream<String> getAttributeStream(String name) {
+        String value = getExternalAttributes().get(name);
+        return value != null ? Stream.of(value) : super.getAttributeStream(name);
+    }
+
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        UserAttributes external = getExternalAttributes();
+        Map<String, List<String>> federated = super.getAttributes();
+        if (external.isEmpty()) {
+            return federated;
+        }
+        Map<String, List<String>> merged = new HashMap<>(federated);
+        merged.putAll(external.toMap());
+        return merged;
+    }
+
+    @Override
+    public String getUsername() {
+        return user.getUsername();
+    }
+
+    @Override
+    public void setUsername(String username) {
+        // Implement if needed
+    }
+
+    @Override
+    public String getEmail() {
+        return user.getEmail();
+    }
+
+    @Override
+    public void setEmail(String email) {
+        // Implement if needed
+    }
+
+    @Override
+    public String getFirstName() {
+        return user.getFirstName();
+    }
+
+    @Override
+    public void setFirstName(String firstName) {
+        // Implement if needed
+    }
+
+    @Override
+    public String getLastName() {
+        return user.getLastName();
+    }
+
+    @Override
+    public void setLastName(String lastName) {
+        // Implement if needed
+    }
+}
@@ -0,0 +1,51 @@
+package org.p2proto.keycloak;
+
+/**
+ * Keycloak ids of the users of this provider: {@code f:<componentId>:<uuid>}, the format of
+ * {@link org.keycloak.storage.StorageId}. Parsing works on the string in place; only the returned uuid is allocated.
+ */
+public final class FederatedUserId {
+
+    private static final String PREFIX = "f:";
+
+    private FederatedUserId() {
+    }
+
+    public static String encode(String componentId, String uuid) {
+        return PREFIX + componentId + ':' + uuid;
+    }
+
+    /**
+     * @return the uuid part, or {@code null} when {@code id} is not a well-formed id of component {@code componentId}
+     */
+    public static String decode(String id, String componentId) {
+        int start = uuidStart(id, componentId);
+        return start < 0 ? null : id.substring(start);
+    }
+
+    /**
+     * @return {@code true} when {@code id} has the form {@code f:<something>:<something>}, whatever the component
+     */
+    public static boolean isWellFormed(String id) {
+        if (id == null || !id.startsWith(PREFIX)) {
+            return false;
+        }
+        int separator = id.indexOf(':', PREFIX.length());
+        return separator > PREFIX.length() && separator < id.length() - 1 && id.indexOf(':', separator + 1) < 0;
+    }
+
+    private static int uuidStart(String id, String componentId) {
+        if (id == null || componentId == null) {
+            return -1;
+        }
+        int separator = PREFIX.length() + componentId.length();
+        if (id.length() <= separator + 1
+                || !id.startsWith(PREFIX)
+                || !id.regionMatches(PREFIX.length(), componentId, 0, componentId.length())
+                || id.charAt(separator) != ':'
+                || id.indexOf(':', separator + 1) >= 0) {
+            return -1;
+        }
+        return separator + 1;
+    }
+}
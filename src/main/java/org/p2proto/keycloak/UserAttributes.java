@@ -0,0 +1,129 @@
+package org.p2proto.keycloak;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable copy of the {@code platform.user_attributes} rows of one user, one value per name as the unique
+ * {@code (user_id, name)} key allows. Stored as two arrays sorted by name instead of a map: a page of users
+ * shares the interned names, and a lookup is a binary search over a handful of entries.
+ */
+public final class UserAttributes {
+
+    public static final UserAttributes EMPTY = new UserAttributes(new String[0], new String[0]);
+
+    private final String[] names;
+    private final String[] values;
+
+    private UserAttributes(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @return the value, {@code null} when the user has no attribute of that name
+     */
+    public String get(String name) {
+        if (name == null) {
+            return null;
+        }
+        int index = Arrays.binarySearch(names, name);
+        return index >= 0 ? values[index] : null;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    /**
+     * Visits the attributes in name order.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < names.length; i++) {
+            action.accept(names[i], values[i]);
+        }
+    }
+
+    /**
+     * The attributes in the shape of {@link org.keycloak.models.UserModel#getAttributes()}, unmodifiable.
+     */
+    public Map<String, List<String>> toMap() {
+        if (names.length == 0) {
+            return Map.of();
+        }
+        Map<String, List<String>> map = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], Collections.singletonList(values[i]));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public String toString() {
+        return "UserAttributes" + Arrays.toString(names);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Collects the rows of one user, in any order.
+     */
+    public static final class Builder {
+        private String[] names = new String[4];
+        private String[] values = new String[4];
+        private int size;
+
+        private Builder() {
+        }
+
+        public Builder add(String name, String value) {
+            if (name == null) {
+                return this;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            // the same few names repeat for every user
+            names[size] = name.intern();
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public UserAttributes build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+            String[] sortedNames = new String[size];
+            String[] sortedValues = new String[size];
+            int count = 0;
+            for (Integer i : order) {
+                if (count > 0 && sortedNames[count - 1].equals(names[i])) {
+                    // a name can only repeat if the unique key was dropped, the last row read wins
+                    sortedValues[count - 1] = values[i];
+                    continue;
+                }
+                sortedNames[count] = names[i];
+                sortedValues[count] = values[i];
+                count++;
+            }
+            return new UserAttributes(Arrays.copyOf(sortedNames, count), Arrays.copyOf(sortedValues, count));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.p2proto.keycloak.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe Bloom filter over strings, used to answer "this username definitely does not exist"
+ * without a database round trip. Keys are tagged so usernames and emails can share one filter.
+ * <p>
+ * Adding and querying allocate nothing: the string is hashed char by char and the bit positions are
+ * derived by double hashing.
+ */
+public class BloomFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final LongAdder insertions = new LongAdder();
+
+    private BloomFilter(long bitCount, int hashCount) {
+        int wordCount = (int) Math.max(1, (bitCount + 63) >>> 6);
+        this.words = new AtomicLongArray(wordCount);
+        this.bitCount = (long) wordCount << 6;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Sizes the filter for {@code expectedInsertions} at the given false-positive rate. If that needs more than
+     * {@code maxBytes}, the filter is capped and the false-positive rate will be higher than requested.
+     */
+    public static BloomFilter create(long expectedInsertions, double falsePositiveRate, long maxBytes) {
+        long n = Math.max(expectedInsertions, 1);
+        double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+        long optimalBits = (long) Math.ceil(-n * Math.log(p) / (LN2 * LN2));
+        long bits = Math.max(64, Math.min(optimalBits, Math.max(maxBytes, 8) * 8));
+        bits = Math.min(bits, (long) Integer.MAX_VALUE << 6);
+        int hashes = (int) Math.max(1, Math.min(16, Math.round((double) bits / n * LN2)));
+        return new BloomFilter(bits, hashes);
+    }
+
+    public void put(char tag, String value) {
+        long hash1 = hash(tag, value, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(tag, value, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(char tag, String value) {
+        long hash1 = hash(tag, value, 0x9E3779B97F4A7C15L);
+        long hash2 = hash(tag, value, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    public long getSizeInBytes() {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    /**
+     * False-positive rate to expect with the current number of insertions.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * getInsertions() / bitCount), hashCount);
+    }
+
+    private static long hash(char tag, String value, long seed) {
+        long h = seed ^ tag;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        // final avalanche (murmur3 fmix64)
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC9L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,27 @@
+package org.p2proto.keycloak.cache;
+
+/**
+ * How the shared user cache of a component behaves.
+ */
+public enum CacheMode {
+
+    /** Only the per-session tier is used, every session goes to the database at least once. */
+    DISABLED,
+
+    /** Shared tier kept in this Keycloak node only; entries expire by TTL. */
+    LOCAL,
+
+    /** Like {@link #LOCAL}, but explicit invalidations are broadcast to all cluster nodes. */
+    CLUSTERED;
+
+    public static CacheMode parse(String value, CacheMode defaultMode) {
+        if (value == null || value.isBlank()) {
+            return defaultMode;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultMode;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.p2proto.keycloak.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit/miss counters of both cache tiers of one component.
+ */
+public class CacheStatistics implements CacheStatisticsMXBean {
+
+    private final LongAdder sessionHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    void recordSessionHit() {
+        sessionHits.increment();
+    }
+
+    void recordSharedHit() {
+        sharedHits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordInvalidation() {
+        invalidations.increment();
+    }
+
+    void recordStaleHit() {
+        staleHits.increment();
+    }
+
+    @Override
+    public long getSessionHits() {
+        return sessionHits.sum();
+    }
+
+    @Override
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getSessionHits() + getSharedHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "sessionHits=" + getSessionHits()
+                + ", sharedHits=" + getSharedHits()
+                + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations()
+                + ", staleHits=" + getStaleHits();
+    }
+}
@@ -0,0 +1,24 @@
+package org.p2proto.keycloak.cache;
+
+/**
+ * JMX view of {@link CacheStatistics}, registered as {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=cache}.
+ */
+public interface CacheStatisticsMXBean {
+
+    long getSessionHits();
+
+    long getSharedHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    /**
+     * Expired users served because the database could not be asked.
+     */
+    long getStaleHits();
+
+    double getHitRatio();
+}
@@ -0,0 +1,67 @@
+package org.p2proto.keycloak.cache;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges concurrent lookups of the same key into one query: the first caller runs it, callers arriving while it
+ * is in flight wait for and share its result. Nothing is kept once the query completes, caching is left to
+ * {@link UserCache}.
+ */
+public class LookupCoalescer<K, V> {
+
+    @FunctionalInterface
+    public interface Loader<V> {
+        V load() throws SQLException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public V load(K key, Loader<V> loader) throws SQLException {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        try {
+            V value = loader.load();
+            own.complete(value);
+            return value;
+        } catch (SQLException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private V await(CompletableFuture<V> running) throws SQLException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a concurrent lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw new SQLException(cause.getMessage(), ((SQLException) cause).getSQLState(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Number of lookups that were answered by another caller's query.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
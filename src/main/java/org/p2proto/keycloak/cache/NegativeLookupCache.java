@@ -0,0 +1,93 @@
+package org.p2proto.keycloak.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers for a short time that a username or email was not found, so repeated attempts with the same
+ * unknown name (credential stuffing, typos retried by users) skip the database.
+ */
+public class NegativeLookupCache {
+
+    public static final char USERNAME = 'u';
+    public static final char EMAIL = 'e';
+
+    private final boolean enabled;
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Long> expiries;
+    private final LongAdder hits = new LongAdder();
+
+    public NegativeLookupCache(int maxEntries, int ttlSeconds) {
+        this.enabled = maxEntries > 0 && ttlSeconds > 0;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0));
+        this.expiries = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean isKnownMissing(char type, String value) {
+        if (!enabled || value == null) {
+            return false;
+        }
+        String key = type + value;
+        lock.lock();
+        try {
+            Long expiresAt = expiries.get(key);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (expiresAt - System.nanoTime() < 0) {
+                expiries.remove(key);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        hits.increment();
+        return true;
+    }
+
+    public void markMissing(char type, String value) {
+        if (!enabled || value == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            expiries.put(type + value, System.nanoTime() + ttlNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(char type, String value) {
+        if (!enabled || value == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            expiries.remove(type + value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            expiries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+}
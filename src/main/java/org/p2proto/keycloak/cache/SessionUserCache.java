@@ -0,0 +1,65 @@
+package org.p2proto.keycloak.cache;
+
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request-scoped tier of the user cache. It lives as long as the provider instance, i.e. one
+ * {@link org.keycloak.models.KeycloakSession}, so it keeps the adapters themselves and needs no locking.
+ */
+public class SessionUserCache {
+
+    private final Map<String, UserModel> byId = new HashMap<>();
+    private final Map<String, UserModel> byUsername = new HashMap<>();
+    private final Map<String, UserModel> byEmail = new HashMap<>();
+    private final CacheStatistics statistics;
+
+    public SessionUserCache(CacheStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public UserModel getById(String uuid) {
+        return hit(byId.get(uuid));
+    }
+
+    public UserModel getByUsername(String username) {
+        return hit(byUsername.get(username));
+    }
+
+    public UserModel getByEmail(String email) {
+        return hit(byEmail.get(email));
+    }
+
+    public void put(String uuid, UserModel user) {
+        byId.put(uuid, user);
+        if (user.getUsername() != null) {
+            byUsername.put(user.getUsername(), user);
+        }
+        if (user.getEmail() != null) {
+            byEmail.put(user.getEmail(), user);
+        }
+    }
+
+    public void invalidate(String uuid) {
+        UserModel user = byId.remove(uuid);
+        if (user != null) {
+            byUsername.remove(user.getUsername());
+            byEmail.remove(user.getEmail());
+        }
+    }
+
+    public void clear() {
+        byId.clear();
+        byUsername.clear();
+        byEmail.clear();
+    }
+
+    private UserModel hit(UserModel user) {
+        if (user != null) {
+            statistics.recordSessionHit();
+        }
+        return user;
+    }
+}
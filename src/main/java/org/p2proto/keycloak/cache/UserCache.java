@@ -0,0 +1,333 @@
+package org.p2proto.keycloak.cache;
+
+import org.p2proto.keycloak.ExternalUser;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared, bounded tier of the user cache. One instance exists per component and is used by all sessions.
+ * <p>
+ * Entries are indexed by uuid, username and email, expire after a fixed TTL and the least recently used
+ * entry is evicted once {@code maxEntries} is reached. Only {@link ExternalUser} rows are kept here,
+ * session bound adapters live in {@link SessionUserCache}.
+ * <p>
+ * With a stale period, expired entries are kept that much longer. Regular lookups no longer return them, the
+ * {@code getStale*} lookups do, for when the database can't be asked.
+ */
+public class UserCache {
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final CacheStatistics statistics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> byId;
+    private final Map<String, String> idByUsername = new HashMap<>();
+    private final Map<String, String> idByEmail = new HashMap<>();
+
+    public UserCache(CacheMode mode, int maxEntries, int ttlSeconds, CacheStatistics statistics) {
+        this(mode, maxEntries, ttlSeconds, 0, statistics);
+    }
+
+    /**
+     * @param staleSeconds how long entries stay available to the {@code getStale*} lookups after they expired
+     */
+    public UserCache(CacheMode mode, int maxEntries, int ttlSeconds, int staleSeconds, CacheStatistics statistics) {
+        this(mode, maxEntries, TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0)),
+                TimeUnit.SECONDS.toNanos(Math.max(staleSeconds, 0)), statistics);
+    }
+
+    UserCache(CacheMode mode, int maxEntries, long ttlNanos, long staleNanos, CacheStatistics statistics) {
+        this.enabled = mode != CacheMode.DISABLED && maxEntries > 0 && ttlNanos > 0;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.staleNanos = staleNanos;
+        this.statistics = statistics;
+        this.byId = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > UserCache.this.maxEntries) {
+                    unindex(eldest.getValue().user);
+                    statistics.recordEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public ExternalUser getById(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        if (!enabled) {
+            statistics.recordMiss();
+            return null;
+        }
+        lock.lock();
+        try {
+            return record(lookup(uuid));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExternalUser getByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        if (!enabled) {
+            statistics.recordMiss();
+            return null;
+        }
+        lock.lock();
+        try {
+            ExternalUser user = lookup(idByUsername.get(username));
+            return record(user != null && username.equals(user.getUsername()) ? user : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExternalUser getByEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        if (!enabled) {
+            statistics.recordMiss();
+            return null;
+        }
+        lock.lock();
+        try {
+            ExternalUser user = lookup(idByEmail.get(email));
+            return record(user != null && email.equals(user.getEmail()) ? user : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #getById}, but also returns an entry that expired less than the stale period ago.
+     */
+    public ExternalUser getStaleById(String uuid) {
+        if (!enabled || staleNanos == 0 || uuid == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return recordStale(lookupStale(uuid));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExternalUser getStaleByUsername(String username) {
+        if (!enabled || staleNanos == 0 || username == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            ExternalUser user = lookupStale(idByUsername.get(username));
+            return recordStale(user != null && username.equals(user.getUsername()) ? user : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExternalUser getStaleByEmail(String email) {
+        if (!enabled || staleNanos == 0 || email == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            ExternalUser user = lookupStale(idByEmail.get(email));
+            return recordStale(user != null && email.equals(user.getEmail()) ? user : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(ExternalUser user) {
+        if (!enabled || user == null || user.getUuid() == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry previous = byId.remove(user.getUuid());
+            if (previous != null) {
+                unindex(previous.user);
+            }
+            byId.put(user.getUuid(), new Entry(user, System.nanoTime() + ttlNanos));
+            if (user.getUsername() != null) {
+                idByUsername.put(user.getUsername(), user.getUuid());
+            }
+            if (user.getEmail() != null) {
+                idByEmail.put(user.getEmail(), user.getUuid());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String uuid) {
+        if (!enabled || uuid == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry entry = byId.remove(uuid);
+            if (entry != null) {
+                unindex(entry.user);
+                statistics.recordInvalidation();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateUsername(String username) {
+        if (!enabled || username == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            String uuid = idByUsername.get(username);
+            if (uuid != null) {
+                invalidate(uuid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateEmail(String email) {
+        if (!enabled || email == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            String uuid = idByEmail.get(email);
+            if (uuid != null) {
+                invalidate(uuid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            byId.clear();
+            idByUsername.clear();
+            idByEmail.clear();
+            statistics.recordInvalidation();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies an invalidation received from another cluster node (or produced locally).
+     */
+    public void apply(UserCacheInvalidationEvent event) {
+        switch (event.getType()) {
+            case ID -> invalidate(event.getKey());
+            case USERNAME -> invalidateUsername(event.getKey());
+            case EMAIL -> invalidateEmail(event.getKey());
+            case ALL -> invalidateAll();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ExternalUser record(ExternalUser user) {
+        if (user != null) {
+            statistics.recordSharedHit();
+        } else {
+            statistics.recordMiss();
+        }
+        return user;
+    }
+
+    private ExternalUser recordStale(ExternalUser user) {
+        if (user != null) {
+            statistics.recordStaleHit();
+        }
+        return user;
+    }
+
+    // must be called with the lock held
+    private ExternalUser lookup(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        Entry entry = byId.get(uuid);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (entry.expiresAt - now < 0) {
+            if (entry.expiresAt + staleNanos - now < 0) {
+                byId.remove(uuid);
+                unindex(entry.user);
+                statistics.recordEviction();
+            }
+            return null;
+        }
+        return entry.user;
+    }
+
+    // must be called with the lock held
+    private ExternalUser lookupStale(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        Entry entry = byId.get(uuid);
+        return entry != null && entry.expiresAt + staleNanos - System.nanoTime() >= 0 ? entry.user : null;
+    }
+
+    // must be called with the lock held
+    private void unindex(ExternalUser user) {
+        if (user.getUsername() != null) {
+            idByUsername.remove(user.getUsername(), user.getUuid());
+        }
+        if (user.getEmail() != null) {
+            idByEmail.remove(user.getEmail(), user.getUuid());
+        }
+    }
+
+    private static final class Entry {
+        private final ExternalUser user;
+        private final long expiresAt;
+
+        private Entry(ExternalUser user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.p2proto.keycloak.cache;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Cluster message telling every node to drop a user (or everything) from the shared cache of a component.
+ */
+public class UserCacheInvalidationEvent implements ClusterEvent {
+
+    public static final String TASK_KEY = "p2-db-user-storage-cache-invalidation";
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        ID, USERNAME, EMAIL, ALL
+    }
+
+    private final String componentId;
+    private final Type type;
+    private final String key;
+
+    private UserCacheInvalidationEvent(String componentId, Type type, String key) {
+        this.componentId = componentId;
+        this.type = type;
+        this.key = key;
+    }
+
+    public static UserCacheInvalidationEvent byId(String componentId, String uuid) {
+        return new UserCacheInvalidationEvent(componentId, Type.ID, uuid);
+    }
+
+    public static UserCacheInvalidationEvent byUsername(String componentId, String username) {
+        return new UserCacheInvalidationEvent(componentId, Type.USERNAME, username);
+    }
+
+    public static UserCacheInvalidationEvent byEmail(String componentId, String email) {
+        return new UserCacheInvalidationEvent(componentId, Type.EMAIL, email);
+    }
+
+    public static UserCacheInvalidationEvent all(String componentId) {
+        return new UserCacheInvalidationEvent(componentId, Type.ALL, null);
+    }
+
+    public String getComponentId() {
+        return componentId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "UserCacheInvalidationEvent{componentId=" + componentId + ", type=" + type + ", key=" + key + "}";
+    }
+}
@@ -0,0 +1,222 @@
+package org.p2proto.keycloak.cache;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listens on one dedicated connection for the notifications the triggers of {@code init.sql} send when
+ * {@code platform.users} or {@code platform.user_attributes} change, and drops the changed users from the caches.
+ * <p>
+ * A notification is sent per statement, on commit, with the uuids of up to 100 changed users or {@code *} for
+ * more (see {@code notify_user_change()}). Notifications arriving within {@code coalesceMillis} of each other are
+ * handed over together, a burst of more than {@link #MAX_USERS} users as "everything changed". After the
+ * connection is lost the listener reconnects with a growing delay; whatever changed in between was missed, so
+ * every reconnect is followed by "everything changed" as well.
+ */
+public class UserChangeListener implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserChangeListener.class);
+
+    public static final String CHANNEL = "platform_user_changes";
+    static final int MAX_USERS = 1000;
+    private static final int POLL_MILLIS = 1000;
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_RECONNECT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    @FunctionalInterface
+    public interface ConnectionSource {
+        Connection connect() throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * @param uuids       the changed users, {@code null} when any user may have changed
+         * @param keysChanged users were added or updated, so usernames and emails that were unknown may exist now
+         */
+        void usersChanged(Set<String> uuids, boolean keysChanged);
+    }
+
+    private final ConnectionSource connectionSource;
+    private final long coalesceMillis;
+    private final long reconnectMillis;
+    private final Sink sink;
+    private final LongAdder notifications = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    private volatile boolean running;
+    private volatile Connection connection;
+    private Thread thread;
+
+    public UserChangeListener(ConnectionSource connectionSource, long coalesceMillis, Sink sink) {
+        this(connectionSource, coalesceMillis, 1000, sink);
+    }
+
+    UserChangeListener(ConnectionSource connectionSource, long coalesceMillis, long reconnectMillis, Sink sink) {
+        this.connectionSource = connectionSource;
+        this.coalesceMillis = Math.max(coalesceMillis, 0);
+        this.reconnectMillis = Math.max(reconnectMillis, 1);
+        this.sink = sink;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "p2-user-storage-changes");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long delay = reconnectMillis;
+        boolean connected = false;
+        while (running) {
+            try (Connection listening = connectionSource.connect()) {
+                connection = listening;
+                try (Statement stmt = listening.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                if (connected) {
+                    reconnects.increment();
+                    logger.info("Listening for user changes again, dropping all cached users");
+                    dispatch(null, true);
+                } else {
+                    logger.info("Listening for user changes on channel {}", CHANNEL);
+                }
+                connected = true;
+                delay = reconnectMillis;
+                listen(listening);
+            } catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                logger.warn("Lost the user change notifications, reconnecting in {} ms: {}", delay, e.getMessage());
+            } finally {
+                connection = null;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_MILLIS);
+        }
+    }
+
+    private void listen(Connection listening) throws SQLException {
+        PGConnection pg = listening.unwrap(PGConnection.class);
+        long lastHeartbeat = System.nanoTime();
+        while (running) {
+            PGNotification[] received = pg.getNotifications(POLL_MILLIS);
+            if (received != null && received.length > 0) {
+                Changes changes = new Changes();
+                changes.add(received);
+                // let the rest of a burst arrive, it is handed over in one go
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+                long remaining;
+                while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                    changes.add(pg.getNotifications((int) remaining));
+                }
+                changes.add(pg.getNotifications(-1));
+                if (changes.all || !changes.uuids.isEmpty()) {
+                    dispatch(changes.all ? null : changes.uuids, changes.keysChanged);
+                }
+            }
+            if (System.nanoTime() - lastHeartbeat > HEARTBEAT_NANOS) {
+                // a connection that died without a reset is only noticed when something is sent
+                try (Statement stmt = listening.createStatement()) {
+                    stmt.execute("SELECT 1");
+                }
+                lastHeartbeat = System.nanoTime();
+            }
+        }
+    }
+
+    private void dispatch(Set<String> uuids, boolean keysChanged) {
+        try {
+            sink.usersChanged(uuids, keysChanged);
+        } catch (RuntimeException e) {
+            logger.error("Error dropping changed users from the caches", e);
+        }
+    }
+
+    /**
+     * Notifications received since start.
+     */
+    public long getNotifications() {
+        return notifications.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Connection current = connection;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (SQLException e) {
+                logger.debug("Error closing the user change connection: {}", e.getMessage());
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * The users named by a burst of notifications.
+     */
+    private final class Changes {
+        private final Set<String> uuids = new HashSet<>();
+        private boolean all;
+        private boolean keysChanged;
+
+        private void add(PGNotification[] received) {
+            if (received == null) {
+                return;
+            }
+            for (PGNotification notification : received) {
+                notifications.increment();
+                add(notification.getParameter());
+            }
+        }
+
+        /**
+         * @param payload {@code <table>:<operation>} followed by space separated uuids or {@code *}
+         */
+        void add(String payload) {
+            String[] parts = payload == null ? new String[0] : payload.split(" ");
+            if (parts.length < 2) {
+                logger.warn("Ignoring malformed user change notification: {}", payload);
+                return;
+            }
+            if (parts[0].equals("users:INSERT") || parts[0].equals("users:UPDATE")) {
+                keysChanged = true;
+            }
+            for (int i = 1; i < parts.length && !all; i++) {
+                if (parts[i].equals("*") || parts[0].endsWith(":TRUNCATE")) {
+                    all = true;
+                } else if (!parts[i].isEmpty()) {
+                    uuids.add(parts[i]);
+                }
+            }
+            if (uuids.size() > MAX_USERS) {
+                all = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.p2proto.keycloak.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Membership filter over {@code platform.users.username} and {@code email}. A negative answer means the user
+ * certainly does not exist, so the lookup can return {@code null} without borrowing a connection.
+ * <p>
+ * The filter is built in the background when the component is first used, then refreshed incrementally
+ * from {@code updated_at} and rebuilt from scratch periodically (to drop deleted users and resize).
+ * Until the first build completes, or when refreshes keep failing, the filter answers "might exist"
+ * for every key, so lookups simply go to the database as before.
+ * <p>
+ * Users created after a refresh are not in the filter yet. A miss is therefore only trusted for a few seconds
+ * after the refresh that produced it; later misses go to the database and queue an early refresh, so a user
+ * created outside Keycloak can log in after a few seconds instead of a whole refresh interval.
+ */
+public class UserMembershipFilter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserMembershipFilter.class);
+
+    private static final String COUNT_SQL = "SELECT count(*) FROM platform.users";
+    private static final String FULL_SQL = "SELECT username, email, updated_at FROM platform.users";
+    private static final String DELTA_SQL = "SELECT username, email, updated_at FROM platform.users WHERE updated_at > ?";
+
+    private static final int FETCH_SIZE = 5000;
+    private static final long FULL_REBUILD_NANOS = TimeUnit.MINUTES.toNanos(15);
+    // updated_at is the transaction start time, so rows may commit with a timestamp older than the watermark
+    private static final long WATERMARK_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // room for users created between two full rebuilds
+    private static final double GROWTH_HEADROOM = 1.25;
+    // how long a miss is trusted, the longest a just created user can be reported absent
+    static final long TRUSTED_MISS_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final DataSource dataSource;
+    private final double falsePositiveRate;
+    private final long maxBytes;
+    private final long refreshSeconds;
+    private final long trustedMissNanos;
+
+    private volatile BloomFilter filter;
+    private volatile Timestamp watermark;
+    private volatile long lastRefresh;
+    private volatile long lastRebuild;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    private final LongAdder definiteMisses = new LongAdder();
+
+    public UserMembershipFilter(DataSource dataSource, double falsePositiveRate, long maxBytes, long refreshSeconds) {
+        this(dataSource, falsePositiveRate, maxBytes, refreshSeconds, TRUSTED_MISS_MILLIS);
+    }
+
+    UserMembershipFilter(DataSource dataSource, double falsePositiveRate, long maxBytes, long refreshSeconds,
+                         long trustedMissMillis) {
+        this.dataSource = dataSource;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+        this.refreshSeconds = Math.max(refreshSeconds, 1);
+        this.trustedMissNanos = TimeUnit.MILLISECONDS.toNanos(trustedMissMillis);
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        task = scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the users changed since the last refresh now instead of at the next one, so that users just created
+     * are not reported absent. Requests made while one is queued are served by it.
+     */
+    public void refreshNow() {
+        ScheduledExecutorService current = scheduler;
+        if (current != null && filter != null && refreshQueued.compareAndSet(false, true)) {
+            current.execute(() -> {
+                refreshQueued.set(false);
+                refresh();
+            });
+        }
+    }
+
+    /**
+     * @return {@code true} only if the key is certainly not in the table, or was not when the filter was
+     * refreshed a few seconds ago
+     */
+    public boolean isDefinitelyAbsent(char tag, String value) {
+        BloomFilter current = filter;
+        if (current == null || value == null || isStale()) {
+            return false;
+        }
+        if (current.mightContain(tag, value)) {
+            return false;
+        }
+        if (System.nanoTime() - lastRefresh > trustedMissNanos) {
+            // the user may have been created since, ask the database and catch up for the next ones
+            refreshNow();
+            return false;
+        }
+        definiteMisses.increment();
+        return true;
+    }
+
+    /**
+     * Records a key that was found in the database, in case it was created after the last refresh.
+     */
+    public void add(char tag, String value) {
+        BloomFilter current = filter;
+        if (current != null && value != null) {
+            current.put(tag, value);
+        }
+    }
+
+    public boolean isReady() {
+        return filter != null && !isStale();
+    }
+
+    public long getDefiniteMisses() {
+        return definiteMisses.sum();
+    }
+
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    private boolean isStale() {
+        // three missed refreshes in a row, users created since then could be rejected
+        return System.nanoTime() - lastRefresh > TimeUnit.SECONDS.toNanos(refreshSeconds * 3);
+    }
+
+    void refresh() {
+        // users committed while reading may be missing, so the filter is as old as the start of the refresh
+        long start = System.nanoTime();
+        try {
+            if (filter == null || start - lastRebuild > FULL_REBUILD_NANOS) {
+                rebuild();
+            } else {
+                applyChanges();
+            }
+            lastRefresh = start;
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error refreshing user membership filter", e);
+        }
+    }
+
+    private void rebuild() throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = dataSource.getConnection()) {
+            long rows;
+            try (PreparedStatement stmt = connection.prepareStatement(COUNT_SQL);
+                 ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                rows = rs.getLong(1);
+            }
+
+            BloomFilter rebuilt = BloomFilter.create((long) (rows * 2 * GROWTH_HEADROOM), falsePositiveRate, maxBytes);
+            Timestamp newWatermark = load(connection, rebuilt, FULL_SQL, null);
+            this.filter = rebuilt;
+            this.watermark = newWatermark;
+            this.lastRebuild = System.nanoTime();
+            logger.info("Built user membership filter: {} users, {} KiB, {} hashes, expected false-positive rate {} in {} ms",
+                    rows, rebuilt.getSizeInBytes() / 1024, rebuilt.getHashCount(),
+                    String.format("%.4f", rebuilt.getExpectedFalsePositiveRate()),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private void applyChanges() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            Timestamp since = watermark == null
+                    ? new Timestamp(0)
+                    : new Timestamp(watermark.getTime() - WATERMARK_OVERLAP_MILLIS);
+            Timestamp newWatermark = load(connection, filter, DELTA_SQL, since);
+            if (newWatermark != null && (watermark == null || newWatermark.after(watermark))) {
+                watermark = newWatermark;
+            }
+        }
+    }
+
+    /**
+     * Streams usernames and emails into the filter with a server-side cursor.
+     *
+     * @return the highest {@code updated_at} seen
+     */
+    private Timestamp load(Connection connection, BloomFilter target, String sql, Timestamp since) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false); // PgJDBC only uses a cursor (fetch size) outside auto-commit
+        Timestamp max = null;
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setFetchSize(FETCH_SIZE);
+            if (since != null) {
+                stmt.setTimestamp(1, since);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String username = rs.getString(1);
+                    String email = rs.getString(2);
+                    Timestamp updatedAt = rs.getTimestamp(3);
+                    if (username != null) {
+                        target.put(NegativeLookupCache.USERNAME, username);
+                    }
+                    if (email != null) {
+                        target.put(NegativeLookupCache.EMAIL, email);
+                    }
+                    if (updatedAt != null && (max == null || updatedAt.after(max))) {
+                        max = updatedAt;
+                    }
+                }
+            }
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return max;
+    }
+
+    @Override
+    public void close() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package org.p2proto.keycloak.cache;
+
+import org.p2proto.keycloak.ExternalUser;
+import org.p2proto.keycloak.search.UserSearchQuery;
+import org.p2proto.keycloak.sync.SyncedUser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Immutable in-memory copy of {@code platform.users}, compact enough for a few hundred thousand rows.
+ * <p>
+ * Uuids are kept as two longs. The text columns of all rows share one {@code char[]}, addressed by an offset
+ * table, so a row costs its characters plus a few ints instead of five {@code String} objects. Rows are stored
+ * in username order by code point, the order of the database's {@code COLLATE "C"} search statements, so a
+ * listing can move between the two without repeating or skipping users. Open-addressing tables of row numbers index
+ * uuid, username and email. An {@link ExternalUser} is only created for the rows a caller asks for.
+ */
+public final class UserSnapshot {
+
+    private static final int USERNAME = 0;
+    private static final int EMAIL = 1;
+    private static final int FIRST_NAME = 2;
+    private static final int LAST_NAME = 3;
+    private static final int FIELDS = 4;
+
+    private static final byte ENABLED = 1;
+    private static final byte EMAIL_VERIFIED = 1 << 1;
+    private static final int NULL_SHIFT = 2; // one bit per field
+
+    // UTF-8 bytes sort like code points, String.compareTo differs for characters outside the BMP
+    private static final Comparator<String> CODE_POINT_ORDER = UserSnapshot::compareCodePoints;
+
+    private final int size;
+    private final long[] uuidHigh;
+    private final long[] uuidLow;
+    private final char[] text;
+    private final int[] offsets;
+    private final byte[] flags;
+    private final int[] byId;
+    private final int[] byUsername;
+    private final int[] byEmail;
+
+    private UserSnapshot(List<SyncedUser> rows) {
+        rows.sort(Comparator.comparing(SyncedUser::getUsername, Comparator.nullsFirst(CODE_POINT_ORDER)));
+        this.size = rows.size();
+        this.uuidHigh = new long[size];
+        this.uuidLow = new long[size];
+        this.offsets = new int[size * FIELDS + 1];
+        this.flags = new byte[size];
+        int length = 0;
+        for (SyncedUser row : rows) {
+            length += length(row.getUsername()) + length(row.getEmail()) + length(row.getFirstName())
+                    + length(row.getLastName());
+        }
+        this.text = new char[length];
+
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            SyncedUser row = rows.get(i);
+            UUID uuid = UUID.fromString(row.getUuid());
+            uuidHigh[i] = uuid.getMostSignificantBits();
+            uuidLow[i] = uuid.getLeastSignificantBits();
+            byte rowFlags = (byte) ((row.isEnabled() ? ENABLED : 0) | (row.isEmailVerified() ? EMAIL_VERIFIED : 0));
+            String[] values = {row.getUsername(), row.getEmail(), row.getFirstName(), row.getLastName()};
+            for (int field = 0; field < FIELDS; field++) {
+                offsets[i * FIELDS + field] = position;
+                String value = values[field];
+                if (value == null) {
+                    rowFlags |= (byte) (1 << (NULL_SHIFT + field));
+                } else {
+                    value.getChars(0, value.length(), text, position);
+                    position += value.length();
+                }
+            }
+            flags[i] = rowFlags;
+        }
+        offsets[size * FIELDS] = position;
+
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+        this.byId = new int[capacity];
+        this.byUsername = new int[capacity];
+        this.byEmail = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            insert(byId, uuidHash(uuidHigh[i], uuidLow[i]), i);
+            if (!isNull(i, USERNAME)) {
+                insert(byUsername, hash(i, USERNAME), i);
+            }
+            // emails are not unique, like the query the first one wins
+            if (!isNull(i, EMAIL) && find(byEmail, hash(i, EMAIL), EMAIL, rows.get(i).getEmail()) < 0) {
+                insert(byEmail, hash(i, EMAIL), i);
+            }
+        }
+    }
+
+    public static UserSnapshot of(Collection<SyncedUser> rows) {
+        return new UserSnapshot(new ArrayList<>(rows));
+    }
+
+    /**
+     * A new snapshot with the given rows added or, matched by uuid, replaced.
+     */
+    public UserSnapshot withChanges(Collection<SyncedUser> changed) {
+        return withChanges(changed, Set.of());
+    }
+
+    /**
+     * A new snapshot with the given rows added or, matched by uuid, replaced, and the {@code deleted} uuids left out.
+     * Rows equal to the ones held and uuids that are not held change nothing; when nothing changes this snapshot is
+     * returned instead of a copy.
+     */
+    public UserSnapshot withChanges(Collection<SyncedUser> changed, Collection<String> deleted) {
+        Map<UUID, SyncedUser> replacements = new HashMap<>();
+        for (SyncedUser row : changed) {
+            UUID uuid = UUID.fromString(row.getUuid());
+            int existing = indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (existing < 0 || !sameRow(existing, row)) {
+                replacements.put(uuid, row);
+            }
+        }
+        Set<UUID> dropped = new HashSet<>();
+        for (String uuid : deleted) {
+            UUID parsed = UUID.fromString(uuid);
+            if (indexOf(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits()) >= 0) {
+                dropped.add(parsed);
+            }
+        }
+        if (replacements.isEmpty() && dropped.isEmpty()) {
+            return this;
+        }
+        List<SyncedUser> rows = new ArrayList<>(size + changed.size());
+        for (int i = 0; i < size; i++) {
+            UUID uuid = new UUID(uuidHigh[i], uuidLow[i]);
+            if (!replacements.containsKey(uuid) && !dropped.contains(uuid)) {
+                rows.add(row(i));
+            }
+        }
+        rows.addAll(replacements.values());
+        return new UserSnapshot(rows);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getSizeInBytes() {
+        return text.length * 2L + (long) offsets.length * 4 + size * 17L
+                + (long) (byId.length + byUsername.length + byEmail.length) * 4;
+    }
+
+    /**
+     * @return the user, or {@code null} for a malformed or unknown uuid
+     */
+    public ExternalUser getById(String uuid) {
+        UUID parsed;
+        try {
+            parsed = UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return user(indexOf(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits()));
+    }
+
+    private int indexOf(long high, long low) {
+        int mask = byId.length - 1;
+        for (int slot = spread(uuidHash(high, low)) & mask; byId[slot] != 0; slot = (slot + 1) & mask) {
+            int row = byId[slot] - 1;
+            if (uuidHigh[row] == high && uuidLow[row] == low) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameRow(int row, SyncedUser user) {
+        byte userFlags = (byte) ((user.isEnabled() ? ENABLED : 0) | (user.isEmailVerified() ? EMAIL_VERIFIED : 0));
+        return (flags[row] & (ENABLED | EMAIL_VERIFIED)) == userFlags
+                && sameValue(row, USERNAME, user.getUsername()) && sameValue(row, EMAIL, user.getEmail())
+                && sameValue(row, FIRST_NAME, user.getFirstName()) && sameValue(row, LAST_NAME, user.getLastName());
+    }
+
+    private boolean sameValue(int row, int field, String value) {
+        return value == null ? isNull(row, field) : !isNull(row, field) && equals(row, field, value);
+    }
+
+    public ExternalUser getByUsername(String username) {
+        return username == null ? null : user(find(byUsername, username.hashCode(), USERNAME, username));
+    }
+
+    public ExternalUser getByEmail(String email) {
+        return email == null ? null : user(find(byEmail, email.hashCode(), EMAIL, email));
+    }
+
+    /**
+     * One page of the rows the matcher accepts, in username order.
+     */
+    public List<ExternalUser> search(UserSearchQuery.Matcher matcher, int firstResult, int maxResults) {
+        List<ExternalUser> page = new ArrayList<>(Math.min(Math.max(maxResults, 0), 100));
+        RowView view = new RowView();
+        int skipped = 0;
+        for (int i = 0; i < size && page.size() < maxResults; i++) {
+            if (view.matches(matcher, i)) {
+                if (skipped < firstResult) {
+                    skipped++;
+                } else {
+                    page.add(user(i));
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Number of rows the matcher accepts.
+     */
+    public int count(UserSearchQuery.Matcher matcher) {
+        RowView view = new RowView();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (view.matches(matcher, i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private ExternalUser user(int row) {
+        if (row < 0) {
+            return null;
+        }
+        return new ExternalUser(new UUID(uuidHigh[row], uuidLow[row]).toString(), string(row, USERNAME),
+                string(row, EMAIL), string(row, FIRST_NAME), string(row, LAST_NAME));
+    }
+
+    private SyncedUser row(int row) {
+        return new SyncedUser(new UUID(uuidHigh[row], uuidLow[row]).toString(), string(row, USERNAME),
+                string(row, EMAIL), string(row, FIRST_NAME), string(row, LAST_NAME),
+                (flags[row] & ENABLED) != 0, (flags[row] & EMAIL_VERIFIED) != 0);
+    }
+
+    private String string(int row, int field) {
+        if (isNull(row, field)) {
+            return null;
+        }
+        int start = offsets[row * FIELDS + field];
+        return new String(text, start, offsets[row * FIELDS + field + 1] - start);
+    }
+
+    private boolean isNull(int row, int field) {
+        return (flags[row] & (1 << (NULL_SHIFT + field))) != 0;
+    }
+
+    /**
+     * Same value as {@link String#hashCode()} of the field, so lookups can hash the key they are given.
+     */
+    private int hash(int row, int field) {
+        int hash = 0;
+        for (int i = offsets[row * FIELDS + field], end = offsets[row * FIELDS + field + 1]; i < end; i++) {
+            hash = 31 * hash + text[i];
+        }
+        return hash;
+    }
+
+    private int find(int[] table, int hash, int field, String key) {
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int row = table[slot] - 1;
+            if (!isNull(row, field) && equals(row, field, key)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(int row, int field, String key) {
+        int start = offsets[row * FIELDS + field];
+        if (offsets[row * FIELDS + field + 1] - start != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (text[start + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void insert(int[] table, int hash, int row) {
+        int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = row + 1;
+    }
+
+    private static int uuidHash(long high, long low) {
+        return Long.hashCode(high ^ low);
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int left = a.codePointAt(i);
+            int right = b.codePointAt(j);
+            if (left != right) {
+                return Integer.compare(left, right);
+            }
+            i += Character.charCount(left);
+            j += Character.charCount(right);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Reusable views of the fields of a row, so matching rows allocates nothing.
+     */
+    private final class RowView {
+        private final Field username = new Field();
+        private final Field email = new Field();
+        private final Field firstName = new Field();
+        private final Field lastName = new Field();
+
+        private boolean matches(UserSearchQuery.Matcher matcher, int row) {
+            byte rowFlags = flags[row];
+            return matcher.matches(username.at(row, USERNAME), email.at(row, EMAIL), firstName.at(row, FIRST_NAME),
+                    lastName.at(row, LAST_NAME), (rowFlags & ENABLED) != 0, (rowFlags & EMAIL_VERIFIED) != 0);
+        }
+    }
+
+    /**
+     * A view of one field, reused from row to row.
+     */
+    private final class Field implements CharSequence {
+        private int start;
+        private int end;
+
+        private CharSequence at(int row, int field) {
+            if (isNull(row, field)) {
+                return null;
+            }
+            start = offsets[row * FIELDS + field];
+            end = offsets[row * FIELDS + field + 1];
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(text, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(text, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.p2proto.keycloak.cache;
+
+import org.p2proto.keycloak.ExternalUser;
+import org.p2proto.keycloak.sync.SyncedUser;
+import org.p2proto.keycloak.sync.UserSyncReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a {@link UserSnapshot} of {@code platform.users} for lookups and searches without the database.
+ * <p>
+ * The snapshot is loaded in the background when the component is first used, then refreshed from
+ * {@code updated_at} and reloaded from scratch periodically. Deleted rows have no {@code updated_at} to be found
+ * by, they disappear with the next reload, or with the next refresh once an invalidation named them. Every refresh
+ * builds a new snapshot and swaps it in, readers never see a half-applied change. Until the first load completes,
+ * or when refreshes keep failing, {@link #current()} returns {@code null} and the provider queries the database
+ * as before.
+ * <p>
+ * Invalidations (see {@link UserCacheInvalidationEvent}) hide the affected users from the snapshot until the next
+ * refresh has read them again, or found them gone.
+ */
+public class UserSnapshotLoader implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserSnapshotLoader.class);
+
+    private static final long FULL_RELOAD_NANOS = TimeUnit.MINUTES.toNanos(15);
+
+    private final UserSyncReader reader;
+    private final long refreshSeconds;
+    private final ConcurrentHashMap<String, Long> invalidated = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+
+    private volatile UserSnapshot snapshot;
+    private volatile long lastRefresh;
+    private volatile long lastReload;
+    private volatile long invalidatedAllAt;
+    private long changedSinceMillis;
+    private ScheduledFuture<?> task;
+
+    public UserSnapshotLoader(UserSyncReader reader, long refreshSeconds) {
+        this.reader = reader;
+        this.refreshSeconds = Math.max(refreshSeconds, 1);
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        task = scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the snapshot, or {@code null} while none is loaded, the last one is outdated or all users were
+     * invalidated since it was read
+     */
+    public UserSnapshot current() {
+        UserSnapshot current = snapshot;
+        if (current == null || isStale() || invalidatedAllAt > lastRefresh) {
+            return null;
+        }
+        return current;
+    }
+
+    public ExternalUser getById(UserSnapshot current, String uuid) {
+        return visible(current.getById(uuid));
+    }
+
+    public ExternalUser getByUsername(UserSnapshot current, String username) {
+        return visible(current.getByUsername(username));
+    }
+
+    public ExternalUser getByEmail(UserSnapshot current, String email) {
+        return visible(current.getByEmail(email));
+    }
+
+    /**
+     * Whether a search result from the snapshot may be used, {@code false} while one of its users is invalidated.
+     */
+    public boolean isSearchable() {
+        return invalidated.isEmpty();
+    }
+
+    public void apply(UserCacheInvalidationEvent event) {
+        long now = System.nanoTime();
+        switch (event.getType()) {
+            case ID -> invalidated.put("i:" + event.getKey(), now);
+            case USERNAME -> invalidated.put("u:" + event.getKey(), now);
+            case EMAIL -> invalidated.put("e:" + event.getKey(), now);
+            case ALL -> invalidatedAllAt = now;
+        }
+    }
+
+    /**
+     * Lookups answered from the snapshot.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    private ExternalUser visible(ExternalUser user) {
+        if (user == null) {
+            return null;
+        }
+        if (!invalidated.isEmpty() && (invalidated.containsKey("i:" + user.getUuid())
+                || invalidated.containsKey("u:" + user.getUsername())
+                || (user.getEmail() != null && invalidated.containsKey("e:" + user.getEmail())))) {
+            return null;
+        }
+        hits.increment();
+        return user;
+    }
+
+    private boolean isStale() {
+        // three missed refreshes in a row
+        return System.nanoTime() - lastRefresh > TimeUnit.SECONDS.toNanos(refreshSeconds * 3);
+    }
+
+    void refresh() {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        try {
+            List<SyncedUser> rows = new ArrayList<>();
+            UserSnapshot current = snapshot;
+            if (current == null || start - lastReload > FULL_RELOAD_NANOS) {
+                reader.readAll(rows::addAll);
+                UserSnapshot loaded = UserSnapshot.of(rows);
+                snapshot = loaded;
+                lastReload = start;
+                logger.info("Loaded user snapshot: {} users, {} KiB in {} ms", loaded.size(),
+                        loaded.getSizeInBytes() / 1024, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else {
+                Set<String> unconfirmed = invalidatedUsers(current, start);
+                reader.readChangedSince(changedSinceMillis, rows::addAll);
+                for (SyncedUser row : rows) {
+                    unconfirmed.remove(row.getUuid());
+                }
+                if (!unconfirmed.isEmpty()) {
+                    // invalidated but not changed, either deleted or only their attributes changed
+                    unconfirmed.removeAll(reader.readExisting(unconfirmed));
+                }
+                // the overlap of the change query re-reads recent rows, those that are unchanged cost no rebuild
+                UserSnapshot changed = current.withChanges(rows, unconfirmed);
+                if (changed != current) {
+                    snapshot = changed;
+                    logger.debug("Applied {} changed and {} deleted users to the user snapshot", rows.size(),
+                            unconfirmed.size());
+                }
+            }
+            changedSinceMillis = startMillis;
+            lastRefresh = start;
+            // what was invalidated before this refresh started has been read again
+            invalidated.values().removeIf(at -> at < start);
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error refreshing user snapshot", e);
+        }
+    }
+
+    /**
+     * @return the uuids of the snapshot's users that were invalidated before {@code start}
+     */
+    private Set<String> invalidatedUsers(UserSnapshot current, long start) {
+        Set<String> uuids = new HashSet<>();
+        invalidated.forEach((key, at) -> {
+            if (at >= start) {
+                return;
+            }
+            String value = key.substring(2);
+            ExternalUser user = switch (key.charAt(0)) {
+                case 'i' -> current.getById(value);
+                case 'u' -> current.getByUsername(value);
+                default -> current.getByEmail(value);
+            };
+            if (user != null) {
+                uuids.add(user.getUuid());
+            }
+        });
+        return uuids;
+    }
+
+    @Override
+    public void close() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.p2proto.keycloak.credential;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Argon2id in the PHC string format, {@code $argon2id$v=19$m=<KiB>,t=<iterations>,p=<lanes>$<salt>$<hash>},
+ * using the BouncyCastle implementation that ships with Keycloak.
+ */
+public class Argon2PasswordHashVerifier implements PasswordHashVerifier {
+
+    public static final String ALGORITHM = "argon2id";
+    private static final String PREFIX = "$argon2id$";
+
+    // OWASP recommendation for Argon2id
+    public static final int DEFAULT_ITERATIONS = 2;
+    public static final int DEFAULT_MEMORY_KB = 19456;
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private final int iterations;
+    private final int memoryKb;
+    private final int parallelism;
+    private final SecureRandom random = new SecureRandom();
+
+    public Argon2PasswordHashVerifier() {
+        this(DEFAULT_ITERATIONS, DEFAULT_MEMORY_KB, DEFAULT_PARALLELISM);
+    }
+
+    public Argon2PasswordHashVerifier(int iterations, int memoryKb, int parallelism) {
+        this.iterations = iterations;
+        this.memoryKb = memoryKb;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public boolean supports(String storedHash) {
+        return storedHash != null && storedHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public boolean verify(String password, String storedHash) {
+        Phc phc = Phc.parse(storedHash);
+        if (phc == null) {
+            return false;
+        }
+        byte[] actual = derive(password, phc.salt, phc.iterations, phc.memoryKb, phc.parallelism, phc.hash.length);
+        return MessageDigest.isEqual(actual, phc.hash);
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations, memoryKb, parallelism, HASH_LENGTH);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "v=19$m=" + memoryKb + ",t=" + iterations + ",p=" + parallelism
+                + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        Phc phc = Phc.parse(storedHash);
+        return phc == null || phc.iterations < iterations || phc.memoryKb < memoryKb;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int memoryKb, int parallelism, int length) {
+        Argon2Parameters parameters = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                .withIterations(iterations)
+                .withMemoryAsKB(memoryKb)
+                .withParallelism(parallelism)
+                .withSalt(salt)
+                .build();
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        byte[] out = new byte[length];
+        generator.generateBytes(password.toCharArray(), out);
+        return out;
+    }
+
+    private static final class Phc {
+        private int memoryKb;
+        private int iterations;
+        private int parallelism;
+        private byte[] salt;
+        private byte[] hash;
+
+        // $argon2id$v=19$m=19456,t=2,p=1$<salt>$<hash>
+        private static Phc parse(String storedHash) {
+            String[] parts = storedHash.split("\\$");
+            if (parts.length != 6 || !"v=19".equals(parts[2])) {
+                return null;
+            }
+            try {
+                Phc phc = new Phc();
+                for (String param : parts[3].split(",")) {
+                    int value = Integer.parseInt(param.substring(2));
+                    switch (param.substring(0, 2)) {
+                        case "m=" -> phc.memoryKb = value;
+                        case "t=" -> phc.iterations = value;
+                        case "p=" -> phc.parallelism = value;
+                        default -> {
+                            return null;
+                        }
+                    }
+                }
+                Base64.Decoder decoder = Base64.getDecoder();
+                phc.salt = decoder.decode(parts[4]);
+                phc.hash = decoder.decode(parts[5]);
+                return phc.memoryKb > 0 && phc.iterations > 0 && phc.parallelism > 0 ? phc : null;
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.p2proto.keycloak.credential;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import at.favre.lib.crypto.bcrypt.LongPasswordStrategies;
+
+/**
+ * BCrypt ({@code $2a$}, {@code $2b$}, {@code $2y$}) backed by the favre bcrypt library, which is considerably
+ * faster than jBCrypt. Passwords longer than 72 bytes are truncated, exactly like jBCrypt did, so existing
+ * hashes keep verifying.
+ */
+public class BCryptPasswordHashVerifier implements PasswordHashVerifier {
+
+    public static final String ALGORITHM = "bcrypt";
+    public static final int DEFAULT_COST = 10;
+
+    private static final BCrypt.Version VERSION = BCrypt.Version.VERSION_2A;
+
+    private final int cost;
+    private final BCrypt.Verifyer verifyer = BCrypt.verifyer(VERSION, LongPasswordStrategies.truncate(VERSION));
+    private final BCrypt.Hasher hasher = BCrypt.with(VERSION, LongPasswordStrategies.truncate(VERSION));
+
+    public BCryptPasswordHashVerifier() {
+        this(DEFAULT_COST);
+    }
+
+    public BCryptPasswordHashVerifier(int cost) {
+        this.cost = cost;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public boolean supports(String storedHash) {
+        return storedHash != null
+                && (storedHash.startsWith("$2a$") || storedHash.startsWith("$2b$") || storedHash.startsWith("$2y$"));
+    }
+
+    @Override
+    public boolean verify(String password, String storedHash) {
+        BCrypt.Result result = verifyer.verify(password.toCharArray(), storedHash);
+        return result.validFormat && result.verified;
+    }
+
+    @Override
+    public String hash(String password) {
+        return hasher.hashToString(cost, password.toCharArray());
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        // $2a$10$... -> the two digits after the version are the log2 cost
+        try {
+            return Integer.parseInt(storedHash.substring(4, 6)) < cost;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+}
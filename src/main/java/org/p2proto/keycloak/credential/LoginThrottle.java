@@ -0,0 +1,171 @@
+package org.p2proto.keycloak.credential;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits password attempts per username and per client address with token buckets, checked before the password
+ * hash is read or verified. Each key may try {@code attempts} times in a burst, after that {@code perMinute}
+ * attempts per minute become available again.
+ * <p>
+ * Memory is fixed: the buckets live in a table of {@code slots} longs, each holding the tokens left and the time
+ * of the last update, and are changed with a compare-and-set. Keys are not stored. Each key maps to two slots and
+ * is admitted while either of them has a token, so a user whose slot is shared with an attacked name still gets
+ * in through the other one. That does not help a user whose own name is attacked: anyone who knows the username
+ * can keep it locked out, which is why the username limit is off unless configured.
+ * <p>
+ * Rejections are reported at WARN at most once a minute, as counts without the usernames or addresses.
+ */
+public class LoginThrottle implements LoginThrottleMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoginThrottle.class);
+
+    public static final int DEFAULT_SLOTS = 1 << 16;
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final TokenBuckets usernames;
+    private final TokenBuckets addresses;
+    private final LongAdder rejectedByUsername = new LongAdder();
+    private final LongAdder rejectedByAddress = new LongAdder();
+    private final AtomicLong nextReport = new AtomicLong();
+
+    /**
+     * @param usernameAttempts burst per username, 0 disables the username limit
+     * @param addressAttempts  burst per client address, 0 disables the address limit
+     * @param slots            buckets per limit, rounded up to a power of two
+     */
+    public LoginThrottle(int usernameAttempts, int usernamePerMinute, int addressAttempts, int addressPerMinute,
+                         int slots) {
+        this.usernames = TokenBuckets.create(usernameAttempts, usernamePerMinute, slots);
+        this.addresses = TokenBuckets.create(addressAttempts, addressPerMinute, slots);
+    }
+
+    public static LoginThrottle disabled() {
+        return new LoginThrottle(0, 0, 0, 0, 0);
+    }
+
+    public boolean isAddressLimited() {
+        return addresses != null;
+    }
+
+    /**
+     * Takes one attempt from the budgets of the username and the address.
+     *
+     * @param address the client address, {@code null} when unknown
+     * @return {@code false} when either budget is used up
+     */
+    public boolean tryAcquire(String username, String address) {
+        long now = TokenBuckets.now();
+        if (usernames != null && username != null && !usernames.tryAcquire(username, now)) {
+            rejectedByUsername.increment();
+            report(now);
+            return false;
+        }
+        if (addresses != null && address != null && !addresses.tryAcquire(address, now)) {
+            rejectedByAddress.increment();
+            report(now);
+            return false;
+        }
+        return true;
+    }
+
+    private void report(long now) {
+        long next = nextReport.get();
+        if (now >= next && nextReport.compareAndSet(next, now + REPORT_INTERVAL_MILLIS)) {
+            logger.warn("Throttled password attempts since start: {} by username, {} by client address",
+                    getRejectedByUsername(), getRejectedByAddress());
+        }
+    }
+
+    @Override
+    public long getRejectedByUsername() {
+        return rejectedByUsername.sum();
+    }
+
+    @Override
+    public long getRejectedByAddress() {
+        return rejectedByAddress.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return getRejectedByUsername() + getRejectedByAddress();
+    }
+
+    /**
+     * One table of buckets. A slot packs the last update in milliseconds (plus one, so that 0 means unused and
+     * therefore full) into the upper bits and the tokens left, in 1/1024 of a token, into the lower 20 bits.
+     */
+    static final class TokenBuckets {
+
+        private static final int TOKEN_BITS = 20;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+        private static final long ONE = 1024;
+        static final int MAX_ATTEMPTS = (int) (TOKEN_MASK / ONE);
+        private static final long EPOCH = System.nanoTime();
+
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final long capacity;
+        private final double refillPerMilli;
+
+        private TokenBuckets(int attempts, int perMinute, int slotCount) {
+            int size = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+            this.slots = new AtomicLongArray(size);
+            this.mask = size - 1;
+            this.capacity = Math.min(attempts, MAX_ATTEMPTS) * ONE;
+            this.refillPerMilli = Math.max(perMinute, 0) * (double) ONE / TimeUnit.MINUTES.toMillis(1);
+        }
+
+        static TokenBuckets create(int attempts, int perMinute, int slots) {
+            return attempts > 0 ? new TokenBuckets(attempts, perMinute, slots) : null;
+        }
+
+        static long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - EPOCH) + 1;
+        }
+
+        boolean tryAcquire(String key, long now) {
+            int hash = key.hashCode() * 0x9E3779B9;
+            int first = (hash ^ (hash >>> 16)) & mask;
+            int second = Integer.rotateLeft(hash, 16) * 0x85EBCA6B;
+            second = (second ^ (second >>> 15)) & mask;
+            boolean admitted = take(first, now);
+            if (second != first) {
+                admitted |= take(second, now);
+            }
+            return admitted;
+        }
+
+        private boolean take(int index, long now) {
+            while (true) {
+                long current = slots.get(index);
+                long tokens = tokens(current, now);
+                if (tokens < ONE) {
+                    return false;
+                }
+                long updated = now << TOKEN_BITS | (tokens - ONE);
+                if (slots.compareAndSet(index, current, updated)) {
+                    return true;
+                }
+            }
+        }
+
+        private long tokens(long slot, long now) {
+            if (slot == 0) {
+                return capacity;
+            }
+            long elapsed = now - (slot >>> TOKEN_BITS);
+            long tokens = slot & TOKEN_MASK;
+            if (elapsed <= 0) {
+                return tokens;
+            }
+            return Math.min(capacity, tokens + (long) (elapsed * refillPerMilli));
+        }
+    }
+}
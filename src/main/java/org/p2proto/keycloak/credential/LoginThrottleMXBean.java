@@ -0,0 +1,14 @@
+package org.p2proto.keycloak.credential;
+
+/**
+ * JMX view of {@link LoginThrottle}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=loginThrottle}.
+ */
+public interface LoginThrottleMXBean {
+
+    long getRejectedByUsername();
+
+    long getRejectedByAddress();
+
+    long getRejected();
+}
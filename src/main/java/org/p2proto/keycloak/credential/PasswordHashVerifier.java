@@ -0,0 +1,36 @@
+package org.p2proto.keycloak.credential;
+
+/**
+ * One password hashing scheme, selected by the prefix of the hash stored in {@code platform.users.password_hash}.
+ * <p>
+ * The built-in schemes are BCrypt, Argon2id and PBKDF2. Additional schemes can be contributed through
+ * {@link java.util.ServiceLoader}, by listing the implementation (which then needs a public no-arg constructor)
+ * in {@code META-INF/services/org.p2proto.keycloak.credential.PasswordHashVerifier}.
+ */
+public interface PasswordHashVerifier {
+
+    /**
+     * Name of the scheme as used in the component configuration, for example {@code bcrypt}.
+     */
+    String getAlgorithm();
+
+    /**
+     * Whether the stored hash was produced by this scheme, usually decided by its prefix.
+     */
+    boolean supports(String storedHash);
+
+    /**
+     * @return whether the password matches; malformed hashes never match
+     */
+    boolean verify(String password, String storedHash);
+
+    /**
+     * Hashes the password with this scheme's configured parameters and a fresh random salt.
+     */
+    String hash(String password);
+
+    /**
+     * Whether a hash produced by this scheme uses weaker parameters than the configured ones.
+     */
+    boolean needsRehash(String storedHash);
+}
@@ -0,0 +1,90 @@
+package org.p2proto.keycloak.credential;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Password hashing policy of one component: the verifiers that can check existing hashes, the scheme new hashes
+ * are produced with, and whether outdated hashes are upgraded after a successful login.
+ */
+public class PasswordHashing {
+
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHashing.class);
+
+    private final List<PasswordHashVerifier> verifiers;
+    private final PasswordHashVerifier target;
+    private final boolean rehashOnLogin;
+
+    public PasswordHashing(List<PasswordHashVerifier> verifiers, PasswordHashVerifier target, boolean rehashOnLogin) {
+        this.verifiers = List.copyOf(verifiers);
+        this.target = target;
+        this.rehashOnLogin = rehashOnLogin;
+    }
+
+    /**
+     * Built-in schemes plus those found through {@link ServiceLoader}. The target scheme uses {@code cost}
+     * (log2 rounds for BCrypt, iterations for Argon2id and PBKDF2), a non-positive cost selects its default.
+     */
+    public static PasswordHashing create(String algorithm, int cost, boolean rehashOnLogin) {
+        String targetAlgorithm = algorithm == null || algorithm.isBlank() ? BCryptPasswordHashVerifier.ALGORITHM : algorithm;
+
+        List<PasswordHashVerifier> verifiers = new ArrayList<>();
+        verifiers.add(new BCryptPasswordHashVerifier(
+                cost > 0 && targetAlgorithm.equals(BCryptPasswordHashVerifier.ALGORITHM) ? cost : BCryptPasswordHashVerifier.DEFAULT_COST));
+        verifiers.add(new Argon2PasswordHashVerifier(
+                cost > 0 && targetAlgorithm.equals(Argon2PasswordHashVerifier.ALGORITHM) ? cost : Argon2PasswordHashVerifier.DEFAULT_ITERATIONS,
+                Argon2PasswordHashVerifier.DEFAULT_MEMORY_KB, Argon2PasswordHashVerifier.DEFAULT_PARALLELISM));
+        for (String pbkdf2 : List.of(Pbkdf2PasswordHashVerifier.SHA256, Pbkdf2PasswordHashVerifier.SHA512)) {
+            verifiers.add(new Pbkdf2PasswordHashVerifier(pbkdf2,
+                    cost > 0 && targetAlgorithm.equals(pbkdf2) ? cost : Pbkdf2PasswordHashVerifier.defaultIterations(pbkdf2)));
+        }
+        for (PasswordHashVerifier verifier : ServiceLoader.load(PasswordHashVerifier.class, PasswordHashing.class.getClassLoader())) {
+            logger.info("Found password hash verifier {} ({})", verifier.getAlgorithm(), verifier.getClass().getName());
+            verifiers.add(verifier);
+        }
+
+        PasswordHashVerifier target = verifiers.stream()
+                .filter(v -> v.getAlgorithm().equals(targetAlgorithm))
+                .findFirst()
+                .orElse(null);
+        if (target == null) {
+            logger.warn("Unknown password hash algorithm {}, using {}", targetAlgorithm, BCryptPasswordHashVerifier.ALGORITHM);
+            target = verifiers.get(0);
+        }
+        return new PasswordHashing(verifiers, target, rehashOnLogin);
+    }
+
+    /**
+     * @return the verifier for the stored hash, or {@code null} if no scheme recognizes it
+     */
+    public PasswordHashVerifier verifierFor(String storedHash) {
+        for (PasswordHashVerifier verifier : verifiers) {
+            if (verifier.supports(storedHash)) {
+                return verifier;
+            }
+        }
+        return null;
+    }
+
+    public PasswordHashVerifier getTarget() {
+        return target;
+    }
+
+    public boolean isRehashOnLogin() {
+        return rehashOnLogin;
+    }
+
+    /**
+     * Whether a hash that just verified successfully should be replaced by one from the target scheme.
+     */
+    public boolean shouldRehash(String storedHash) {
+        if (!rehashOnLogin) {
+            return false;
+        }
+        return !target.supports(storedHash) || target.needsRehash(storedHash);
+    }
+}
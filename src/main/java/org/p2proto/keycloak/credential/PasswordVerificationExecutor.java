@@ -0,0 +1,204 @@
+package org.p2proto.keycloak.credential;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hash verification (and the hashing for upgrades) on a dedicated, bounded thread pool so that CPU-bound hashing
+ * neither occupies Keycloak request threads while they hold a database connection, nor grows without limit
+ * during login storms.
+ * <p>
+ * When the queue is full new verifications are rejected immediately ({@link RejectedExecutionException})
+ * instead of waiting; callers treat that as a failed login attempt.
+ */
+public class PasswordVerificationExecutor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PasswordVerificationExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+    private final LongAccumulator maxVerifyNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param threads       number of verification threads, {@code 0} verifies on the calling thread
+     * @param queueCapacity number of verifications that may wait for a thread before new ones are rejected
+     * @param timeoutMillis how long a caller waits for its result, including queueing
+     */
+    public PasswordVerificationExecutor(int threads, int queueCapacity, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        if (threads <= 0) {
+            this.executor = null;
+        } else {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(queueCapacity, 1)),
+                    new VerifierThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.executor.prestartAllCoreThreads();
+        }
+    }
+
+    /**
+     * Executor that verifies on the calling thread, used where no shared pool is available (tests, tools).
+     */
+    public static PasswordVerificationExecutor inline() {
+        return new PasswordVerificationExecutor(0, 0, 0);
+    }
+
+    /**
+     * @return whether the password matches the stored hash
+     * @throws RejectedExecutionException if the pool is saturated, the executor is closed
+     *                                    or the result did not arrive within the timeout
+     */
+    public boolean verify(PasswordHashVerifier verifier, String password, String storedHash) {
+        if (executor == null) {
+            return timedVerify(verifier, password, storedHash, System.nanoTime());
+        }
+
+        long enqueued = System.nanoTime();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> timedVerify(verifier, password, storedHash, enqueued));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return await(result, "Password verification");
+    }
+
+    /**
+     * Hashes a password with the given scheme for upgrading a stored hash, unless the pool is saturated. Only the
+     * hashing runs on the pool, writing the new hash is left to the caller.
+     *
+     * @return the new hash, or {@code null} if the pool is saturated or the hash did not arrive within the timeout
+     */
+    public String tryHash(PasswordHashVerifier target, String password) {
+        if (executor == null) {
+            return target.hash(password);
+        }
+        Future<String> result;
+        try {
+            result = executor.submit(() -> target.hash(password));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return null;
+        }
+        try {
+            return await(result, "Password hashing");
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private <T> T await(Future<T> result, String task) {
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOut.increment();
+            throw new RejectedExecutionException(task + " did not complete within " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for " + task.toLowerCase(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private boolean timedVerify(PasswordHashVerifier verifier, String password, String storedHash, long enqueued) {
+        long start = System.nanoTime();
+        queueWaitNanos.add(start - enqueued);
+        try {
+            return verifier.verify(password, storedHash);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            verifyNanos.add(elapsed);
+            maxVerifyNanos.accumulate(elapsed);
+            completed.increment();
+        }
+    }
+
+    public int getPoolSize() {
+        return executor == null ? 0 : executor.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return executor == null ? 0 : executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    public double getAverageQueueWaitMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0.0 : queueWaitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getAverageVerifyMillis() {
+        long count = completed.sum();
+        return count == 0 ? 0.0 : verifyNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getMaxVerifyMillis() {
+        return maxVerifyNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            logger.info("Password verification executor closed, completed={}, rejected={}, timedOut={}",
+                    getCompletedCount(), getRejectedCount(), getTimedOutCount());
+        }
+    }
+
+    private static final class VerifierThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "p2-password-verifier-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.p2proto.keycloak.credential;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * PBKDF2 hashes in the passlib format, {@code $pbkdf2-sha256$<iterations>$<salt>$<checksum>}, where salt and
+ * checksum use base64 with {@code .} instead of {@code +} and no padding. Uses the JDK implementation.
+ */
+public class Pbkdf2PasswordHashVerifier implements PasswordHashVerifier {
+
+    public static final String SHA256 = "pbkdf2-sha256";
+    public static final String SHA512 = "pbkdf2-sha512";
+
+    // OWASP recommendations
+    public static final int DEFAULT_SHA256_ITERATIONS = 600000;
+    public static final int DEFAULT_SHA512_ITERATIONS = 210000;
+
+    private static final int SALT_LENGTH = 16;
+
+    private final String algorithm;
+    private final String prefix;
+    private final String jcaAlgorithm;
+    private final int keyLength;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    public Pbkdf2PasswordHashVerifier() {
+        this(SHA256, DEFAULT_SHA256_ITERATIONS);
+    }
+
+    public Pbkdf2PasswordHashVerifier(String algorithm, int iterations) {
+        switch (algorithm) {
+            case SHA256 -> {
+                this.jcaAlgorithm = "PBKDF2WithHmacSHA256";
+                this.keyLength = 32;
+            }
+            case SHA512 -> {
+                this.jcaAlgorithm = "PBKDF2WithHmacSHA512";
+                this.keyLength = 64;
+            }
+            default -> throw new IllegalArgumentException("Unsupported PBKDF2 variant " + algorithm);
+        }
+        this.algorithm = algorithm;
+        this.prefix = "$" + algorithm + "$";
+        this.iterations = iterations;
+    }
+
+    public static int defaultIterations(String algorithm) {
+        return SHA512.equals(algorithm) ? DEFAULT_SHA512_ITERATIONS : DEFAULT_SHA256_ITERATIONS;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public boolean supports(String storedHash) {
+        return storedHash != null && storedHash.startsWith(prefix);
+    }
+
+    @Override
+    public boolean verify(String password, String storedHash) {
+        String[] parts = storedHash.split("\\$");
+        if (parts.length != 5) {
+            return false;
+        }
+        try {
+            int rounds = Integer.parseInt(parts[2]);
+            byte[] salt = decode(parts[3]);
+            byte[] expected = decode(parts[4]);
+            return MessageDigest.isEqual(derive(password, salt, rounds, expected.length), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return prefix + iterations + "$" + encode(salt) + "$" + encode(derive(password, salt, iterations, keyLength));
+    }
+
+    @Override
+    public boolean needsRehash(String storedHash) {
+        String[] parts = storedHash.split("\\$");
+        try {
+            return parts.length != 5 || Integer.parseInt(parts[2]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private byte[] derive(String password, byte[] salt, int rounds, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(jcaAlgorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().withoutPadding().encodeToString(bytes).replace('+', '.');
+    }
+
+    private static byte[] decode(String value) {
+        return Base64.getDecoder().decode(value.replace('.', '+'));
+    }
+}
@@ -0,0 +1,43 @@
+package org.p2proto.keycloak.credential;
+
+import java.util.Arrays;
+
+/**
+ * Holds the password hash read together with a user's profile until the password check of the same session asks
+ * for it. One slot per provider instance, so per Keycloak session; not thread-safe. The hash is handed out once
+ * and the copy kept here is overwritten as soon as it is taken, replaced or the session ends.
+ */
+public final class PrefetchedPasswordHash {
+
+    private String username;
+    private char[] hash;
+
+    public void put(String username, String passwordHash) {
+        clear();
+        if (username != null && passwordHash != null) {
+            this.username = username;
+            this.hash = passwordHash.toCharArray();
+        }
+    }
+
+    /**
+     * @return the hash prefetched for {@code username}, or {@code null} when there is none and the caller has to
+     *         query it
+     */
+    public String take(String username) {
+        if (hash == null || !this.username.equals(username)) {
+            return null;
+        }
+        String result = new String(hash);
+        clear();
+        return result;
+    }
+
+    public void clear() {
+        if (hash != null) {
+            Arrays.fill(hash, '\0');
+            hash = null;
+        }
+        username = null;
+    }
+}
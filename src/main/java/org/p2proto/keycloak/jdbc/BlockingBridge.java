@@ -0,0 +1,150 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the provider's blocking JDBC work, always on the calling thread. In {@link Mode#DIRECT} the work simply
+ * runs. In {@link Mode#QUEUED} each call first waits for one of a fixed number of permits, one per pooled
+ * connection, so callers beyond the pool size queue on a fair semaphore instead of inside the pool. Work that keeps
+ * its connection after returning, an open search cursor, holds its permit until it is closed (see
+ * {@link #acquire()}).
+ * <p>
+ * Queueing is only cheap when the caller is a virtual thread, that is when Keycloak runs its request handlers on
+ * virtual threads: a waiting virtual thread costs a few hundred bytes and releases its carrier. A platform request
+ * thread stays blocked while it waits, as it would in the pool; handing the work to a virtual thread would not
+ * change that, the caller would block waiting for the result. The code behind the bridge uses
+ * {@code java.util.concurrent} locks rather than {@code synchronized}, so virtual threads are not pinned to their
+ * carrier while they wait.
+ */
+public class BlockingBridge implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockingBridge.class);
+
+    public enum Mode {
+        DIRECT,
+        QUEUED;
+
+        public static Mode parse(String value, Mode defaultValue) {
+            if (value == null || value.isBlank()) {
+                return defaultValue;
+            }
+            String name = value.trim().toUpperCase(Locale.ROOT);
+            // the names of earlier versions, which may still be stored in a component
+            switch (name) {
+                case "PLATFORM" -> name = DIRECT.name();
+                case "VIRTUAL" -> name = QUEUED.name();
+                default -> {
+                }
+            }
+            try {
+                return Mode.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    private final LongAdder timeouts = new LongAdder();
+
+    private BlockingBridge(Semaphore permits, long timeoutMillis) {
+        this.permits = permits;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static BlockingBridge direct() {
+        return new BlockingBridge(null, 0);
+    }
+
+    /**
+     * @param permits       concurrent calls, normally the number of connections behind the bridge
+     * @param timeoutMillis how long a call waits for a permit before failing like a pool timeout
+     */
+    public static BlockingBridge create(Mode mode, int permits, long timeoutMillis) {
+        if (mode != Mode.QUEUED) {
+            return direct();
+        }
+        logger.info("Running at most {} JDBC calls at a time, the others wait for a permit; waiting is only cheap "
+                + "when Keycloak handles requests on virtual threads", permits);
+        return new BlockingBridge(new Semaphore(Math.max(permits, 1), true), timeoutMillis);
+    }
+
+    public <T> T call(SqlWork<T> work) throws SQLException {
+        if (permits == null) {
+            return work.run();
+        }
+        return gated(work);
+    }
+
+    /**
+     * Takes a permit for work that keeps its connection beyond the call.
+     *
+     * @return gives the permit back, only the first run counts
+     */
+    public Runnable acquire() throws SQLException {
+        if (permits == null) {
+            return () -> {
+            };
+        }
+        awaitPermit();
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+    }
+
+    private <T> T gated(SqlWork<T> work) throws SQLException {
+        awaitPermit();
+        try {
+            return work.run();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void awaitPermit() throws SQLException {
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTransientConnectionException(
+                        "No database permit available within " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database permit", e);
+        }
+    }
+
+    /**
+     * Calls currently waiting for a permit.
+     */
+    public int getQueueLength() {
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the work runs on the callers' threads
+    }
+}
@@ -0,0 +1,284 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling the database of a component while it is degraded, so that provider calls fail within
+ * microseconds instead of each one waiting for a connection or query timeout.
+ * <p>
+ * Only failures that point at the database itself count: timeouts, cancelled statements, lost or refused
+ * connections and an exhausted pool or {@link BlockingBridge}. A failing statement or an unknown column is an
+ * answer from a healthy database and counts as a success. After {@code failureThreshold} failures in a row the
+ * circuit opens and every call is rejected with a {@link RejectedException}. Once {@code openSeconds} have
+ * passed one call is let through as a probe; it closes the circuit if it succeeds and opens it again if not.
+ * <p>
+ * Each failure also halves a concurrency limit, each success raises it by a fraction until it is back at
+ * {@code maxConcurrency}. While the limit is below its maximum, calls beyond it are rejected instead of queueing
+ * for a connection; a healthy database is not limited, the pool queues bursts as before.
+ */
+public class CircuitBreaker implements CircuitBreakerMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of calling the database while the circuit is open or the concurrency limit is reached.
+     */
+    public static class RejectedException extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    private final String componentId;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int maxConcurrency;
+    private final LongSupplier clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probing;
+    private double limit;
+    private int inFlight;
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit, {@code 0} disables the breaker
+     * @param openSeconds      how long the circuit stays open before a probe is let through
+     * @param maxConcurrency   the concurrency limit of a healthy database, normally twice the connections
+     */
+    public CircuitBreaker(String componentId, int failureThreshold, int openSeconds, int maxConcurrency) {
+        this(componentId, failureThreshold, openSeconds, maxConcurrency, System::nanoTime);
+    }
+
+    CircuitBreaker(String componentId, int failureThreshold, int openSeconds, int maxConcurrency,
+                   LongSupplier clock) {
+        this.componentId = componentId;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(Math.max(openSeconds, 1));
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+        this.clock = clock;
+        this.limit = this.maxConcurrency;
+    }
+
+    public static CircuitBreaker disabled() {
+        return new CircuitBreaker(null, 0, 1, 1);
+    }
+
+    public boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    public <T> T call(BlockingBridge.SqlWork<T> work) throws SQLException {
+        if (failureThreshold <= 0) {
+            return work.run();
+        }
+        boolean probe = acquire();
+        SQLException failure = null;
+        try {
+            return work.run();
+        } catch (SQLException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(probe, failure);
+        }
+    }
+
+    /**
+     * Whether a failure means the database is unreachable, overloaded or too slow, rather than that a statement
+     * was wrong.
+     */
+    public static boolean isDatabaseFailure(SQLException e) {
+        if (e instanceof SQLTransientException || e instanceof SQLNonTransientConnectionException) {
+            return true;
+        }
+        String sqlState = e.getSQLState();
+        return sqlState != null && (sqlState.startsWith("08") // connection exception
+                || sqlState.startsWith("53")                    // insufficient resources, e.g. too many connections
+                || sqlState.equals("57014")                     // statement cancelled by a query timeout
+                || sqlState.startsWith("57P"));                 // server shutting down or starting up
+    }
+
+    private boolean acquire() throws RejectedException {
+        lock.lock();
+        try {
+            boolean probe = false;
+            if (state == State.OPEN) {
+                if (clock.getAsLong() - openedAt < openNanos) {
+                    rejected.increment();
+                    throw new RejectedException("Circuit of component " + componentId + " is open");
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probing) {
+                    rejected.increment();
+                    throw new RejectedException("Circuit of component " + componentId + " is half-open");
+                }
+                probing = true;
+                probe = true;
+            } else if (limit < maxConcurrency && inFlight >= (int) limit) {
+                limited.increment();
+                throw new RejectedException("Concurrency limit " + (int) limit + " of component " + componentId
+                        + " reached");
+            }
+            inFlight++;
+            return probe;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(boolean probe, SQLException failure) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (probe) {
+                probing = false;
+            }
+            if (failure instanceof RejectedException) {
+                // rejected by a nested call, the database was not asked
+                return;
+            }
+            if (failure != null && isDatabaseFailure(failure)) {
+                limit = Math.max(limit / 2, 1);
+                consecutiveFailures++;
+                if (probe || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                    openedAt = clock.getAsLong();
+                    transition(State.OPEN);
+                }
+            } else {
+                limit = Math.min(limit + 1 / limit, maxConcurrency);
+                consecutiveFailures = 0;
+                if (probe) {
+                    transition(State.CLOSED);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called with the lock held
+    private void transition(State to) {
+        if (state == to) {
+            return;
+        }
+        state = to;
+        switch (to) {
+            case OPEN -> {
+                opened.increment();
+                logger.warn("Database of component {} failed {} times in a row, failing fast for {} s",
+                        componentId, consecutiveFailures, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+            }
+            case HALF_OPEN -> {
+                halfOpened.increment();
+                logger.info("Probing the database of component {}", componentId);
+            }
+            case CLOSED -> {
+                closed.increment();
+                logger.info("Database of component {} recovered", componentId);
+            }
+        }
+    }
+
+    public State currentState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getState() {
+        return currentState().name();
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+        lock.lock();
+        try {
+            return consecutiveFailures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @Override
+    public long getHalfOpened() {
+        return halfOpened.sum();
+    }
+
+    @Override
+    public long getClosed() {
+        return closed.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    @Override
+    public double getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.p2proto.keycloak.jdbc;
+
+/**
+ * JMX view of {@link CircuitBreaker}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=circuitBreaker}.
+ */
+public interface CircuitBreakerMXBean {
+
+    /**
+     * {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}.
+     */
+    String getState();
+
+    int getConsecutiveFailures();
+
+    /**
+     * Transitions into each state since start.
+     */
+    long getOpened();
+
+    long getHalfOpened();
+
+    long getClosed();
+
+    /**
+     * Calls failed without reaching the database because the circuit was open.
+     */
+    long getRejected();
+
+    /**
+     * Calls failed without reaching the database because the concurrency limit was reached.
+     */
+    long getLimited();
+
+    double getConcurrencyLimit();
+
+    int getMaxConcurrency();
+
+    int getInFlight();
+}
@@ -0,0 +1,172 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Exposes an open {@link ResultSet} as a lazy {@link Stream}: rows are mapped one at a time as the stream is
+ * consumed and, with a fetch size set outside auto-commit, PgJDBC fetches them from a server-side cursor.
+ * <p>
+ * The statement and connection are released when the last row has been read, when the stream is closed,
+ * or when {@link #close()} is called, whichever comes first. Callers that may not drain the stream
+ * (Keycloak often applies {@code limit()} itself) should also keep the cursor and close it when their session ends.
+ */
+public class CursorStream<T> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CursorStream.class);
+
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final RowMapper<Object> mapper;
+    private final int batchSize;
+    private final Function<List<Object>, List<T>> batchMapper;
+    private final Runnable onExhausted;
+    private final ArrayDeque<T> buffered = new ArrayDeque<>();
+    private Runnable onRelease;
+    private boolean closed;
+
+    @SuppressWarnings("unchecked")
+    private <R> CursorStream(Connection connection, PreparedStatement statement, ResultSet resultSet,
+                             RowMapper<R> mapper, int batchSize, Function<List<R>, List<T>> batchMapper,
+                             Runnable onExhausted) {
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.mapper = (RowMapper<Object>) mapper;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchMapper = (Function<List<Object>, List<T>>) (Function<?, ?>) batchMapper;
+        this.onExhausted = onExhausted;
+    }
+
+    /**
+     * Takes ownership of the connection, statement and result set.
+     *
+     * @param onExhausted run once after the last row was read, may be {@code null}
+     */
+    public static <T> CursorStream<T> open(Connection connection, PreparedStatement statement, ResultSet resultSet,
+                                           RowMapper<T> mapper, Runnable onExhausted) {
+        return new CursorStream<>(connection, statement, resultSet, mapper, 1, rows -> rows, onExhausted);
+    }
+
+    /**
+     * Like {@link #open(Connection, PreparedStatement, ResultSet, RowMapper, Runnable)}, but reads up to
+     * {@code batchSize} rows ahead and hands them to {@code batchMapper} together, for work that is cheaper done
+     * for many rows at once. With a batch no larger than the fetch size the rows read ahead are already in
+     * memory, so reading ahead costs no round trip.
+     *
+     * @param batchMapper returns at most one element per row, in order
+     */
+    public static <R, T> CursorStream<T> open(Connection connection, PreparedStatement statement, ResultSet resultSet,
+                                              RowMapper<R> mapper, int batchSize,
+                                              Function<List<R>, List<T>> batchMapper, Runnable onExhausted) {
+        return new CursorStream<>(connection, statement, resultSet, mapper, batchSize, batchMapper, onExhausted);
+    }
+
+    /**
+     * Runs {@code action} once the connection has been released, at once if it already was.
+     */
+    public CursorStream<T> whenReleased(Runnable action) {
+        if (closed) {
+            action.run();
+        } else {
+            onRelease = action;
+        }
+        return this;
+    }
+
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                while (buffered.isEmpty()) {
+                    if (!readBatch()) {
+                        return false;
+                    }
+                }
+                action.accept(buffered.poll());
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    private boolean readBatch() {
+        if (closed) {
+            return false;
+        }
+        List<Object> rows = new ArrayList<>(Math.min(batchSize, 64));
+        boolean exhausted = false;
+        try {
+            while (rows.size() < batchSize) {
+                if (!resultSet.next()) {
+                    exhausted = true;
+                    break;
+                }
+                rows.add(mapper.map(resultSet));
+            }
+        } catch (SQLException e) {
+            logger.error("Error reading user rows", e);
+            close();
+            return false;
+        }
+        if (exhausted) {
+            close();
+            if (onExhausted != null) {
+                onExhausted.run();
+            }
+        }
+        if (rows.isEmpty()) {
+            return false;
+        }
+        buffered.addAll(batchMapper.apply(rows));
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            resultSet.close();
+            statement.close();
+        } catch (SQLException e) {
+            logger.warn("Error closing user cursor", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Error releasing connection", e);
+            }
+            if (onRelease != null) {
+                onRelease.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out connections for reads and writes. Writes always go to the primary; reads rotate over the replicas
+ * that passed their last health check and fall back to the primary when none is usable.
+ * <p>
+ * A replica is taken out of rotation when it can't be reached or when its replay lag exceeds the configured
+ * tolerance, and is put back by the next health check that finds it caught up. A failed connection attempt
+ * takes the replica out immediately, so requests don't wait for the next check to stop trying it.
+ */
+public class ReplicaRouter implements ReplicaRouterMXBean, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    // an idle primary writes no WAL, so a standby that has replayed everything it received counts as caught up
+    static final String LAG_SQL = "SELECT CASE WHEN NOT pg_is_in_recovery() "
+            + "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+            + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END";
+
+    private final DataSource primary;
+    private final List<Replica> replicas;
+    private final double maxLagSeconds;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder primaryFallbacks = new LongAdder();
+    private ScheduledFuture<?> healthCheck;
+
+    /**
+     * @param replicas      read-only pools, closed together with the router
+     * @param maxLagSeconds replay lag above which a replica stops serving reads
+     */
+    public ReplicaRouter(DataSource primary, List<? extends DataSource> replicas, double maxLagSeconds) {
+        this.primary = primary;
+        this.maxLagSeconds = maxLagSeconds;
+        List<Replica> list = new ArrayList<>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            list.add(new Replica("replica-" + i, replicas.get(i)));
+        }
+        this.replicas = List.copyOf(list);
+    }
+
+    public static ReplicaRouter primaryOnly(DataSource primary) {
+        return new ReplicaRouter(primary, List.of(), 0);
+    }
+
+    public void start(ScheduledExecutorService scheduler, long intervalSeconds) {
+        if (!replicas.isEmpty()) {
+            healthCheck = scheduler.scheduleWithFixedDelay(this::checkHealth, 0, Math.max(intervalSeconds, 1),
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    public Connection getWriteConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    public Connection getReadConnection() throws SQLException {
+        int count = replicas.size();
+        if (count > 0) {
+            int first = Math.floorMod(next.getAndIncrement(), count);
+            for (int i = 0; i < count; i++) {
+                Replica replica = replicas.get((first + i) % count);
+                if (!replica.healthy) {
+                    continue;
+                }
+                try {
+                    return replica.dataSource.getConnection();
+                } catch (SQLException e) {
+                    replica.markDown(e.getMessage());
+                }
+            }
+            primaryFallbacks.increment();
+        }
+        return primary.getConnection();
+    }
+
+    void checkHealth() {
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+                double lag = rs.next() ? rs.getDouble(1) : 0;
+                replica.lagSeconds = lag;
+                if (lag > maxLagSeconds) {
+                    replica.markDown(String.format("replay lag %.1fs exceeds %.1fs", lag, maxLagSeconds));
+                } else {
+                    replica.markUp();
+                }
+            } catch (SQLException | RuntimeException e) {
+                replica.markDown(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    @Override
+    public int getHealthyReplicaCount() {
+        int healthy = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Reads served by the primary although replicas are configured.
+     */
+    @Override
+    public long getPrimaryFallbacks() {
+        return primaryFallbacks.sum();
+    }
+
+    @Override
+    public void close() {
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+        }
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    logger.warn("Could not close {}: {}", replica.name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private volatile boolean healthy = true;
+        private volatile double lagSeconds;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        private void markDown(String reason) {
+            if (healthy) {
+                healthy = false;
+                logger.warn("Taking {} out of read rotation: {}", name, reason);
+            }
+        }
+
+        private void markUp() {
+            if (!healthy) {
+                healthy = true;
+                logger.info("Returning {} to read rotation, replay lag {}s", name, lagSeconds);
+            }
+        }
+    }
+}
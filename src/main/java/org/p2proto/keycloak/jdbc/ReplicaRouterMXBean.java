@@ -0,0 +1,14 @@
+package org.p2proto.keycloak.jdbc;
+
+/**
+ * JMX view of {@link ReplicaRouter}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=replicas}.
+ */
+public interface ReplicaRouterMXBean {
+
+    int getReplicaCount();
+
+    int getHealthyReplicaCount();
+
+    long getPrimaryFallbacks();
+}
@@ -0,0 +1,208 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.p2proto.keycloak.metrics.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The last {@link #CAPACITY} statements of one component that ran longer than a threshold, with the provider
+ * method that issued them, their SQL and the types of their parameters. Values are not kept, they are search
+ * terms and usernames.
+ * <p>
+ * With an executor, the plan of a slow statement is captured as well: {@code EXPLAIN (ANALYZE, BUFFERS)} runs it
+ * again in the background with the same values, on a read connection. That doubles the cost of the statement,
+ * so each statement text is explained at most once per {@link #EXPLAIN_INTERVAL_MINUTES} minutes.
+ */
+public class SlowQueryTrace implements SlowQueryTraceMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryTrace.class);
+
+    static final int CAPACITY = 128;
+    static final long EXPLAIN_INTERVAL_MINUTES = 10;
+
+    private final String componentId;
+    private final long thresholdNanos;
+    private final ReplicaRouter router;
+    private final Executor explainExecutor;
+    private final AtomicReferenceArray<SlowQuery> entries = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder captured = new LongAdder();
+    private final ConcurrentHashMap<String, Long> lastExplained = new ConcurrentHashMap<>();
+
+    /**
+     * @param thresholdMillis statements taking longer are kept, {@code 0} keeps none
+     * @param explainExecutor runs {@code EXPLAIN} for slow statements, {@code null} captures no plans
+     */
+    public SlowQueryTrace(String componentId, long thresholdMillis, ReplicaRouter router, Executor explainExecutor) {
+        this.componentId = componentId;
+        this.thresholdNanos = thresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(thresholdMillis) : Long.MAX_VALUE;
+        this.router = router;
+        this.explainExecutor = explainExecutor;
+    }
+
+    public static SlowQueryTrace disabled() {
+        return new SlowQueryTrace(null, 0, null, null);
+    }
+
+    /**
+     * One statement that started at {@code startNanos} and has returned its first rows.
+     *
+     * @param parameters the bound values in order, a {@code String[]} stands for a {@code text[]} array
+     */
+    public void record(Operation operation, String sql, List<?> parameters, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed <= thresholdNanos) {
+            return;
+        }
+        List<String> types = new ArrayList<>(parameters.size());
+        for (Object parameter : parameters) {
+            types.add(parameter == null ? "null" : parameter.getClass().getSimpleName());
+        }
+        SlowQuery query = new SlowQuery(Instant.now().toString(), componentId, operation.getTagValue(), sql,
+                Collections.unmodifiableList(types), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        entries.set((int) (next.getAndIncrement() % CAPACITY), query);
+        captured.increment();
+        if (explainExecutor != null && claimExplain(sql)) {
+            List<Object> values = new ArrayList<>(parameters);
+            try {
+                explainExecutor.execute(() -> query.plan = explain(sql, values));
+            } catch (RejectedExecutionException e) {
+                lastExplained.remove(sql);
+            }
+        }
+    }
+
+    private boolean claimExplain(String sql) {
+        long now = System.nanoTime();
+        Long last = lastExplained.get(sql);
+        if (last != null && now - last < TimeUnit.MINUTES.toNanos(EXPLAIN_INTERVAL_MINUTES)) {
+            return false;
+        }
+        return last == null ? lastExplained.putIfAbsent(sql, now) == null : lastExplained.replace(sql, last, now);
+    }
+
+    private String explain(String sql, List<Object> values) {
+        try (Connection connection = router.getReadConnection();
+             PreparedStatement stmt = connection.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql)) {
+            for (int i = 0; i < values.size(); i++) {
+                Object value = values.get(i);
+                stmt.setObject(i + 1, value instanceof String[] array ? connection.createArrayOf("text", array) : value);
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    plan.append(rs.getString(1)).append('\n');
+                }
+            }
+            return plan.toString();
+        } catch (SQLException | RuntimeException e) {
+            logger.warn("Could not explain slow statement {}: {}", sql, e.getMessage());
+            return "EXPLAIN failed: " + e.getMessage();
+        }
+    }
+
+    @Override
+    public List<SlowQuery> getSlowQueries() {
+        List<SlowQuery> newestFirst = new ArrayList<>(CAPACITY);
+        long last = next.get();
+        for (long i = last - 1; i >= Math.max(0, last - CAPACITY); i--) {
+            SlowQuery query = entries.get((int) (i % CAPACITY));
+            if (query != null) {
+                newestFirst.add(query);
+            }
+        }
+        return newestFirst;
+    }
+
+    @Override
+    public long getCaptured() {
+        return captured.sum();
+    }
+
+    @Override
+    public long getThresholdMillis() {
+        return thresholdNanos == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries.set(i, null);
+        }
+        lastExplained.clear();
+    }
+
+    /**
+     * One slow statement, shown by JMX clients as a composite value.
+     */
+    public static final class SlowQuery {
+        private final String timestamp;
+        private final String componentId;
+        private final String operation;
+        private final String sql;
+        private final List<String> parameterTypes;
+        private final long millis;
+        private volatile String plan;
+
+        SlowQuery(String timestamp, String componentId, String operation, String sql, List<String> parameterTypes,
+                  long millis) {
+            this.timestamp = timestamp;
+            this.componentId = componentId;
+            this.operation = operation;
+            this.sql = sql;
+            this.parameterTypes = parameterTypes;
+            this.millis = millis;
+        }
+
+        public String getTimestamp() {
+            return timestamp;
+        }
+
+        public String getComponentId() {
+            return componentId;
+        }
+
+        /**
+         * The provider method, as in the metric tags.
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * The {@code EXPLAIN (ANALYZE, BUFFERS)} output, {@code null} when plans are not captured, this statement
+         * text was explained recently or the plan is still being captured.
+         */
+        public String getPlan() {
+            return plan;
+        }
+    }
+}
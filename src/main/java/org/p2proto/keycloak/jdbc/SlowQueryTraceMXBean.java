@@ -0,0 +1,24 @@
+package org.p2proto.keycloak.jdbc;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link SlowQueryTrace}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=slowQueries}.
+ */
+public interface SlowQueryTraceMXBean {
+
+    /**
+     * The most recent slow statements, newest first.
+     */
+    List<SlowQueryTrace.SlowQuery> getSlowQueries();
+
+    /**
+     * Statements over the threshold since start, including those the buffer no longer holds.
+     */
+    long getCaptured();
+
+    long getThresholdMillis();
+
+    void clear();
+}
@@ -0,0 +1,123 @@
+package org.p2proto.keycloak.metrics;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.p2proto.keycloak.cache.CacheStatistics;
+import org.p2proto.keycloak.credential.LoginThrottle;
+import org.p2proto.keycloak.credential.PasswordVerificationExecutor;
+import org.p2proto.keycloak.jdbc.CircuitBreaker;
+import org.p2proto.keycloak.jdbc.ReplicaRouter;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The only class that references Micrometer, loaded by {@link ProviderMetrics} when Micrometer is present.
+ * Meters are function-based: they read the {@link OperationMetrics} counters at scrape time and add nothing to
+ * the call path.
+ */
+final class MicrometerBinding implements AutoCloseable {
+
+    static final String PREFIX = "p2.user.storage";
+
+    private final MeterRegistry registry;
+    private final List<Meter> meters = new ArrayList<>();
+
+    private MicrometerBinding(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    static MicrometerBinding bindComponent(String componentId, ProviderMetrics metrics, CacheStatistics cache,
+                                           SearchTemplateCache searchTemplates, ReplicaRouter router,
+                                           LoginThrottle loginThrottle, CircuitBreaker circuitBreaker) {
+        MicrometerBinding binding = new MicrometerBinding(Metrics.globalRegistry);
+        Tags component = Tags.of("component", String.valueOf(componentId));
+        for (Operation operation : Operation.values()) {
+            OperationMetrics op = metrics.get(operation);
+            Tags tags = component.and("operation", operation.getTagValue());
+            binding.add(FunctionTimer.builder(PREFIX + ".calls", op, OperationMetrics::getCalls,
+                            OperationMetrics::getTotalNanos, TimeUnit.NANOSECONDS)
+                    .tags(tags).description("Provider calls and their total time").register(binding.registry));
+            binding.add(FunctionTimer.builder(PREFIX + ".queries", op, OperationMetrics::getQueries,
+                            OperationMetrics::getQueryNanos, TimeUnit.NANOSECONDS)
+                    .tags(tags).description("Database round trips and the time until results were available")
+                    .register(binding.registry));
+            binding.counter(PREFIX + ".errors", op, OperationMetrics::getErrors, tags);
+            binding.counter(PREFIX + ".rows", op, OperationMetrics::getRows, tags);
+            binding.counter(PREFIX + ".slow.calls", op, OperationMetrics::getSlowCalls, tags);
+        }
+        binding.counter(PREFIX + ".cache.hits", cache, CacheStatistics::getSessionHits, component.and("tier", "session"));
+        binding.counter(PREFIX + ".cache.hits", cache, CacheStatistics::getSharedHits, component.and("tier", "shared"));
+        binding.counter(PREFIX + ".cache.misses", cache, CacheStatistics::getMisses, component);
+        binding.counter(PREFIX + ".cache.evictions", cache, CacheStatistics::getEvictions, component);
+        binding.counter(PREFIX + ".cache.invalidations", cache, CacheStatistics::getInvalidations, component);
+        binding.counter(PREFIX + ".cache.stale.hits", cache, CacheStatistics::getStaleHits, component);
+        binding.counter(PREFIX + ".search.templates.hits", searchTemplates, SearchTemplateCache::getHits, component);
+        binding.counter(PREFIX + ".search.templates.misses", searchTemplates, SearchTemplateCache::getMisses, component);
+        binding.gauge(PREFIX + ".replicas.healthy", router, ReplicaRouter::getHealthyReplicaCount, component);
+        binding.counter(PREFIX + ".replicas.fallbacks", router, ReplicaRouter::getPrimaryFallbacks, component);
+        binding.counter(PREFIX + ".login.throttled", loginThrottle, LoginThrottle::getRejectedByUsername,
+                component.and("key", "username"));
+        binding.counter(PREFIX + ".login.throttled", loginThrottle, LoginThrottle::getRejectedByAddress,
+                component.and("key", "address"));
+        binding.gauge(PREFIX + ".circuit.state", circuitBreaker, breaker -> breaker.currentState().ordinal(),
+                component);
+        binding.counter(PREFIX + ".circuit.transitions", circuitBreaker, CircuitBreaker::getOpened,
+                component.and("state", "open"));
+        binding.counter(PREFIX + ".circuit.transitions", circuitBreaker, CircuitBreaker::getHalfOpened,
+                component.and("state", "half_open"));
+        binding.counter(PREFIX + ".circuit.transitions", circuitBreaker, CircuitBreaker::getClosed,
+                component.and("state", "closed"));
+        binding.counter(PREFIX + ".circuit.rejected", circuitBreaker, CircuitBreaker::getRejected,
+                component.and("reason", "open"));
+        binding.counter(PREFIX + ".circuit.rejected", circuitBreaker, CircuitBreaker::getLimited,
+                component.and("reason", "limit"));
+        binding.gauge(PREFIX + ".circuit.limit", circuitBreaker, CircuitBreaker::getConcurrencyLimit, component);
+        return binding;
+    }
+
+    static MicrometerBinding bindPasswordVerifier(PasswordVerificationExecutor executor) {
+        MicrometerBinding binding = new MicrometerBinding(Metrics.globalRegistry);
+        binding.gauge(PREFIX + ".hash.active", executor, PasswordVerificationExecutor::getActiveCount);
+        binding.gauge(PREFIX + ".hash.queue", executor, PasswordVerificationExecutor::getQueueDepth);
+        binding.counter(PREFIX + ".hash.rejected", executor, PasswordVerificationExecutor::getRejectedCount, Tags.empty());
+        binding.counter(PREFIX + ".hash.timeouts", executor, PasswordVerificationExecutor::getTimedOutCount, Tags.empty());
+        return binding;
+    }
+
+    static void trackPool(HikariConfig hikariConfig) {
+        hikariConfig.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(Metrics.globalRegistry));
+    }
+
+    private <T> void counter(String name, T source, ToDoubleFunction<T> value, Tags tags) {
+        add(FunctionCounter.builder(name, source, value).tags(tags).register(registry));
+    }
+
+    private <T> void gauge(String name, T source, ToDoubleFunction<T> value) {
+        gauge(name, source, value, Tags.empty());
+    }
+
+    private <T> void gauge(String name, T source, ToDoubleFunction<T> value, Tags tags) {
+        add(Gauge.builder(name, source, value).tags(tags).register(registry));
+    }
+
+    private void add(Meter meter) {
+        meters.add(meter);
+    }
+
+    @Override
+    public void close() {
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+}
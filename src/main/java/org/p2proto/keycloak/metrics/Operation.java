@@ -0,0 +1,34 @@
+package org.p2proto.keycloak.metrics;
+
+/**
+ * Provider entry points that are measured, plus the password hash check that {@link #IS_VALID} waits for.
+ */
+public enum Operation {
+
+    GET_USER_BY_ID("getUserById"),
+    GET_USER_BY_USERNAME("getUserByUsername"),
+    GET_USER_BY_EMAIL("getUserByEmail"),
+    GET_USERS_BATCH("getUsersBatch"),
+    SEARCH_FOR_USER("searchForUserStream"),
+    GET_GROUP_MEMBERS("getGroupMembersStream"),
+    SEARCH_BY_ATTRIBUTE("searchForUserByUserAttributeStream"),
+    GET_USERS_COUNT("getUsersCount"),
+    IS_VALID("isValid"),
+    /** Reads of {@code platform.user_attributes}, one per lookup or search page whose attributes are used. */
+    GET_ATTRIBUTES("getAttributes"),
+    /** Time spent in the verifier pool, queue wait included. */
+    PASSWORD_HASH("passwordHash");
+
+    private final String tagValue;
+
+    Operation(String tagValue) {
+        this.tagValue = tagValue;
+    }
+
+    /**
+     * Name used in metric tags and JMX object names.
+     */
+    public String getTagValue() {
+        return tagValue;
+    }
+}
@@ -0,0 +1,116 @@
+package org.p2proto.keycloak.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one {@link Operation}. Recording is a handful of {@link LongAdder} increments, which stay cheap
+ * under contention; timers and rates are derived when a registry or JMX client reads them.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder slowCalls = new LongAdder();
+    private SlowCallLog slowCallLog;
+
+    /**
+     * Completes one call that started at {@code startNanos} ({@link System#nanoTime()}).
+     */
+    public void record(long startNanos) {
+        record(startNanos, null);
+    }
+
+    /**
+     * Same as {@link #record(long)}, {@code detail} describes the call in the slow call log by its type and size,
+     * and is only looked at when the call was slow.
+     */
+    public void record(long startNanos, Object detail) {
+        long elapsed = System.nanoTime() - startNanos;
+        totalNanos.add(elapsed);
+        calls.increment();
+        SlowCallLog log = slowCallLog;
+        if (log != null && log.isSlow(elapsed)) {
+            slowCalls.increment();
+            log.report(elapsed, detail);
+        }
+    }
+
+    void logSlowCalls(SlowCallLog log) {
+        this.slowCallLog = log;
+    }
+
+    /**
+     * One database round trip that started at {@code startNanos}, from borrowing the connection until the
+     * result set is available.
+     */
+    public void recordQuery(long startNanos) {
+        queryNanos.add(System.nanoTime() - startNanos);
+        queries.increment();
+    }
+
+    public void recordRows(long count) {
+        rows.add(count);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    @Override
+    public double getTotalTimeMillis() {
+        return toMillis(getTotalNanos());
+    }
+
+    @Override
+    public double getMeanTimeMillis() {
+        long count = getCalls();
+        return count == 0 ? 0.0 : getTotalTimeMillis() / count;
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getQueryNanos() {
+        return queryNanos.sum();
+    }
+
+    @Override
+    public double getQueryTimeMillis() {
+        return toMillis(getQueryNanos());
+    }
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+    @Override
+    public long getSlowCalls() {
+        return slowCalls.sum();
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
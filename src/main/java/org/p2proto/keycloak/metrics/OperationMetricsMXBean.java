@@ -0,0 +1,27 @@
+package org.p2proto.keycloak.metrics;
+
+/**
+ * JMX view of one {@link Operation}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,operation=<name>}.
+ */
+public interface OperationMetricsMXBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    double getTotalTimeMillis();
+
+    double getMeanTimeMillis();
+
+    long getQueries();
+
+    double getQueryTimeMillis();
+
+    long getRows();
+
+    /**
+     * Calls over the slow call threshold, logged or not.
+     */
+    long getSlowCalls();
+}
@@ -0,0 +1,241 @@
+package org.p2proto.keycloak.metrics;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.p2proto.keycloak.cache.CacheStatistics;
+import org.p2proto.keycloak.credential.LoginThrottle;
+import org.p2proto.keycloak.credential.PasswordVerificationExecutor;
+import org.p2proto.keycloak.jdbc.CircuitBreaker;
+import org.p2proto.keycloak.jdbc.ReplicaRouter;
+import org.p2proto.keycloak.jdbc.SlowQueryTrace;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Operation counters of one component, published over JMX and, when Keycloak runs with metrics enabled, to the
+ * Micrometer global registry that backs its Prometheus endpoint. Micrometer is only touched when it is on the
+ * class path, so the provider keeps working without it.
+ */
+public class ProviderMetrics implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderMetrics.class);
+
+    static final String JMX_DOMAIN = "org.p2proto.keycloak";
+    private static final boolean MICROMETER_AVAILABLE = isPresent("io.micrometer.core.instrument.Metrics");
+
+    private final EnumMap<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+    private final List<ObjectName> registeredBeans = new ArrayList<>();
+    private AutoCloseable micrometerBinding;
+
+    public ProviderMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationMetrics());
+        }
+    }
+
+    public OperationMetrics get(Operation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Logs calls of this component slower than {@code thresholdMillis}, see {@link SlowCallLog}; {@code 0} logs
+     * none.
+     */
+    public void logSlowCalls(String componentId, long thresholdMillis) {
+        for (Operation operation : Operation.values()) {
+            operations.get(operation).logSlowCalls(
+                    thresholdMillis > 0 ? new SlowCallLog(componentId, operation, thresholdMillis) : null);
+        }
+    }
+
+    /**
+     * Publishes the counters of this component, its cache, its search templates, its read replicas, its login
+     * throttle, its slow statements and its circuit breaker. Called once per component by the factory,
+     * {@link #close()} withdraws them again.
+     */
+    public void register(String componentId, CacheStatistics cacheStatistics, SearchTemplateCache searchTemplates,
+                         ReplicaRouter router, LoginThrottle loginThrottle, SlowQueryTrace slowQueries,
+                         CircuitBreaker circuitBreaker) {
+        String prefix = JMX_DOMAIN + ":type=UserStorage,component=" + ObjectName.quote(String.valueOf(componentId));
+        for (Operation operation : Operation.values()) {
+            registerBean(prefix + ",operation=" + operation.getTagValue(), operations.get(operation));
+        }
+        registerBean(prefix + ",name=cache", cacheStatistics);
+        registerBean(prefix + ",name=searchTemplates", searchTemplates);
+        registerBean(prefix + ",name=replicas", router);
+        registerBean(prefix + ",name=loginThrottle", loginThrottle);
+        registerBean(prefix + ",name=slowQueries", slowQueries);
+        registerBean(prefix + ",name=circuitBreaker", circuitBreaker);
+        if (MICROMETER_AVAILABLE) {
+            micrometerBinding = MicrometerBinding.bindComponent(componentId, this, cacheStatistics, searchTemplates,
+                    router, loginThrottle, circuitBreaker);
+        }
+    }
+
+    /**
+     * Gauges of the password verifier pool shared by all components.
+     */
+    public static AutoCloseable registerPasswordVerifier(PasswordVerificationExecutor executor) {
+        ObjectName name = registerBeanQuietly(JMX_DOMAIN + ":type=UserStorage,name=passwordVerifier",
+                new PasswordVerifierStats(executor));
+        AutoCloseable micrometer = MICROMETER_AVAILABLE ? MicrometerBinding.bindPasswordVerifier(executor) : null;
+        return () -> {
+            unregisterBean(name);
+            if (micrometer != null) {
+                micrometer.close();
+            }
+        };
+    }
+
+    /**
+     * Lets Hikari publish its pool gauges (active, idle, pending connections, acquire time) over JMX and to
+     * Micrometer.
+     */
+    public static void configurePool(HikariConfig hikariConfig) {
+        hikariConfig.setRegisterMbeans(true);
+        if (MICROMETER_AVAILABLE) {
+            MicrometerBinding.trackPool(hikariConfig);
+        }
+    }
+
+    private void registerBean(String name, Object bean) {
+        ObjectName objectName = registerBeanQuietly(name, bean);
+        if (objectName != null) {
+            registeredBeans.add(objectName);
+        }
+    }
+
+    private static ObjectName registerBeanQuietly(String name, Object bean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            try {
+                server.registerMBean(bean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                // left behind by a component that was rebuilt, the new counters replace it
+                server.unregisterMBean(objectName);
+                server.registerMBean(bean, objectName);
+            }
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("Could not register MBean {}: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void unregisterBean(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // already replaced or removed
+        } catch (JMException e) {
+            logger.warn("Could not unregister MBean {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, ProviderMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        registeredBeans.forEach(ProviderMetrics::unregisterBean);
+        registeredBeans.clear();
+        if (micrometerBinding != null) {
+            try {
+                micrometerBinding.close();
+            } catch (Exception e) {
+                logger.warn("Could not remove meters: {}", e.getMessage());
+            }
+            micrometerBinding = null;
+        }
+    }
+
+    /**
+     * JMX view of the password verifier pool.
+     */
+    public interface PasswordVerifierStatsMXBean {
+
+        int getActiveCount();
+
+        int getQueueDepth();
+
+        int getQueueCapacity();
+
+        long getCompletedCount();
+
+        long getRejectedCount();
+
+        long getTimedOutCount();
+
+        double getAverageQueueWaitMillis();
+
+        double getAverageVerifyMillis();
+    }
+
+    private static final class PasswordVerifierStats implements PasswordVerifierStatsMXBean {
+        private final PasswordVerificationExecutor executor;
+
+        private PasswordVerifierStats(PasswordVerificationExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return executor.getQueueDepth();
+        }
+
+        @Override
+        public int getQueueCapacity() {
+            return executor.getQueueCapacity();
+        }
+
+        @Override
+        public long getCompletedCount() {
+            return executor.getCompletedCount();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return executor.getRejectedCount();
+        }
+
+        @Override
+        public long getTimedOutCount() {
+            return executor.getTimedOutCount();
+        }
+
+        @Override
+        public double getAverageQueueWaitMillis() {
+            return executor.getAverageQueueWaitMillis();
+        }
+
+        @Override
+        public double getAverageVerifyMillis() {
+            return executor.getAverageVerifyMillis();
+        }
+    }
+}
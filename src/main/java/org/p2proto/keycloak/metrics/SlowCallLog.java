@@ -0,0 +1,78 @@
+package org.p2proto.keycloak.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs calls of one {@link Operation} that took longer than a threshold, with the shape of their arguments. At most
+ * one line per second is written per operation, the calls skipped in between are counted in the next line, so a
+ * slow database cannot flood the log. Argument values are usernames, emails and search terms, so like
+ * {@link org.p2proto.keycloak.jdbc.SlowQueryTrace} only their types and sizes are logged.
+ * <p>
+ * Lines are logged at WARN by {@code org.p2proto.keycloak.metrics.SlowCallLog} as {@code key=value} pairs.
+ */
+final class SlowCallLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowCallLog.class);
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String componentId;
+    private final Operation operation;
+    private final long thresholdNanos;
+    private final AtomicLong nextReport = new AtomicLong(System.nanoTime());
+    private final LongAdder skipped = new LongAdder();
+
+    SlowCallLog(String componentId, Operation operation, long thresholdMillis) {
+        this.componentId = componentId;
+        this.operation = operation;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    boolean isSlow(long elapsedNanos) {
+        return elapsedNanos > thresholdNanos;
+    }
+
+    void report(long elapsedNanos, Object detail) {
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        if (now - next < 0 || !nextReport.compareAndSet(next, now + REPORT_INTERVAL_NANOS)) {
+            skipped.increment();
+            return;
+        }
+        logger.warn("Slow call: component={} operation={} millis={} args={} skipped={}", componentId,
+                operation.getTagValue(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), describe(detail),
+                skipped.sumThenReset());
+    }
+
+    /**
+     * @return the type and size of an argument, the names of search parameters, never a value
+     */
+    static String describe(Object detail) {
+        if (detail == null) {
+            return "none";
+        }
+        if (detail instanceof CharSequence text) {
+            return "String(" + text.length() + ")";
+        }
+        if (detail instanceof Number) {
+            return detail.toString();
+        }
+        if (detail instanceof Collection<?> items) {
+            return "Collection(" + items.size() + ")";
+        }
+        if (detail instanceof Map<?, ?> params) {
+            TreeSet<String> names = new TreeSet<>();
+            params.keySet().forEach(name -> names.add(String.valueOf(name)));
+            return "Map" + names;
+        }
+        return detail.getClass().getSimpleName();
+    }
+}
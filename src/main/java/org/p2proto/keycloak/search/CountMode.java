@@ -0,0 +1,27 @@
+package org.p2proto.keycloak.search;
+
+/**
+ * How the admin console's user count is computed.
+ */
+public enum CountMode {
+
+    /** {@code count(*)} with the filter of the search, a full scan for the unfiltered total. */
+    EXACT,
+
+    /**
+     * The unfiltered total from the planner statistics ({@code pg_class.reltuples}), current as of the last
+     * {@code ANALYZE} or autovacuum. Filtered counts stay exact.
+     */
+    ESTIMATED;
+
+    public static CountMode parse(String value, CountMode defaultMode) {
+        if (value == null || value.isBlank()) {
+            return defaultMode;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultMode;
+        }
+    }
+}
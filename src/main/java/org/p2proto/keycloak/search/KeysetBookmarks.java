@@ -0,0 +1,104 @@
+package org.p2proto.keycloak.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers where earlier search pages ended, so the next page can continue with {@code username COLLATE "C" > ?}
+ * instead of making the database skip {@code OFFSET} rows.
+ * <p>
+ * A bookmark maps (filter, offset) to the username of the row just before that offset. Pages are requested
+ * in separate sessions, hence one instance per component.
+ */
+public class KeysetBookmarks {
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Bookmark> bookmarks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bookmark> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return the last username before {@code offset}, or {@code null} if the page before it was not seen recently
+     */
+    public String get(String filterKey, int offset) {
+        String key = offset + ":" + filterKey;
+        lock.lock();
+        try {
+            Bookmark bookmark = bookmarks.get(key);
+            if (bookmark == null) {
+                return null;
+            }
+            if (bookmark.expiresAt - System.nanoTime() < 0) {
+                bookmarks.remove(key);
+                return null;
+            }
+            return bookmark.lastUsername;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String filterKey, int offset, String lastUsername) {
+        lock.lock();
+        try {
+            bookmarks.put(offset + ":" + filterKey, new Bookmark(lastUsername, System.nanoTime() + TTL_NANOS));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tracks the rows of one page as they are streamed and bookmarks its end once the page was read completely.
+     * Both the last and the second to last row are bookmarked, since the admin console asks for one row more
+     * than it shows to find out whether there is a next page.
+     */
+    public Page page(String filterKey, int offset) {
+        return new Page(filterKey, offset);
+    }
+
+    public final class Page {
+        private final String filterKey;
+        private final int offset;
+        private int rows;
+        private String previous;
+        private String last;
+
+        private Page(String filterKey, int offset) {
+            this.filterKey = filterKey;
+            this.offset = offset;
+        }
+
+        public void row(String username) {
+            rows++;
+            previous = last;
+            last = username;
+        }
+
+        public void end() {
+            if (last != null) {
+                put(filterKey, offset + rows, last);
+            }
+            if (previous != null) {
+                put(filterKey, offset + rows - 1, previous);
+            }
+        }
+    }
+
+    private static final class Bookmark {
+        private final String lastUsername;
+        private final long expiresAt;
+
+        private Bookmark(String lastUsername, long expiresAt) {
+            this.lastUsername = lastUsername;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
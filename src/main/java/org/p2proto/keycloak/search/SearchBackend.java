@@ -0,0 +1,27 @@
+package org.p2proto.keycloak.search;
+
+/**
+ * How the free-text {@code search} parameter of the admin console is matched against the users table.
+ */
+public enum SearchBackend {
+
+    /** {@code LOWER(column) LIKE '%term%'} on username, email, first and last name; works on any schema, scans the table. */
+    LIKE,
+
+    /**
+     * Same matches as {@link #LIKE}, but against the generated {@code search_text} column so the {@code pg_trgm}
+     * GIN index can serve it. Needs {@code sql/migrations/002_users_search_text.sql}.
+     */
+    TRIGRAM;
+
+    public static SearchBackend parse(String value, SearchBackend defaultBackend) {
+        if (value == null || value.isBlank()) {
+            return defaultBackend;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultBackend;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.p2proto.keycloak.search;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * SQL text of search statements by shape, so repeated searches skip building the string and always send the
+ * driver the identical text its server-side prepared statement cache is keyed by. Real traffic only has a few
+ * dozen shapes; past {@link #MAX_TEMPLATES} further shapes are rendered on every call instead of being kept.
+ */
+public class SearchTemplateCache implements SearchTemplateCacheMXBean {
+
+    static final int MAX_TEMPLATES = 512;
+
+    private static final long COUNT = 1L << 9;
+    private static final long KEYSET = 1L << 11;
+    private static final long LIMIT = 1L << 12;
+    private static final long OFFSET = 1L << 13;
+
+    private final ConcurrentHashMap<Long, Template> templates = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Same as {@link UserSearchQuery#toSql(boolean, boolean, boolean)}.
+     */
+    public String sql(UserSearchQuery query, boolean keyset, boolean limit, boolean offset) {
+        long key = query.getShape() | (keyset ? KEYSET : 0) | (limit ? LIMIT : 0) | (offset ? OFFSET : 0);
+        return sql(key, () -> query.toSql(keyset, limit, offset));
+    }
+
+    /**
+     * Same as {@link UserSearchQuery#toCountSql()}.
+     */
+    public String countSql(UserSearchQuery query) {
+        return sql(query.getShape() | COUNT, query::toCountSql);
+    }
+
+    private String sql(long key, Supplier<String> render) {
+        Template template = templates.get(key);
+        if (template != null) {
+            template.hits.increment();
+            hits.increment();
+            return template.sql;
+        }
+        misses.increment();
+        String sql = render.get();
+        if (templates.size() < MAX_TEMPLATES) {
+            templates.putIfAbsent(key, new Template(sql));
+        }
+        return sql;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public int getTemplateCount() {
+        return templates.size();
+    }
+
+    @Override
+    public Map<String, Long> getHitsByTemplate() {
+        Map<String, Long> byTemplate = new TreeMap<>();
+        templates.values().forEach(template -> byTemplate.put(template.sql, template.hits.sum()));
+        return byTemplate;
+    }
+
+    private static final class Template {
+        private final String sql;
+        private final LongAdder hits = new LongAdder();
+
+        private Template(String sql) {
+            this.sql = sql;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.p2proto.keycloak.search;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SearchTemplateCache}, registered as
+ * {@code org.p2proto.keycloak:type=UserStorage,component=<id>,name=searchTemplates}.
+ */
+public interface SearchTemplateCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    int getTemplateCount();
+
+    /**
+     * Hits per cached statement, the shape of each is visible from its SQL.
+     */
+    Map<String, Long> getHitsByTemplate();
+}
@@ -0,0 +1,85 @@
+package org.p2proto.keycloak.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recent user counts by filter, see {@link UserSearchQuery#getFilterKey()}. The admin console asks for the count
+ * again with every page it shows, the count of a large table does not need to be exact to the second.
+ */
+public class UserCountCache {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Count> counts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Count> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @param ttlSeconds how long a count is reused, {@code 0} disables the cache
+     */
+    public UserCountCache(int ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0));
+    }
+
+    /**
+     * @return the count, or {@code -1} if it was not computed recently
+     */
+    public long get(String filterKey) {
+        if (ttlNanos == 0) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            Count count = counts.get(filterKey);
+            if (count == null) {
+                return -1;
+            }
+            if (count.expiresAt - System.nanoTime() < 0) {
+                counts.remove(filterKey);
+                return -1;
+            }
+            return count.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String filterKey, long value) {
+        if (ttlNanos == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            counts.put(filterKey, new Count(value, System.nanoTime() + ttlNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            counts.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Count {
+        private final long value;
+        private final long expiresAt;
+
+        private Count(long value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
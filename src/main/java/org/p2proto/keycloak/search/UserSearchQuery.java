@@ -0,0 +1,456 @@
+package org.p2proto.keycloak.search;
+
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Filter part of a user search: the values to bind, in order, and the shape of the filter, which alone
+ * determines the SQL text. Searches with the same shape (which parameters are present, exact or not, number of
+ * search terms and attributes) share one statement, see {@link SearchTemplateCache}.
+ */
+public final class UserSearchQuery {
+
+    static final String SELECT = "SELECT uuid, username, email, first_name, last_name FROM users";
+    static final String COUNT = "SELECT count(*) FROM users";
+
+    private static final String QUERY_OPTION_PREFIX = "keycloak.session.realm.users.query.";
+    private static final String ATTRIBUTE_EQUALS = "SELECT user_id FROM user_attributes WHERE name = ? AND value = ?";
+    private static final String ATTRIBUTE_LIKE = "SELECT user_id FROM user_attributes WHERE name = ? AND value LIKE ?";
+    private static final String SEARCH_LIKE = "(LOWER(username) LIKE ? OR LOWER(email) LIKE ? OR LOWER(first_name) LIKE ? OR LOWER(last_name) LIKE ?)";
+    private static final String SEARCH_TRIGRAM = "search_text LIKE ?";
+
+    // Shape bits, the statement flags of SearchTemplateCache use bits 9 and 11 to 13
+    private static final long SEARCH = 1L;
+    private static final long EXACT = 1L << 1;
+    private static final long USERNAME = 1L << 2;
+    private static final long EMAIL = 1L << 3;
+    private static final long FIRST_NAME = 1L << 4;
+    private static final long LAST_NAME = 1L << 5;
+    private static final long EMAIL_VERIFIED = 1L << 6;
+    private static final long ENABLED = 1L << 7;
+    private static final long TRIGRAM = 1L << 8;
+    private static final long ATTRIBUTE_LOOKUP = 1L << 10;
+    private static final int TERMS_SHIFT = 14;
+    private static final int ATTRIBUTES_SHIFT = 34;
+    private static final long COUNT_MASK = (1L << 20) - 1;
+
+    private final long shape;
+    private final List<Object> parameters;
+
+    private UserSearchQuery(long shape, List<Object> parameters) {
+        this.shape = shape;
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    public static UserSearchQuery compile(Map<String, String> params) {
+        return compile(params, SearchBackend.LIKE);
+    }
+
+    /**
+     * @param backend how the {@code search} parameter is matched, the other parameters are not affected
+     */
+    public static UserSearchQuery compile(Map<String, String> params, SearchBackend backend) {
+        List<Object> parameters = new ArrayList<>();
+        long shape = 0;
+
+        boolean exact = Boolean.parseBoolean(params.getOrDefault(UserModel.EXACT, "false"));
+        if (exact) {
+            shape |= EXACT;
+        }
+
+        if (params.containsKey(UserModel.SEARCH)) {
+            // Handle the SEARCH parameter
+            shape |= SEARCH;
+            String search = params.get(UserModel.SEARCH).trim();
+
+            // If search is "*", return all users without additional filters
+            if (!"*".equals(search)) {
+                String[] searchTerms = search.split("\\s+");
+                boolean trigram = backend == SearchBackend.TRIGRAM;
+                if (trigram) {
+                    // search_text joins the four columns with spaces, a term has none so it can't match across them
+                    shape |= TRIGRAM;
+                }
+                for (String term : searchTerms) {
+                    String likeTerm = "%" + term.toLowerCase() + "%";
+                    parameters.add(likeTerm);
+                    if (!trigram) {
+                        parameters.add(likeTerm);
+                        parameters.add(likeTerm);
+                        parameters.add(likeTerm);
+                    }
+                }
+                shape |= count(searchTerms.length) << TERMS_SHIFT;
+            }
+        } else {
+            // Handle individual parameters when SEARCH is not present
+            shape |= addColumn(parameters, params, UserModel.USERNAME, USERNAME, exact);
+            shape |= addColumn(parameters, params, UserModel.EMAIL, EMAIL, exact);
+            shape |= addColumn(parameters, params, UserModel.FIRST_NAME, FIRST_NAME, exact);
+            shape |= addColumn(parameters, params, UserModel.LAST_NAME, LAST_NAME, exact);
+
+            if (params.containsKey(UserModel.EMAIL_VERIFIED)) {
+                shape |= EMAIL_VERIFIED;
+                parameters.add(Boolean.parseBoolean(params.get(UserModel.EMAIL_VERIFIED)));
+            }
+
+            if (params.containsKey(UserModel.ENABLED)) {
+                shape |= ENABLED;
+                parameters.add(Boolean.parseBoolean(params.get(UserModel.ENABLED)));
+            }
+
+            // Handle custom user attributes, all of them must match: one INTERSECT over the (name, value) index
+            int attributes = 0;
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                String key = entry.getKey();
+
+                // Skip known parameters
+                if (isBuiltIn(key)) {
+                    continue;
+                }
+
+                // Assume the key is a custom attribute
+                parameters.add(key);
+                parameters.add(exact ? entry.getValue() : "%" + entry.getValue() + "%");
+                attributes++;
+            }
+            shape |= count(attributes) << ATTRIBUTES_SHIFT;
+        }
+
+        return new UserSearchQuery(shape, parameters);
+    }
+
+    /**
+     * Users whose attribute {@code name} equals {@code value}.
+     */
+    public static UserSearchQuery attribute(String name, String value) {
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(name);
+        parameters.add(value);
+        return new UserSearchQuery(ATTRIBUTE_LOOKUP, parameters);
+    }
+
+    private static long addColumn(List<Object> parameters, Map<String, String> params, String key, long bit,
+                                  boolean exact) {
+        if (!params.containsKey(key)) {
+            return 0;
+        }
+        String value = params.get(key).toLowerCase();
+        parameters.add(exact ? value : "%" + value + "%");
+        return bit;
+    }
+
+    private static long count(int count) {
+        if (count > COUNT_MASK) {
+            throw new IllegalArgumentException("Too many search terms or attributes: " + count);
+        }
+        return count;
+    }
+
+    static boolean isBuiltIn(String key) {
+        // query options such as include_service_account or idp_alias are not attributes
+        return key.startsWith(QUERY_OPTION_PREFIX) ||
+                UserModel.SEARCH.equals(key) ||
+                UserModel.USERNAME.equals(key) ||
+                UserModel.EMAIL.equals(key) ||
+                UserModel.FIRST_NAME.equals(key) ||
+                UserModel.LAST_NAME.equals(key) ||
+                UserModel.EXACT.equals(key) ||
+                UserModel.EMAIL_VERIFIED.equals(key) ||
+                UserModel.ENABLED.equals(key);
+    }
+
+    /**
+     * The {@code WHERE ...} clause, with a leading space, rendered from the shape.
+     */
+    public String getWhere() {
+        if ((shape & ATTRIBUTE_LOOKUP) != 0) {
+            return " WHERE uuid IN (" + ATTRIBUTE_EQUALS + ")";
+        }
+        StringBuilder sqlBuilder = new StringBuilder(" WHERE 1=1");
+        boolean exact = (shape & EXACT) != 0;
+        if ((shape & SEARCH) != 0) {
+            int terms = (int) (shape >>> TERMS_SHIFT & COUNT_MASK);
+            if (terms > 0) {
+                String condition = (shape & TRIGRAM) != 0 ? SEARCH_TRIGRAM : SEARCH_LIKE;
+                sqlBuilder.append(" AND (").append(String.join(" OR ", Collections.nCopies(terms, condition))).append(")");
+            }
+            return sqlBuilder.toString();
+        }
+        appendColumn(sqlBuilder, USERNAME, "username", exact);
+        appendColumn(sqlBuilder, EMAIL, "email", exact);
+        appendColumn(sqlBuilder, FIRST_NAME, "first_name", exact);
+        appendColumn(sqlBuilder, LAST_NAME, "last_name", exact);
+        if ((shape & EMAIL_VERIFIED) != 0) {
+            sqlBuilder.append(" AND email_verified = ?");
+        }
+        if ((shape & ENABLED) != 0) {
+            sqlBuilder.append(" AND enabled = ?");
+        }
+        int attributes = (int) (shape >>> ATTRIBUTES_SHIFT & COUNT_MASK);
+        if (attributes > 0) {
+            String condition = exact ? ATTRIBUTE_EQUALS : ATTRIBUTE_LIKE;
+            sqlBuilder.append(" AND uuid IN (")
+                    .append(String.join(" INTERSECT ", Collections.nCopies(attributes, condition)))
+                    .append(")");
+        }
+        return sqlBuilder.toString();
+    }
+
+    private void appendColumn(StringBuilder sqlBuilder, long bit, String column, boolean exact) {
+        if ((shape & bit) != 0) {
+            sqlBuilder.append(" AND LOWER(").append(column).append(exact ? ") = ?" : ") LIKE ?");
+        }
+    }
+
+    /**
+     * The full statement, ordered by username byte for byte ({@code COLLATE "C"}), the order the in-memory
+     * snapshot pages in, so a listing can move between the two without repeating or skipping users. Bind {@link #getParameters()}, then the keyset username, the
+     * limit and the offset for those that are requested.
+     */
+    public String toSql(boolean keyset, boolean limit, boolean offset) {
+        StringBuilder sqlBuilder = new StringBuilder(SELECT).append(getWhere());
+        if (keyset) {
+            sqlBuilder.append(" AND username COLLATE \"C\" > ?");
+        }
+        sqlBuilder.append(" ORDER BY username COLLATE \"C\" ASC");
+        if (limit) {
+            sqlBuilder.append(" LIMIT ?");
+        }
+        if (offset) {
+            sqlBuilder.append(" OFFSET ?");
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * The statement counting the matching users. Bind {@link #getParameters()}.
+     */
+    public String toCountSql() {
+        return COUNT + getWhere();
+    }
+
+    /**
+     * Whether this query matches every user, like an empty search or {@code *}.
+     */
+    public boolean isUnfiltered() {
+        return (shape & ~(SEARCH | EXACT)) == 0;
+    }
+
+    /**
+     * Evaluates this query against a row in memory, with the semantics of {@link #getWhere()}: patterns as in
+     * {@code LIKE}, columns compared lower-cased, {@code NULL} columns never match.
+     *
+     * @return the matcher, or {@code null} when the query needs {@code user_attributes}
+     */
+    public Matcher matcher() {
+        if ((shape & ATTRIBUTE_LOOKUP) != 0 || (shape >>> ATTRIBUTES_SHIFT & COUNT_MASK) > 0) {
+            return null;
+        }
+        return new Matcher(shape, parameters);
+    }
+
+    /**
+     * Identifies the statement text, equal for all searches that differ only in their values.
+     */
+    public long getShape() {
+        return shape;
+    }
+
+    public List<Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * The filter of a query evaluated in memory, row by row, with the semantics of its SQL. Used to search
+     * {@link org.p2proto.keycloak.cache.UserSnapshot}.
+     */
+    public static final class Matcher {
+
+        private final long shape;
+        private final List<Object> parameters;
+        // the literal of each %literal% pattern, the only kind search terms produce, matched without backtracking
+        private final String[] infixes;
+
+        private Matcher(long shape, List<Object> parameters) {
+            this.shape = shape;
+            this.parameters = parameters;
+            this.infixes = new String[parameters.size()];
+            for (int i = 0; i < infixes.length; i++) {
+                if (parameters.get(i) instanceof String pattern && isInfix(pattern)) {
+                    infixes[i] = pattern.substring(1, pattern.length() - 1);
+                }
+            }
+        }
+
+        public boolean matches(CharSequence username, CharSequence email, CharSequence firstName,
+                               CharSequence lastName, boolean enabled, boolean emailVerified) {
+            if ((shape & SEARCH) != 0) {
+                int terms = (int) (shape >>> TERMS_SHIFT & COUNT_MASK);
+                if (terms == 0) {
+                    return true;
+                }
+                // search_text holds the same four columns, so both backends match a term in any of them
+                int step = (shape & TRIGRAM) != 0 ? 1 : 4;
+                for (int term = 0; term < terms; term++) {
+                    int parameter = term * step;
+                    if (like(username, parameter) || like(email, parameter) || like(firstName, parameter)
+                            || like(lastName, parameter)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            boolean exact = (shape & EXACT) != 0;
+            int next = 0;
+            if ((shape & USERNAME) != 0 && !column(username, next++, exact)) {
+                return false;
+            }
+            if ((shape & EMAIL) != 0 && !column(email, next++, exact)) {
+                return false;
+            }
+            if ((shape & FIRST_NAME) != 0 && !column(firstName, next++, exact)) {
+                return false;
+            }
+            if ((shape & LAST_NAME) != 0 && !column(lastName, next++, exact)) {
+                return false;
+            }
+            if ((shape & EMAIL_VERIFIED) != 0 && emailVerified != (Boolean) parameters.get(next++)) {
+                return false;
+            }
+            return (shape & ENABLED) == 0 || enabled == (Boolean) parameters.get(next);
+        }
+
+        private boolean column(CharSequence value, int parameter, boolean exact) {
+            return exact ? equalsLowerCase(value, (String) parameters.get(parameter)) : like(value, parameter);
+        }
+
+        private boolean like(CharSequence value, int parameter) {
+            String infix = infixes[parameter];
+            return infix != null ? containsLowerCase(value, infix) : like(value, (String) parameters.get(parameter));
+        }
+
+        private static char lower(char c) {
+            if (c < 128) {
+                return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+            }
+            return Character.toLowerCase(c);
+        }
+
+        private static boolean isInfix(String pattern) {
+            if (pattern.length() < 2 || pattern.charAt(0) != '%' || pattern.charAt(pattern.length() - 1) != '%') {
+                return false;
+            }
+            for (int i = 1; i < pattern.length() - 1; i++) {
+                char c = pattern.charAt(i);
+                if (c == '%' || c == '_' || c == '\\') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean containsLowerCase(CharSequence value, String lowerCase) {
+            if (value == null) {
+                return false;
+            }
+            if (lowerCase.isEmpty()) {
+                return true;
+            }
+            int last = value.length() - lowerCase.length();
+            char first = lowerCase.charAt(0);
+            for (int start = 0; start <= last; start++) {
+                if (lower(value.charAt(start)) != first) {
+                    continue;
+                }
+                int i = 1;
+                while (i < lowerCase.length()
+                        && lower(value.charAt(start + i)) == lowerCase.charAt(i)) {
+                    i++;
+                }
+                if (i == lowerCase.length()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean equalsLowerCase(CharSequence value, String lowerCase) {
+            if (value == null || value.length() != lowerCase.length()) {
+                return false;
+            }
+            for (int i = 0; i < lowerCase.length(); i++) {
+                if (lower(value.charAt(i)) != lowerCase.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * {@code LOWER(value) LIKE pattern} for a lower-case pattern, with PostgreSQL's default escape character.
+         */
+        static boolean like(CharSequence value, String pattern) {
+            if (value == null) {
+                return false;
+            }
+            int v = 0;
+            int p = 0;
+            int afterPercent = -1;
+            int retryFrom = 0;
+            while (v < value.length()) {
+                if (p < pattern.length()) {
+                    char c = pattern.charAt(p);
+                    if (c == '%') {
+                        afterPercent = ++p;
+                        retryFrom = v;
+                        continue;
+                    }
+                    int width = 1;
+                    boolean any = c == '_';
+                    if (c == '\\' && p + 1 < pattern.length()) {
+                        c = pattern.charAt(p + 1);
+                        width = 2;
+                        any = false;
+                    }
+                    if (any || lower(value.charAt(v)) == c) {
+                        v++;
+                        p += width;
+                        continue;
+                    }
+                }
+                if (afterPercent < 0) {
+                    return false;
+                }
+                // let the last % swallow one more character and try again
+                p = afterPercent;
+                v = ++retryFrom;
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '%') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+    }
+
+    /**
+     * Identifies the filter including its values, used to find keyset bookmarks of earlier pages. Text values are
+     * length-prefixed, so no value can run into the next one whatever characters it contains.
+     */
+    public String getFilterKey() {
+        StringBuilder key = new StringBuilder(Long.toHexString(shape));
+        for (Object parameter : parameters) {
+            key.append('/');
+            if (parameter instanceof String value) {
+                key.append(value.length()).append(':').append(value);
+            } else {
+                key.append(parameter);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package org.p2proto.keycloak.sync;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.UserStorageUtil;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes synced users into Keycloak's local storage, linked to the component. The local user gets the
+ * {@code platform.users} uuid as its id, so renames and repeated imports update the same user.
+ * <p>
+ * Every batch is imported in its own transaction: locks on Keycloak's tables are held for one batch only, and a
+ * batch that fails (a duplicate email, for example) is counted as failed without undoing the others.
+ */
+public class LocalUserImporter implements UserSyncReader.BatchHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalUserImporter.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final String componentId;
+    private final SynchronizationResult result = new SynchronizationResult();
+
+    public LocalUserImporter(KeycloakSessionFactory sessionFactory, String realmId, String componentId) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.componentId = componentId;
+    }
+
+    /**
+     * Whether Keycloak may hold local copies of the component's users: import is on (Keycloak's default when the
+     * setting is missing) and a sync has run.
+     */
+    public static boolean hasImportedUsers(ComponentModel model) {
+        String importEnabled = model.get(UserStorageProviderModel.IMPORT_ENABLED);
+        return (importEnabled == null || Boolean.parseBoolean(importEnabled))
+                && model.get(UserStorageProviderModel.LAST_SYNC, 0) > 0;
+    }
+
+    @Override
+    public void accept(List<SyncedUser> batch) {
+        SynchronizationResult batchResult = new SynchronizationResult();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserProvider local = UserStoragePrivateUtil.userLocalStorage(session);
+                UserCache cache = UserStorageUtil.userCache(session);
+                for (SyncedUser user : batch) {
+                    importUser(local, cache, realm, user, batchResult);
+                }
+            });
+            result.add(batchResult);
+        } catch (RuntimeException e) {
+            logger.error("Could not import batch of {} users starting with {}", batch.size(), batch.get(0), e);
+            SynchronizationResult failed = new SynchronizationResult();
+            failed.setFailed(batch.size());
+            result.add(failed);
+        }
+    }
+
+    /**
+     * @param cache Keycloak's user cache, {@code null} when it is disabled; updated users are evicted from it
+     */
+    void importUser(UserProvider local, UserCache cache, RealmModel realm, SyncedUser user,
+                    SynchronizationResult batchResult) {
+        UserModel existing = local.getUserById(realm, user.getUuid());
+        if (existing == null) {
+            UserModel sameName = local.getUserByUsername(realm, user.getUsername());
+            if (sameName != null) {
+                logger.warn("Not importing {}, username is taken by local user {} (federation link {})",
+                        user, sameName.getId(), sameName.getFederationLink());
+                batchResult.increaseFailed();
+                return;
+            }
+            existing = local.addUser(realm, user.getUuid(), user.getUsername(), true, false);
+            existing.setFederationLink(componentId);
+            batchResult.increaseAdded();
+        } else if (!componentId.equals(existing.getFederationLink())) {
+            logger.warn("Not updating {}, local user belongs to federation link {}", user, existing.getFederationLink());
+            batchResult.increaseFailed();
+            return;
+        } else {
+            if (cache != null) {
+                cache.evict(realm, existing);
+            }
+            batchResult.increaseUpdated();
+        }
+        if (!Objects.equals(existing.getUsername(), user.getUsername())) {
+            existing.setUsername(user.getUsername());
+        }
+        existing.setEmail(user.getEmail());
+        existing.setFirstName(user.getFirstName());
+        existing.setLastName(user.getLastName());
+        existing.setEnabled(user.isEnabled());
+        existing.setEmailVerified(user.isEmailVerified());
+    }
+
+    public SynchronizationResult getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package org.p2proto.keycloak.sync;
+
+/**
+ * One row of {@code platform.users} as imported into Keycloak's local storage. Besides the profile it carries
+ * the flags the provider does not expose on lookups.
+ */
+public final class SyncedUser {
+
+    private final String uuid;
+    private final String username;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+    private final boolean enabled;
+    private final boolean emailVerified;
+
+    public SyncedUser(String uuid, String username, String email, String firstName, String lastName,
+                      boolean enabled, boolean emailVerified) {
+        this.uuid = uuid;
+        this.username = username;
+        this.email = email;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.enabled = enabled;
+        this.emailVerified = emailVerified;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isEmailVerified() {
+        return emailVerified;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncedUser{uuid=" + uuid + ", username=" + username + "}";
+    }
+}
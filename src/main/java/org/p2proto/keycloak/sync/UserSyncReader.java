@@ -0,0 +1,186 @@
+package org.p2proto.keycloak.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams {@code platform.users} in batches for an import, either completely or the rows changed since a point
+ * in time. Rows come from a server-side cursor, so memory stays bounded by the batch size however large the
+ * table is; a single connection is held for the whole run.
+ */
+public class UserSyncReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserSyncReader.class);
+
+    private static final String COLUMNS = "SELECT uuid, username, email, first_name, last_name, "
+            + "coalesce(enabled, true) AS enabled, coalesce(email_verified, false) AS email_verified FROM platform.users";
+    static final String FULL_SQL = COLUMNS;
+    static final String CHANGED_SQL = COLUMNS + " WHERE updated_at > ?";
+    static final String BY_IDS_SQL = COLUMNS + " WHERE uuid = ANY(?::uuid[])";
+    static final String EXISTING_SQL = "SELECT uuid FROM platform.users WHERE uuid = ANY(?::uuid[])";
+    // planner statistics, good enough for progress and much cheaper than count(*) on millions of rows
+    private static final String ESTIMATE_SQL = "SELECT reltuples::bigint FROM pg_class WHERE oid = 'platform.users'::regclass";
+
+    // updated_at is the transaction start time, so rows may commit with a timestamp older than the last sync
+    static final long CHANGE_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @FunctionalInterface
+    public interface BatchHandler {
+        void accept(List<SyncedUser> batch);
+    }
+
+    private final DataSource dataSource;
+    private final int batchSize;
+    private final String name;
+
+    /**
+     * @param name shown in the progress log, such as "sync of &lt;component id&gt;"
+     */
+    public UserSyncReader(DataSource dataSource, int batchSize, String name) {
+        this.dataSource = dataSource;
+        this.batchSize = Math.max(batchSize, 1);
+        this.name = name;
+    }
+
+    /**
+     * @return the number of users read
+     */
+    public long readAll(BatchHandler handler) throws SQLException {
+        return read(FULL_SQL, null, handler);
+    }
+
+    /**
+     * Reads the users changed after {@code since}, less a small overlap for transactions that were still running.
+     *
+     * @return the number of users read
+     */
+    public long readChangedSince(long sinceMillis, BatchHandler handler) throws SQLException {
+        return read(CHANGED_SQL, new Timestamp(sinceMillis - CHANGE_OVERLAP_MILLIS), handler);
+    }
+
+    /**
+     * Reads the given users, those that no longer exist are left out.
+     *
+     * @return the number of users read
+     */
+    public long readByIds(Collection<String> uuids, BatchHandler handler) throws SQLException {
+        return read(BY_IDS_SQL, uuids.toArray(new String[0]), handler);
+    }
+
+    /**
+     * Deleted rows never show up in {@link #readChangedSince}, this tells which of some users are still there.
+     *
+     * @return those of {@code uuids} that are in the table
+     */
+    public Set<String> readExisting(Collection<String> uuids) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(EXISTING_SQL)) {
+            stmt.setArray(1, connection.createArrayOf("text", uuids.toArray(new String[0])));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString(1));
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @param filter the point in time changes are read from, or the uuids to read, {@code null} for all users
+     */
+    private long read(String sql, Object filter, BatchHandler handler) throws SQLException {
+        long start = System.nanoTime();
+        long count = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            long expected = filter == null ? estimateRows(connection) : -1;
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false); // PgJDBC only uses a cursor (fetch size) outside auto-commit
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setFetchSize(batchSize);
+                if (filter instanceof Timestamp since) {
+                    stmt.setTimestamp(1, since);
+                } else if (filter instanceof String[] uuids) {
+                    stmt.setArray(1, connection.createArrayOf("text", uuids));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    List<SyncedUser> batch = new ArrayList<>(batchSize);
+                    long lastProgress = start;
+                    while (rs.next()) {
+                        batch.add(new SyncedUser(
+                                rs.getString("uuid"),
+                                rs.getString("username"),
+                                rs.getString("email"),
+                                rs.getString("first_name"),
+                                rs.getString("last_name"),
+                                rs.getBoolean("enabled"),
+                                rs.getBoolean("email_verified")));
+                        if (batch.size() == batchSize) {
+                            handler.accept(batch);
+                            count += batch.size();
+                            batch = new ArrayList<>(batchSize);
+                            long now = System.nanoTime();
+                            if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                                logProgress(count, expected, now - start);
+                                lastProgress = now;
+                            }
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        handler.accept(batch);
+                        count += batch.size();
+                    }
+                }
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (filter == null) {
+            logger.info("Read {} users for {} in {} ms ({} users/s)", count, name,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), perSecond(count, elapsed));
+        } else {
+            // change reads run every few seconds for the user snapshot
+            logger.debug("Read {} changed users for {} in {} ms", count, name, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+        return count;
+    }
+
+    private long estimateRows(Connection connection) {
+        try (PreparedStatement stmt = connection.prepareStatement(ESTIMATE_SQL);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            logger.debug("No row estimate for platform.users: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    private void logProgress(long count, long expected, long elapsedNanos) {
+        if (expected > 0) {
+            logger.info("Read {} of about {} users for {} ({}%), {} users/s", count, expected, name,
+                    Math.min(100, count * 100 / expected), perSecond(count, elapsedNanos));
+        } else {
+            logger.info("Read {} users for {}, {} users/s", count, name, perSecond(count, elapsedNanos));
+        }
+    }
+
+    static long perSecond(long count, long elapsedNanos) {
+        return elapsedNanos <= 0 ? count : count * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+}
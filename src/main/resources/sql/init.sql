@@ -15,28 +15,50 @@ GRANT ALL ON SCHEMA public TO platform;
 -- Enable the uuid-ossp extension for UUID generation (PostgreSQL specific)
 CREATE EXTENSION IF NOT EXISTS "uuid-ossp";
 
+-- Enable pg_trgm for the indexed substring search of the admin console
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
 -- Create the users table with UUID primary key
 CREATE TABLE users (
-    id UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
+    uuid UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
     username VARCHAR(255) UNIQUE NOT NULL,
     email VARCHAR(255) UNIQUE,
     first_name VARCHAR(255),
     last_name VARCHAR(255),
     password_hash VARCHAR(255) NOT NULL,
     email_verified BOOLEAN DEFAULT FALSE,
-    enabled BOOLEAN DEFAULT TRUE
+    enabled BOOLEAN DEFAULT TRUE,
+    updated_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    search_text TEXT GENERATED ALWAYS AS (lower(coalesce(username, '') || ' ' || coalesce(email, '') || ' '
+        || coalesce(first_name, '') || ' ' || coalesce(last_name, ''))) STORED
 );
 
--- Create an index on username for faster lookups
-CREATE INDEX idx_users_username ON users(username);
+-- Search pages are ordered byte for byte, lookups by username use the unique constraint's index
+CREATE INDEX idx_users_username_c ON users(username COLLATE "C");
 
 -- Create an index on email for faster lookups
 CREATE INDEX idx_users_email ON users(email);
 
+-- Keep updated_at current, the Keycloak provider refreshes its in-memory state from it
+CREATE OR REPLACE FUNCTION set_updated_at() RETURNS trigger AS $$
+BEGIN
+    NEW.updated_at := now();
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_users_updated_at BEFORE UPDATE ON users
+    FOR EACH ROW EXECUTE FUNCTION set_updated_at();
+
+CREATE INDEX idx_users_updated_at ON users(updated_at);
+
+-- Serves LIKE '%term%' on search_text, used by the TRIGRAM search backend
+CREATE INDEX idx_users_search_text_trgm ON users USING gin (search_text gin_trgm_ops);
+
 -- Create the user_attributes table with UUID primary key and foreign key
 CREATE TABLE user_attributes (
     id UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
-    user_id UUID NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+    user_id UUID NOT NULL REFERENCES users(uuid) ON DELETE CASCADE,
     name VARCHAR(255) NOT NULL,
     value VARCHAR(255),
     UNIQUE (user_id, name)
@@ -45,10 +67,53 @@ CREATE TABLE user_attributes (
 -- Create an index on user_id for faster lookups
 CREATE INDEX idx_user_attributes_user_id ON user_attributes(user_id);
 
--- Optional: Create indexes on name and value if you frequently search by attributes
-CREATE INDEX idx_user_attributes_name ON user_attributes(name);
+-- Serves attribute searches and group members (name = ? AND value = ?), and lookups by name alone
+CREATE INDEX idx_user_attributes_name_value ON user_attributes(name, value);
 CREATE INDEX idx_user_attributes_value ON user_attributes(value);
 
+-- Tells the Keycloak provider which users changed so that it drops them from its caches. One notification
+-- per statement, delivered on commit: '<table>:<operation> <uuid> <uuid> ...', or '<table>:<operation> *'
+-- when more than 100 users changed (a payload is limited to 8000 bytes)
+CREATE OR REPLACE FUNCTION notify_user_change() RETURNS trigger AS $$
+DECLARE
+    changed TEXT[];
+BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        PERFORM pg_notify('platform_user_changes', TG_TABLE_NAME || ':' || TG_OP || ' *');
+        RETURN NULL;
+    END IF;
+    IF TG_TABLE_NAME = 'users' THEN
+        SELECT array_agg(id::text) INTO changed FROM (SELECT DISTINCT uuid AS id FROM changed_rows LIMIT 101) c;
+    ELSE
+        SELECT array_agg(id::text) INTO changed FROM (SELECT DISTINCT user_id AS id FROM changed_rows LIMIT 101) c;
+    END IF;
+    IF changed IS NOT NULL THEN
+        PERFORM pg_notify('platform_user_changes', TG_TABLE_NAME || ':' || TG_OP || ' '
+                || CASE WHEN cardinality(changed) > 100 THEN '*' ELSE array_to_string(changed, ' ') END);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A trigger with a transition table can only fire for one event
+CREATE TRIGGER trg_users_notify_insert AFTER INSERT ON users
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_update AFTER UPDATE ON users
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_delete AFTER DELETE ON users
+    REFERENCING OLD TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_truncate AFTER TRUNCATE ON users
+    FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+
+CREATE TRIGGER trg_user_attributes_notify_insert AFTER INSERT ON user_attributes
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_update AFTER UPDATE ON user_attributes
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_delete AFTER DELETE ON user_attributes
+    REFERENCING OLD TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_truncate AFTER TRUNCATE ON user_attributes
+    FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+
 GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE users TO keycloak;
 GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE user_attributes TO keycloak;
 
@@ -0,0 +1,10 @@
+-- Adds users.search_text and its trigram index, needed by the TRIGRAM search backend.
+-- Run as the owner of the users table, in the schema that holds it. Adding the column rewrites the table,
+-- and CREATE INDEX CONCURRENTLY must run outside a transaction block.
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+ALTER TABLE users ADD COLUMN IF NOT EXISTS search_text TEXT GENERATED ALWAYS AS (lower(coalesce(username, '') || ' '
+    || coalesce(email, '') || ' ' || coalesce(first_name, '') || ' ' || coalesce(last_name, ''))) STORED;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_users_search_text_trgm ON users USING gin (search_text gin_trgm_ops);
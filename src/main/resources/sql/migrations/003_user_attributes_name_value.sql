@@ -0,0 +1,21 @@
+-- Aligns databases created from an older init.sql with the queries of the provider.
+-- Run as the owner of the users and user_attributes tables, in the schema that holds them.
+-- CREATE/DROP INDEX CONCURRENTLY must run outside a transaction block.
+
+-- The provider reads the primary key of users as uuid, older scripts named it id
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM information_schema.columns
+               WHERE table_schema = current_schema() AND table_name = 'users' AND column_name = 'id')
+       AND NOT EXISTS (SELECT 1 FROM information_schema.columns
+               WHERE table_schema = current_schema() AND table_name = 'users' AND column_name = 'uuid') THEN
+        ALTER TABLE users RENAME COLUMN id TO uuid;
+    END IF;
+END
+$$;
+
+-- Attribute filters and group members look up name and value together
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_user_attributes_name_value ON user_attributes(name, value);
+
+-- Covered by the leading column of idx_user_attributes_name_value
+DROP INDEX CONCURRENTLY IF EXISTS idx_user_attributes_name;
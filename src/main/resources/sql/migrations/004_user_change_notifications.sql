@@ -0,0 +1,55 @@
+-- Adds the change notifications the provider invalidates its caches from (changeNotifications in the
+-- Keycloak SPI settings) to databases created from an older init.sql.
+-- Run as the owner of the users and user_attributes tables, in the schema that holds them.
+
+DROP TRIGGER IF EXISTS trg_users_notify_insert ON users;
+DROP TRIGGER IF EXISTS trg_users_notify_update ON users;
+DROP TRIGGER IF EXISTS trg_users_notify_delete ON users;
+DROP TRIGGER IF EXISTS trg_users_notify_truncate ON users;
+DROP TRIGGER IF EXISTS trg_user_attributes_notify_insert ON user_attributes;
+DROP TRIGGER IF EXISTS trg_user_attributes_notify_update ON user_attributes;
+DROP TRIGGER IF EXISTS trg_user_attributes_notify_delete ON user_attributes;
+DROP TRIGGER IF EXISTS trg_user_attributes_notify_truncate ON user_attributes;
+
+-- Tells the Keycloak provider which users changed so that it drops them from its caches. One notification
+-- per statement, delivered on commit: '<table>:<operation> <uuid> <uuid> ...', or '<table>:<operation> *'
+-- when more than 100 users changed (a payload is limited to 8000 bytes)
+CREATE OR REPLACE FUNCTION notify_user_change() RETURNS trigger AS $$
+DECLARE
+    changed TEXT[];
+BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        PERFORM pg_notify('platform_user_changes', TG_TABLE_NAME || ':' || TG_OP || ' *');
+        RETURN NULL;
+    END IF;
+    IF TG_TABLE_NAME = 'users' THEN
+        SELECT array_agg(id::text) INTO changed FROM (SELECT DISTINCT uuid AS id FROM changed_rows LIMIT 101) c;
+    ELSE
+        SELECT array_agg(id::text) INTO changed FROM (SELECT DISTINCT user_id AS id FROM changed_rows LIMIT 101) c;
+    END IF;
+    IF changed IS NOT NULL THEN
+        PERFORM pg_notify('platform_user_changes', TG_TABLE_NAME || ':' || TG_OP || ' '
+                || CASE WHEN cardinality(changed) > 100 THEN '*' ELSE array_to_string(changed, ' ') END);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A trigger with a transition table can only fire for one event
+CREATE TRIGGER trg_users_notify_insert AFTER INSERT ON users
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_update AFTER UPDATE ON users
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_delete AFTER DELETE ON users
+    REFERENCING OLD TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_users_notify_truncate AFTER TRUNCATE ON users
+    FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+
+CREATE TRIGGER trg_user_attributes_notify_insert AFTER INSERT ON user_attributes
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_update AFTER UPDATE ON user_attributes
+    REFERENCING NEW TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_delete AFTER DELETE ON user_attributes
+    REFERENCING OLD TABLE AS changed_rows FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
+CREATE TRIGGER trg_user_attributes_notify_truncate AFTER TRUNCATE ON user_attributes
+    FOR EACH STATEMENT EXECUTE FUNCTION notify_user_change();
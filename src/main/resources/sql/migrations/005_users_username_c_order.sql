@@ -0,0 +1,9 @@
+-- Orders search pages byte for byte (COLLATE "C"), like the in-memory user snapshot, in databases created
+-- from an older init.sql.
+-- Run as the owner of the users table, in the schema that holds it.
+-- CREATE/DROP INDEX CONCURRENTLY must run outside a transaction block.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_users_username_c ON users(username COLLATE "C");
+
+-- Lookups by username use the index of the unique constraint
+DROP INDEX CONCURRENTLY IF EXISTS idx_users_username;
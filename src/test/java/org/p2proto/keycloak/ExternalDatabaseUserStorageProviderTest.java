@@ -6,20 +6,40 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.DatastoreProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.datastore.DefaultDatastoreProvider;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.p2proto.keycloak.metrics.Operation;
+import org.p2proto.keycloak.metrics.OperationMetrics;
 
+
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -64,7 +84,7 @@ class ExternalDatabaseUserStorageProviderTest {
         when(preparedStatement.executeQuery()).thenReturn(resultSet);
 
         when(resultSet.next()).thenReturn(true).thenReturn(false);
-        when(resultSet.getString("id")).thenReturn("abc123");
+        when(resultSet.getString("uuid")).thenReturn("abc123");
         when(resultSet.getString("username")).thenReturn("john_doe");
         when(resultSet.getString("email")).thenReturn("john@example.com");
         when(resultSet.getString("first_name")).thenReturn("John");
@@ -82,7 +102,7 @@ class ExternalDatabaseUserStorageProviderTest {
 
         // Verify the SQL call
         verify(connection).prepareStatement(
-                "SELECT id, username, email, first_name, last_name FROM users WHERE id = ?::uuid"
+                "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE uuid = ?::uuid"
         );
         verify(preparedStatement).setString(1, "abc123");
     }
@@ -130,7 +150,7 @@ class ExternalDatabaseUserStorageProviderTest {
         when(preparedStatement.executeQuery()).thenReturn(resultSet);
 
         when(resultSet.next()).thenReturn(true).thenReturn(false);
-        when(resultSet.getString("id")).thenReturn("123");
+        when(resultSet.getString("uuid")).thenReturn("123");
         when(resultSet.getString("username")).thenReturn(username);
         when(resultSet.getString("email")).thenReturn("jane@example.com");
         when(resultSet.getString("first_name")).thenReturn("Jane");
@@ -143,6 +163,55 @@ class ExternalDatabaseUserStorageProviderTest {
         verify(preparedStatement).setString(1, username);
     }
 
+    @Test
+    void testGetUserByUsername_servedFromCacheOnSecondLookup() throws SQLException {
+        String username = "jane_doe";
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("uuid")).thenReturn("123");
+        when(resultSet.getString("username")).thenReturn(username);
+        when(resultSet.getString("email")).thenReturn("jane@example.com");
+
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        ExternalDatabaseUserStorageProvider firstSession = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        UserModel first = firstSession.getUserByUsername(realm, username);
+        UserModel second = firstSession.getUserByUsername(realm, username);
+
+        // A new session (provider) for the same component reuses the shared tier
+        ExternalDatabaseUserStorageProvider otherSession = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        UserModel third = otherSession.getUserByEmail(realm, "jane@example.com");
+
+        assertSame(first, second);
+        assertNotNull(third);
+        assertEquals(username, third.getUsername());
+        verify(preparedStatement, times(1)).executeQuery();
+        assertEquals(1, resources.getCacheStatistics().getSessionHits());
+        assertEquals(1, resources.getCacheStatistics().getSharedHits());
+    }
+
+    @Test
+    void testInvalidateUser_forcesReload() throws SQLException {
+        String username = "jane_doe";
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("uuid")).thenReturn("123");
+        when(resultSet.getString("username")).thenReturn(username);
+
+        provider.getUserByUsername(realm, username);
+        provider.invalidateUser("123");
+        provider.getUserByUsername(realm, username);
+
+        verify(preparedStatement, times(2)).executeQuery();
+    }
+
     @Test
     void testGetUserByUsername_notFound() throws SQLException {
         String username = "non_existent_user";
@@ -157,6 +226,368 @@ class ExternalDatabaseUserStorageProviderTest {
         assertNull(userModel);
     }
 
+    @Test
+    void testGetUserByUsername_unknownNameAnsweredFromNegativeCache() throws SQLException {
+        String username = "non_existent_user";
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(false);
+
+        assertNull(provider.getUserByUsername(realm, username));
+        assertNull(provider.getUserByUsername(realm, username));
+
+        verify(dataSource, times(1)).getConnection();
+    }
+
+    @Test
+    void testGetUserByUsername_failsFastOnceTheCircuitIsOpen() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation -> switch ((String) invocation.getArgument(0)) {
+            case ExternalDatabaseConfig.CIRCUIT_BREAKER_FAILURES -> "2";
+            default -> null;
+        });
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        when(dataSource.getConnection()).thenThrow(
+                new SQLTransientConnectionException("Connection is not available, request timed out after 5000ms"));
+
+        for (String username : List.of("anna", "jan", "piotr", "zofia")) {
+            assertNull(provider.getUserByUsername(realm, username));
+        }
+
+        verify(dataSource, times(2)).getConnection();
+        assertEquals("OPEN", resources.getCircuitBreaker().getState());
+        assertEquals(2, resources.getCircuitBreaker().getRejected());
+        assertEquals(4, resources.getMetrics().get(Operation.GET_USER_BY_USERNAME).getErrors());
+    }
+
+    @Test
+    void testGetUsersByIds_resolvesBatchInOneQueryAndCachesIt() throws SQLException {
+        String first = "00000000-0000-0000-0000-000000000001";
+        String second = "00000000-0000-0000-0000-000000000002";
+        String unknown = "00000000-0000-0000-0000-000000000003";
+        when(model.getId()).thenReturn("c1");
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(connection.createArrayOf(eq("text"), any())).thenReturn(mock(Array.class));
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getString("uuid")).thenReturn(second, first);
+        when(resultSet.getString("username")).thenReturn("bob", "alice");
+
+        List<String> ids = List.of("f:c1:" + first, "f:c1:" + unknown, "f:other:" + first, "f:c1:not-a-uuid",
+                "f:c1:" + second);
+        Map<String, UserModel> users = provider.getUsersByIds(realm, ids);
+
+        assertEquals(List.of("f:c1:" + first, "f:c1:" + second), List.copyOf(users.keySet()));
+        assertEquals("alice", users.get("f:c1:" + first).getUsername());
+        verify(connection).prepareStatement(
+                "SELECT uuid, username, email, first_name, last_name FROM platform.users WHERE uuid = ANY(?::uuid[])");
+        verify(connection).createArrayOf("text", new Object[]{first, unknown, second});
+
+        ExternalDatabaseUserStorageProvider next = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        assertEquals(2, next.getUsersByIds(realm, List.of("f:c1:" + first, "f:c1:" + second)).size());
+        verify(dataSource, times(1)).getConnection();
+    }
+
+    @Test
+    void testGetUserByUsername_recordsCallQueryAndRows() throws SQLException {
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("uuid")).thenReturn("1");
+        when(resultSet.getString("username")).thenReturn("alice");
+
+        provider.getUserByUsername(realm, "alice");
+        provider.getUserByUsername(realm, "alice");
+
+        OperationMetrics lookups = resources.getMetrics().get(Operation.GET_USER_BY_USERNAME);
+        assertEquals(2, lookups.getCalls());
+        assertEquals(1, lookups.getQueries());
+        assertEquals(1, lookups.getRows());
+        assertEquals(0, lookups.getErrors());
+    }
+
+    @Test
+    void testSearchForUserStream_streamsLazilyAndReleasesConnection() throws SQLException {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getString("uuid")).thenReturn("1", "2");
+        when(resultSet.getString("username")).thenReturn("alice", "bob");
+
+        Stream<UserModel> users = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), 0, 2);
+
+        verify(preparedStatement).setFetchSize(anyInt());
+        verify(resultSet, never()).next();
+        verify(connection, never()).close();
+
+        assertEquals(List.of("alice", "bob"), users.map(UserModel::getUsername).collect(Collectors.toList()));
+        verify(connection).close();
+    }
+
+    @Test
+    void testSearchForUserStream_usesConfiguredFetchSize() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation ->
+                ExternalDatabaseConfig.FETCH_SIZE.equals(invocation.getArgument(0)) ? "2000" : null);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(false);
+
+        assertEquals(0, provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), 0, 10).count());
+
+        verify(preparedStatement).setFetchSize(2000);
+    }
+
+    @Test
+    void testSearchForUserStream_loadsAttributesOfThePageInOneQuery() throws SQLException {
+        PreparedStatement attributeStatement = mock(PreparedStatement.class);
+        ResultSet attributeRows = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(connection.prepareStatement(startsWith("SELECT user_id, name, value"))).thenReturn(attributeStatement);
+        when(connection.createArrayOf(eq("text"), any())).thenReturn(mock(Array.class));
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getString("uuid")).thenReturn("1", "2");
+        when(resultSet.getString("username")).thenReturn("alice", "bob");
+        when(attributeStatement.executeQuery()).thenReturn(attributeRows);
+        when(attributeRows.next()).thenReturn(true, true, true, false);
+        when(attributeRows.getString(1)).thenReturn("1", "1", "2");
+        when(attributeRows.getString(2)).thenReturn("department", "phone", "department");
+        when(attributeRows.getString(3)).thenReturn("sales", "123", "support");
+
+        List<UserModel> users = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), 0, 2).toList();
+        verify(attributeStatement, never()).executeQuery();
+
+        assertEquals("sales", users.get(0).getFirstAttribute("department"));
+        assertEquals("support", users.get(1).getFirstAttribute("department"));
+        assertEquals(List.of("123"), users.get(0).getAttributeStream("phone").toList());
+        verify(attributeStatement, times(1)).executeQuery();
+        verify(connection).prepareStatement(
+                "SELECT user_id, name, value FROM platform.user_attributes WHERE user_id = ANY(?::uuid[])");
+        verify(connection).createArrayOf("text", new Object[]{"1", "2"});
+    }
+
+    @Test
+    void testComponentResourcesClose_closesOwnPool() {
+        ComponentResources resources = new ComponentResources(model, dataSource);
+
+        resources.close();
+
+        verify(dataSource).close();
+    }
+
+    @Test
+    void testSearchForUserStream_nextPageUsesKeyset() throws SQLException {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false, false);
+        when(resultSet.getString("uuid")).thenReturn("1", "2");
+        when(resultSet.getString("username")).thenReturn("alice", "bob");
+
+        Map<String, String> params = Map.of(UserModel.SEARCH, "*");
+        assertEquals(2, provider.searchForUserStream(realm, params, 0, 2).count());
+        assertEquals(0, provider.searchForUserStream(realm, params, 2, 2).count());
+
+        verify(connection).prepareStatement(
+                "SELECT uuid, username, email, first_name, last_name FROM users WHERE 1=1 ORDER BY username COLLATE \"C\" ASC LIMIT ?");
+        verify(connection).prepareStatement(
+                "SELECT uuid, username, email, first_name, last_name FROM users WHERE 1=1 AND username COLLATE \"C\" > ? ORDER BY username COLLATE \"C\" ASC LIMIT ?");
+        verify(preparedStatement).setObject(1, "bob");
+    }
+
+    @Test
+    void testImportedUsersAreServedByTheirLocalCopy() throws SQLException {
+        when(model.getId()).thenReturn("c1");
+        lenient().when(model.get(UserStorageProviderModel.LAST_SYNC, 0)).thenReturn(1_700_000_000);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+        DefaultDatastoreProvider datastore = mock(DefaultDatastoreProvider.class);
+        UserProvider local = mock(UserProvider.class);
+        UserModel imported = mock(UserModel.class);
+        when(session.getProvider(DatastoreProvider.class)).thenReturn(datastore);
+        when(datastore.userLocalStorage()).thenReturn(local);
+        when(imported.getFederationLink()).thenReturn("c1");
+        when(local.getUserById(realm, "1")).thenReturn(imported);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, true, false, true, false);
+        when(resultSet.getString("uuid")).thenReturn("1", "2", "1");
+        when(resultSet.getString("username")).thenReturn("alice", "bob", "alice");
+
+        List<String> listed = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), 0, 10)
+                .map(UserModel::getUsername).toList();
+        assertEquals(List.of("bob"), listed, "Keycloak lists alice's local copy itself");
+        assertSame(imported, provider.getUserById(realm, "f:c1:1"));
+        assertEquals(0, provider.getUsersCount(realm, Map.of()));
+    }
+
+    @Test
+    void testSearchForUserStream_openCursorHoldsItsQueuePermit() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation -> switch ((String) invocation.getArgument(0)) {
+            case ExternalDatabaseConfig.EXECUTION_MODE -> "QUEUED";
+            case ExternalDatabaseConfig.POOL_MAX_SIZE -> "1";
+            default -> null;
+        });
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+
+        Stream<UserModel> users = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), 0, 10);
+        assertThrows(SQLException.class, () -> resources.getBlockingBridge().acquire(),
+                "The cursor holds the only connection");
+
+        users.close();
+        resources.getBlockingBridge().acquire().run();
+    }
+
+    @Test
+    void testSearchForUserStream_trigramFallsBackToLikeWithoutSearchText() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation ->
+                ExternalDatabaseConfig.SEARCH_BACKEND.equals(invocation.getArgument(0)) ? "TRIGRAM" : null);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(contains("search_text LIKE ?")))
+                .thenThrow(new SQLException("column \"search_text\" does not exist", "42703"));
+        when(connection.prepareStatement(contains("LOWER(username) LIKE ?"))).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(false);
+
+        Map<String, String> params = Map.of(UserModel.SEARCH, "ali");
+        assertEquals(0, provider.searchForUserStream(realm, params, 0, 10).count());
+        assertEquals(0, provider.searchForUserStream(realm, params, 0, 10).count());
+
+        verify(connection, times(1)).prepareStatement(contains("search_text LIKE ?"));
+        verify(connection, times(2)).prepareStatement(contains("LOWER(username) LIKE ?"));
+        verify(preparedStatement, times(2)).setObject(1, "%ali%");
+    }
+
+    @Test
+    void testSearchForUserStream_attributesCompileToOneIntersect() throws SQLException {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(false);
+
+        Map<String, String> params = new TreeMap<>(Map.of("department", "sales", "region", "emea",
+                UserModel.EXACT, "true", UserModel.INCLUDE_SERVICE_ACCOUNT, "true"));
+        assertEquals(0, provider.searchForUserStream(realm, params, 0, 10).count());
+
+        verify(connection).prepareStatement("SELECT uuid, username, email, first_name, last_name FROM users WHERE 1=1"
+                + " AND uuid IN (SELECT user_id FROM user_attributes WHERE name = ? AND value = ?"
+                + " INTERSECT SELECT user_id FROM user_attributes WHERE name = ? AND value = ?)"
+                + " ORDER BY username COLLATE \"C\" ASC LIMIT ?");
+        verify(preparedStatement).setObject(1, "department");
+        verify(preparedStatement).setObject(2, "sales");
+        verify(preparedStatement).setObject(3, "region");
+        verify(preparedStatement).setObject(4, "emea");
+    }
+
+    @Test
+    void testGetUsersCount_compilesSearchFilterAndReusesCount() throws SQLException {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn(42L);
+
+        assertEquals(42, provider.getUsersCount(realm, "ali"));
+        assertEquals(42, provider.getUsersCount(realm, Map.of(UserModel.SEARCH, "ali")));
+
+        verify(connection, times(1)).prepareStatement("SELECT count(*) FROM users WHERE 1=1 AND ((LOWER(username) LIKE ?"
+                + " OR LOWER(email) LIKE ? OR LOWER(first_name) LIKE ? OR LOWER(last_name) LIKE ?))");
+        verify(preparedStatement).setObject(1, "%ali%");
+    }
+
+    @Test
+    void testGetUsersCount_estimatedTotalFallsBackToCountBeforeAnalyze() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation -> switch ((String) invocation.getArgument(0)) {
+            case ExternalDatabaseConfig.COUNT_MODE -> "ESTIMATED";
+            case ExternalDatabaseConfig.COUNT_CACHE_SECONDS -> "0";
+            default -> null;
+        });
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getLong(1)).thenReturn(-1L, 5L, 1_000_000L);
+
+        assertEquals(5, provider.getUsersCount(realm));
+        assertEquals(1_000_000, provider.getUsersCount(realm, Map.of(UserModel.SEARCH, "*")));
+
+        verify(connection, times(2)).prepareStatement(startsWith("SELECT reltuples::bigint FROM pg_class"));
+        verify(connection, times(1)).prepareStatement("SELECT count(*) FROM users WHERE 1=1");
+    }
+
+    @Test
+    void testGetGroupMembersStream_listsUsersByGroupAttribute() throws SQLException {
+        when(model.get(anyString())).thenAnswer(invocation ->
+                ExternalDatabaseConfig.GROUP_ATTRIBUTE.equals(invocation.getArgument(0)) ? "department" : null);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+        GroupModel group = mock(GroupModel.class);
+        when(group.getName()).thenReturn("sales");
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getString("uuid")).thenReturn("1");
+        when(resultSet.getString("username")).thenReturn("alice");
+
+        List<String> members = provider.getGroupMembersStream(realm, group, 5, 5)
+                .map(UserModel::getUsername).collect(Collectors.toList());
+
+        assertEquals(List.of("alice"), members);
+        verify(connection).prepareStatement("SELECT uuid, username, email, first_name, last_name FROM users"
+                + " WHERE uuid IN (SELECT user_id FROM user_attributes WHERE name = ? AND value = ?)"
+                + " ORDER BY username COLLATE \"C\" ASC LIMIT ? OFFSET ?");
+        verify(preparedStatement).setObject(1, "department");
+        verify(preparedStatement).setObject(2, "sales");
+    }
+
+    @Test
+    void testGetGroupMembersStream_emptyWithoutGroupAttribute() {
+        GroupModel group = mock(GroupModel.class);
+
+        assertEquals(0, provider.getGroupMembersStream(realm, group, 0, 10).count());
+        verifyNoInteractions(dataSource);
+    }
+
+    @Test
+    void testClose_releasesUndrainedSearchStreams() throws SQLException {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("uuid")).thenReturn("1");
+        when(resultSet.getString("username")).thenReturn("alice");
+
+        Stream<UserModel> users = provider.searchForUserStream(realm, Map.of(UserModel.SEARCH, "*"), null, null);
+        assertEquals(1, users.limit(1).count());
+        verify(connection, never()).close();
+
+        provider.close();
+        verify(connection).close();
+    }
+
     @Test
     void testIsValid_passwordMatches() throws SQLException {
         String testUsername = "user1";
@@ -186,6 +617,37 @@ class ExternalDatabaseUserStorageProviderTest {
         assertTrue(valid, "Expected credentials to be valid when bcrypt hashes match");
     }
 
+    @Test
+    void testIsValid_usesHashPrefetchedByUsernameLookup() throws SQLException {
+        String testPassword = "secret123";
+        String hashedPassword = org.mindrot.jbcrypt.BCrypt.hashpw(testPassword, org.mindrot.jbcrypt.BCrypt.gensalt(4));
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("uuid")).thenReturn("123");
+        when(resultSet.getString("username")).thenReturn("user1");
+        when(resultSet.getString("email")).thenReturn("user1@example.com");
+        when(resultSet.getString("first_name")).thenReturn("User");
+        when(resultSet.getString("last_name")).thenReturn("One");
+        when(resultSet.getString("password_hash")).thenReturn(hashedPassword);
+
+        UserModel user = provider.getUserByUsername(realm, "user1");
+        CredentialInput credentialInput = mock(UserCredentialModel.class);
+        when(credentialInput.getType()).thenReturn("password");
+        when(credentialInput.getChallengeResponse()).thenReturn(testPassword);
+
+        assertTrue(provider.isValid(realm, user, credentialInput));
+        // the hash is handed out once, the next check queries it again
+        assertTrue(provider.isValid(realm, user, credentialInput));
+
+        verify(connection).prepareStatement(
+                "SELECT uuid, username, email, first_name, last_name, password_hash FROM platform.users WHERE username = ?");
+        verify(connection, times(1)).prepareStatement("SELECT password_hash FROM platform.users WHERE username = ?");
+        verify(dataSource, times(2)).getConnection();
+    }
+
     @Test
     void testIsValid_passwordMismatch() throws SQLException {
         String testUsername = "user1";
@@ -213,6 +675,92 @@ class ExternalDatabaseUserStorageProviderTest {
         assertFalse(valid, "Expected invalid credentials when the password doesn't match the hash");
     }
 
+    @Test
+    void testIsValid_rehashesOutdatedHash() throws SQLException {
+        String testPassword = "secret123";
+        String hashedPassword = org.mindrot.jbcrypt.BCrypt.hashpw(
+                testPassword, org.mindrot.jbcrypt.BCrypt.gensalt(4)
+        );
+        when(model.get(anyString())).thenAnswer(invocation -> switch ((String) invocation.getArgument(0)) {
+            case ExternalDatabaseConfig.REHASH_ON_LOGIN -> "true";
+            case ExternalDatabaseConfig.PASSWORD_HASH_COST -> "5";
+            default -> null;
+        });
+        provider = new ExternalDatabaseUserStorageProvider(session, model, dataSource);
+
+        UserModel userModel = mock(UserModel.class);
+        when(userModel.getUsername()).thenReturn("user1");
+
+        CredentialInput credentialInput = mock(UserCredentialModel.class);
+        when(credentialInput.getType()).thenReturn("password");
+        when(credentialInput.getChallengeResponse()).thenReturn(testPassword);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(preparedStatement.executeUpdate()).thenReturn(1);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("password_hash")).thenReturn(hashedPassword);
+
+        assertTrue(provider.isValid(realm, userModel, credentialInput));
+
+        verify(connection).prepareStatement(
+                "UPDATE platform.users SET password_hash = ? WHERE username = ? AND password_hash = ?");
+        verify(preparedStatement).setString(2, "user1");
+        verify(preparedStatement).setString(3, hashedPassword);
+        verify(preparedStatement).setString(eq(1), startsWith("$2a$05$"));
+    }
+
+    @Test
+    void testComponentIsNotStaleAfterSyncBookkeeping() {
+        ComponentModel stored = new ComponentModel();
+        stored.setId("c1");
+        stored.put(ExternalDatabaseConfig.POOL_MAX_SIZE, "5");
+        stored.put("lastSync", "1700000000");
+        ComponentResources resources = new ComponentResources(stored, dataSource);
+
+        ComponentModel synced = new ComponentModel(stored);
+        synced.put("lastSync", "1700000600");
+        assertFalse(resources.isStale(synced), "Keycloak stores lastSync after every sync run");
+
+        ComponentModel edited = new ComponentModel(synced);
+        edited.put(ExternalDatabaseConfig.POOL_MAX_SIZE, "10");
+        assertTrue(resources.isStale(edited));
+        resources.close();
+    }
+
+    @Test
+    void testIsValid_throttledAttemptSkipsDatabase() throws SQLException {
+        String testPassword = "secret123";
+        String hashedPassword = org.mindrot.jbcrypt.BCrypt.hashpw(testPassword, org.mindrot.jbcrypt.BCrypt.gensalt(4));
+        when(model.get(anyString())).thenAnswer(invocation -> switch ((String) invocation.getArgument(0)) {
+            case ExternalDatabaseConfig.THROTTLE_USERNAME_ATTEMPTS -> "2";
+            case ExternalDatabaseConfig.THROTTLE_USERNAME_PER_MINUTE -> "0";
+            default -> null;
+        });
+        ComponentResources resources = new ComponentResources(model, dataSource);
+        provider = new ExternalDatabaseUserStorageProvider(session, model, resources);
+
+        UserModel userModel = mock(UserModel.class);
+        when(userModel.getUsername()).thenReturn("user1");
+        CredentialInput credentialInput = mock(UserCredentialModel.class);
+        when(credentialInput.getType()).thenReturn("password");
+        when(credentialInput.getChallengeResponse()).thenReturn(testPassword);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString("password_hash")).thenReturn(hashedPassword);
+
+        assertTrue(provider.isValid(realm, userModel, credentialInput));
+        assertTrue(provider.isValid(realm, userModel, credentialInput));
+        assertFalse(provider.isValid(realm, userModel, credentialInput));
+
+        verify(dataSource, times(2)).getConnection();
+        assertEquals(1, resources.getLoginThrottle().getRejectedByUsername());
+    }
+
     @Test
     void testIsValid_userNotFound() throws SQLException {
         String testUsername = "unknown";
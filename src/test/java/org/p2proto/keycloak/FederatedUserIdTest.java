@@ -0,0 +1,40 @@
+package org.p2proto.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FederatedUserIdTest {
+
+    private static final String UUID = "0b7c5f4e-2f54-4f1e-9d3a-3c1f2a9e8b10";
+
+    @Test
+    void decodeReturnsUuidOfOwnComponent() {
+        String id = FederatedUserId.encode("component-1", UUID);
+
+        assertEquals("f:component-1:" + UUID, id);
+        assertEquals(UUID, FederatedUserId.decode(id, "component-1"));
+    }
+
+    @Test
+    void decodeRejectsMalformedAndForeignIds() {
+        assertNull(FederatedUserId.decode(null, "c1"));
+        assertNull(FederatedUserId.decode(UUID, "c1"));
+        assertNull(FederatedUserId.decode("x:c1:" + UUID, "c1"));
+        assertNull(FederatedUserId.decode("f:c1:", "c1"));
+        assertNull(FederatedUserId.decode("f:c1", "c1"));
+        assertNull(FederatedUserId.decode("f:c1:a:b", "c1"));
+        assertNull(FederatedUserId.decode("f:c2:" + UUID, "c1"));
+        assertNull(FederatedUserId.decode("f:c10:" + UUID, "c1"));
+        assertNull(FederatedUserId.decode("f:c" + UUID, "c1"));
+    }
+
+    @Test
+    void isWellFormedIgnoresComponent() {
+        assertTrue(FederatedUserId.isWellFormed("f:c2:" + UUID));
+        assertFalse(FederatedUserId.isWellFormed("f::" + UUID));
+        assertFalse(FederatedUserId.isWellFormed("f:c2:"));
+        assertFalse(FederatedUserId.isWellFormed("f:c2:a:b"));
+        assertFalse(FederatedUserId.isWellFormed(UUID));
+    }
+}
@@ -0,0 +1,60 @@
+package org.p2proto.keycloak;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserAttributesTest {
+
+    @Test
+    void rowsInAnyOrderAreFoundByName() {
+        UserAttributes attributes = UserAttributes.builder()
+                .add("phone", "123")
+                .add("department", "sales")
+                .add("locale", "de")
+                .add("cost_center", "4711")
+                .add("manager", "alice")
+                .build();
+
+        assertEquals(5, attributes.size());
+        assertEquals("sales", attributes.get("department"));
+        assertEquals("4711", attributes.get("cost_center"));
+        assertNull(attributes.get("missing"));
+        assertNull(attributes.get(null));
+
+        List<String> names = new ArrayList<>();
+        attributes.forEach((name, value) -> names.add(name));
+        assertEquals(List.of("cost_center", "department", "locale", "manager", "phone"), names);
+    }
+
+    @Test
+    void sharesNamesAndKeepsTheLastValueOfARepeatedName() {
+        UserAttributes first = UserAttributes.builder().add(new String("department"), "sales").build();
+        UserAttributes second = UserAttributes.builder()
+                .add(new String("department"), "support")
+                .add("department", "marketing")
+                .add(null, "ignored")
+                .build();
+
+        assertEquals(1, second.size());
+        assertEquals("marketing", second.get("department"));
+        List<String> names = new ArrayList<>();
+        first.forEach((name, value) -> names.add(name));
+        second.forEach((name, value) -> names.add(name));
+        assertSame(names.get(0), names.get(1));
+    }
+
+    @Test
+    void mapViewIsUnmodifiable() {
+        Map<String, List<String>> map = UserAttributes.builder().add("department", "sales").build().toMap();
+
+        assertEquals(Map.of("department", List.of("sales")), map);
+        assertThrows(UnsupportedOperationException.class, () -> map.put("phone", List.of("123")));
+        assertSame(UserAttributes.EMPTY, UserAttributes.builder().build());
+        assertTrue(UserAttributes.EMPTY.toMap().isEmpty());
+    }
+}
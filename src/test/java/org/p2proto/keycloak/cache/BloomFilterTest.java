@@ -0,0 +1,50 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    @Test
+    void testNoFalseNegatives() {
+        BloomFilter filter = BloomFilter.create(10000, 0.01, 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            filter.put('u', "user" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain('u', "user" + i));
+        }
+    }
+
+    @Test
+    void testFalsePositiveRateIsNearConfigured() {
+        BloomFilter filter = BloomFilter.create(10000, 0.01, 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            filter.put('u', "user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain('u', "stranger" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2000, "false-positive rate too high: " + falsePositives / 100000.0);
+    }
+
+    @Test
+    void testTagsSeparateKeySpaces() {
+        BloomFilter filter = BloomFilter.create(100, 0.001, 1024);
+        filter.put('u', "john@example.com");
+
+        assertTrue(filter.mightContain('u', "john@example.com"));
+        assertFalse(filter.mightContain('e', "john@example.com"));
+    }
+
+    @Test
+    void testMemoryBudgetCapsSize() {
+        BloomFilter filter = BloomFilter.create(10_000_000, 0.0001, 1024);
+
+        assertEquals(1024, filter.getSizeInBytes());
+    }
+}
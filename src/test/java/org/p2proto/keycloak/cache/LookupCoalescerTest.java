@@ -0,0 +1,75 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LookupCoalescerTest {
+
+    @Test
+    void concurrentLookupsOfSameKeyShareOneQuery() throws Exception {
+        LookupCoalescer<String, String> coalescer = new LookupCoalescer<>();
+        AtomicInteger queries = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> coalescer.load("alice", () -> {
+                queries.incrementAndGet();
+                started.countDown();
+                awaitUninterruptibly(release);
+                return "user-alice";
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(() -> coalescer.load("alice", () -> {
+                queries.incrementAndGet();
+                return "other";
+            }));
+            while (coalescer.getCoalesced() == 0) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+
+            assertEquals("user-alice", first.get(5, TimeUnit.SECONDS));
+            assertEquals("user-alice", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, queries.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void completedLookupIsNotReused() throws SQLException {
+        LookupCoalescer<String, String> coalescer = new LookupCoalescer<>();
+        AtomicInteger queries = new AtomicInteger();
+
+        coalescer.load("alice", () -> "v" + queries.incrementAndGet());
+        assertEquals("v2", coalescer.load("alice", () -> "v" + queries.incrementAndGet()));
+    }
+
+    @Test
+    void failureIsPropagatedAndNotRemembered() throws SQLException {
+        LookupCoalescer<String, String> coalescer = new LookupCoalescer<>();
+
+        assertThrows(SQLException.class, () -> coalescer.load("alice", () -> {
+            throw new SQLException("down");
+        }));
+        assertEquals("ok", coalescer.load("alice", () -> "ok"));
+    }
+}
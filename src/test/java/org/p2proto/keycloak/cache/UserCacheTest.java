@@ -0,0 +1,109 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.Test;
+import org.p2proto.keycloak.ExternalUser;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserCacheTest {
+
+    private static ExternalUser user(String uuid, String username, String email) {
+        return new ExternalUser(uuid, username, email, "First", "Last");
+    }
+
+    @Test
+    void testLookupByAllKeys() {
+        UserCache cache = new UserCache(CacheMode.LOCAL, 10, 60, new CacheStatistics());
+        ExternalUser john = user("1", "john", "john@example.com");
+        cache.put(john);
+
+        assertSame(john, cache.getById("1"));
+        assertSame(john, cache.getByUsername("john"));
+        assertSame(john, cache.getByEmail("john@example.com"));
+        assertNull(cache.getByUsername("jane"));
+        assertEquals(3, cache.getStatistics().getSharedHits());
+        assertEquals(1, cache.getStatistics().getMisses());
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvicted() {
+        UserCache cache = new UserCache(CacheMode.LOCAL, 2, 60, new CacheStatistics());
+        cache.put(user("1", "a", "a@example.com"));
+        cache.put(user("2", "b", "b@example.com"));
+        cache.getById("1");
+        cache.put(user("3", "c", "c@example.com"));
+
+        assertNotNull(cache.getById("1"));
+        assertNull(cache.getById("2"));
+        assertNull(cache.getByUsername("b"), "Secondary indexes must follow evictions");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStatistics().getEvictions());
+    }
+
+    @Test
+    void testRenamedUserIsReindexed() {
+        UserCache cache = new UserCache(CacheMode.LOCAL, 10, 60, new CacheStatistics());
+        cache.put(user("1", "old", "old@example.com"));
+        cache.put(user("1", "new", "new@example.com"));
+
+        assertNull(cache.getByUsername("old"));
+        assertNull(cache.getByEmail("old@example.com"));
+        assertEquals("new", cache.getByEmail("new@example.com").getUsername());
+    }
+
+    @Test
+    void testInvalidationEvents() {
+        UserCache cache = new UserCache(CacheMode.CLUSTERED, 10, 60, new CacheStatistics());
+        cache.put(user("1", "a", "a@example.com"));
+        cache.put(user("2", "b", "b@example.com"));
+        cache.put(user("3", "c", "c@example.com"));
+
+        cache.apply(UserCacheInvalidationEvent.byUsername("component", "a"));
+        cache.apply(UserCacheInvalidationEvent.byEmail("component", "b@example.com"));
+        assertNull(cache.getById("1"));
+        assertNull(cache.getById("2"));
+        assertNotNull(cache.getById("3"));
+
+        cache.apply(UserCacheInvalidationEvent.all("component"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testDisabledCacheKeepsNothing() {
+        UserCache cache = new UserCache(CacheMode.DISABLED, 10, 60, new CacheStatistics());
+        cache.put(user("1", "a", "a@example.com"));
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.getById("1"));
+        assertEquals(1, cache.getStatistics().getMisses());
+    }
+
+    @Test
+    void testExpiredEntriesStayAvailableAsStale() {
+        UserCache cache = new UserCache(CacheMode.LOCAL, 10, 1L, TimeUnit.MINUTES.toNanos(1), new CacheStatistics());
+        ExternalUser john = user("1", "john", "john@example.com");
+        cache.put(john);
+        cache.put(user("2", "jane", "jane@example.com"));
+
+        assertNull(cache.getByUsername("john"), "Expired entries are misses for regular lookups");
+        assertSame(john, cache.getStaleById("1"));
+        assertSame(john, cache.getStaleByUsername("john"));
+        assertSame(john, cache.getStaleByEmail("john@example.com"));
+        assertEquals(3, cache.getStatistics().getStaleHits());
+
+        cache.invalidate("2");
+        assertNull(cache.getStaleByUsername("jane"), "Invalidated users are not served stale");
+    }
+
+    @Test
+    void testWithoutStalePeriodExpiredEntriesAreDropped() {
+        UserCache cache = new UserCache(CacheMode.LOCAL, 10, 1L, 0L, new CacheStatistics());
+        cache.put(user("1", "john", "john@example.com"));
+
+        assertNull(cache.getById("1"));
+        assertNull(cache.getStaleById("1"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,154 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+class UserChangeListenerTest {
+
+    private record Change(Set<String> uuids, boolean keysChanged) {
+    }
+
+    private final BlockingQueue<PGNotification> pending = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private UserChangeListener listener;
+
+    @AfterEach
+    void tearDown() {
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    /**
+     * A connection that receives what is put into {@link #pending}, with PgJDBC's timeouts: a negative one
+     * returns at once.
+     */
+    private Connection connection() throws SQLException {
+        Connection connection = mock(Connection.class);
+        PGConnection pg = mock(PGConnection.class);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pg);
+        when(connection.createStatement()).thenReturn(mock(Statement.class));
+        when(pg.getNotifications(anyInt())).thenAnswer(invocation -> {
+            int timeoutMillis = invocation.getArgument(0);
+            PGNotification first = timeoutMillis < 0 ? pending.poll() : pending.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            List<PGNotification> received = new ArrayList<>();
+            if (first != null) {
+                received.add(first);
+                pending.drainTo(received);
+            }
+            return received.toArray(new PGNotification[0]);
+        });
+        return connection;
+    }
+
+    private static PGNotification notification(String payload) {
+        PGNotification notification = mock(PGNotification.class);
+        when(notification.getName()).thenReturn(UserChangeListener.CHANNEL);
+        when(notification.getParameter()).thenReturn(payload);
+        return notification;
+    }
+
+    private Change nextChange() throws InterruptedException {
+        Change change = changes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(change, "No change was handed over");
+        return change;
+    }
+
+    @Test
+    void burstIsHandedOverOnce() throws Exception {
+        Connection connection = connection();
+        listener = new UserChangeListener(() -> connection, 200, 1,
+                (uuids, keysChanged) -> changes.add(new Change(uuids, keysChanged)));
+        listener.start();
+
+        pending.add(notification("user_attributes:UPDATE a1"));
+        Thread.sleep(20);
+        pending.add(notification("user_attributes:INSERT a2 a3"));
+        pending.add(notification("user_attributes:DELETE a1"));
+
+        Change change = nextChange();
+        assertEquals(Set.of("a1", "a2", "a3"), change.uuids());
+        assertFalse(change.keysChanged(), "Attributes don't change usernames or emails");
+        assertNull(changes.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(3, listener.getNotifications());
+    }
+
+    @Test
+    void newUsersAndLargeStatementsChangeEverything() throws Exception {
+        Connection connection = connection();
+        listener = new UserChangeListener(() -> connection, 0, 1,
+                (uuids, keysChanged) -> changes.add(new Change(uuids, keysChanged)));
+        listener.start();
+
+        pending.add(notification("users:INSERT u1"));
+        Change inserted = nextChange();
+        assertEquals(Set.of("u1"), inserted.uuids());
+        assertTrue(inserted.keysChanged());
+
+        pending.add(notification("users:DELETE *"));
+        assertNull(nextChange().uuids());
+
+        pending.add(notification("users:TRUNCATE *"));
+        assertNull(nextChange().uuids());
+    }
+
+    @Test
+    void burstWithoutUsersIsNotHandedOver() throws Exception {
+        Connection connection = connection();
+        listener = new UserChangeListener(() -> connection, 0, 1,
+                (uuids, keysChanged) -> changes.add(new Change(uuids, keysChanged)));
+        pending.add(notification("malformed"));
+        pending.add(notification("users:UPDATE "));
+        listener.start();
+
+        assertNull(changes.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(2, listener.getNotifications());
+
+        pending.add(notification("users:DELETE u1"));
+        assertEquals(Set.of("u1"), nextChange().uuids());
+    }
+
+    @Test
+    void reconnectsAndDropsEverythingMissedWhileDisconnected() throws Exception {
+        Connection broken = mock(Connection.class);
+        PGConnection brokenPg = mock(PGConnection.class);
+        when(broken.unwrap(PGConnection.class)).thenReturn(brokenPg);
+        when(broken.createStatement()).thenReturn(mock(Statement.class));
+        when(brokenPg.getNotifications(anyInt())).thenThrow(new SQLException("An I/O error occurred", "08006"));
+        Connection healthy = connection();
+        AtomicInteger connects = new AtomicInteger();
+        listener = new UserChangeListener(() -> switch (connects.incrementAndGet()) {
+            case 1 -> broken;
+            case 2 -> throw new SQLException("Connection refused", "08001");
+            default -> healthy;
+        }, 0, 1, (uuids, keysChanged) -> changes.add(new Change(uuids, keysChanged)));
+        listener.start();
+
+        Change resync = nextChange();
+        assertNull(resync.uuids());
+        assertTrue(resync.keysChanged());
+        assertEquals(3, connects.get());
+        assertEquals(1, listener.getReconnects());
+        verify(broken).close();
+
+        pending.add(notification("users:UPDATE u1"));
+        assertEquals(Set.of("u1"), nextChange().uuids());
+    }
+}
@@ -0,0 +1,78 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.*;
+
+class UserMembershipFilterTest {
+
+    private final DataSource dataSource = mock(DataSource.class);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    /**
+     * A table with the single user alice.
+     */
+    @BeforeEach
+    void setUp() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.getAutoCommit()).thenReturn(true);
+
+        PreparedStatement count = mock(PreparedStatement.class);
+        ResultSet countRs = mock(ResultSet.class);
+        when(connection.prepareStatement(contains("count(*)"))).thenReturn(count);
+        when(count.executeQuery()).thenReturn(countRs);
+        when(countRs.next()).thenReturn(true);
+        when(countRs.getLong(1)).thenReturn(1L);
+
+        PreparedStatement users = mock(PreparedStatement.class);
+        ResultSet usersRs = mock(ResultSet.class);
+        when(connection.prepareStatement(contains("updated_at FROM"))).thenReturn(users);
+        when(users.executeQuery()).thenReturn(usersRs);
+        when(usersRs.next()).thenReturn(true, false);
+        when(usersRs.getString(1)).thenReturn("alice");
+        when(usersRs.getString(2)).thenReturn("alice@example.com");
+        when(usersRs.getTimestamp(3)).thenReturn(new Timestamp(System.currentTimeMillis()));
+    }
+
+    @Test
+    void freshFilterAnswersUnknownNames() {
+        UserMembershipFilter filter = new UserMembershipFilter(dataSource, 0.01, 1024 * 1024, 30, 60000);
+        filter.start(scheduler);
+        assertFalse(filter.isDefinitelyAbsent(NegativeLookupCache.USERNAME, "mallory"), "Not built yet");
+
+        filter.refresh();
+
+        assertTrue(filter.isReady());
+        assertFalse(filter.isDefinitelyAbsent(NegativeLookupCache.USERNAME, "alice"));
+        assertFalse(filter.isDefinitelyAbsent(NegativeLookupCache.EMAIL, "alice@example.com"));
+        assertTrue(filter.isDefinitelyAbsent(NegativeLookupCache.USERNAME, "mallory"));
+        assertEquals(1, filter.getDefiniteMisses());
+        verify(scheduler, never()).execute(any());
+    }
+
+    @Test
+    void missOnAnOldFilterAsksTheDatabaseAndRefreshes() {
+        UserMembershipFilter filter = new UserMembershipFilter(dataSource, 0.01, 1024 * 1024, 30, 0);
+        filter.start(scheduler);
+        filter.refresh();
+
+        assertFalse(filter.isDefinitelyAbsent(NegativeLookupCache.USERNAME, "mallory"),
+                "May have been created since the refresh");
+        assertFalse(filter.isDefinitelyAbsent(NegativeLookupCache.USERNAME, "mallory"));
+
+        assertEquals(0, filter.getDefiniteMisses());
+        verify(scheduler, times(1)).execute(any());
+    }
+}
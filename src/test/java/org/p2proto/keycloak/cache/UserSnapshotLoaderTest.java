@@ -0,0 +1,76 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.p2proto.keycloak.sync.SyncedUser;
+import org.p2proto.keycloak.sync.UserSyncReader;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class UserSnapshotLoaderTest {
+
+    private static final String ANNA = "00000000-0000-0000-0000-000000000001";
+    private static final String JAN = "00000000-0000-0000-0000-000000000002";
+
+    private final UserSyncReader reader = mock(UserSyncReader.class);
+    private final UserSnapshotLoader loader = new UserSnapshotLoader(reader, 30);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        doAnswer(invocation -> {
+            invocation.<UserSyncReader.BatchHandler>getArgument(0).accept(List.of(
+                    new SyncedUser(ANNA, "anna", "anna@example.com", "Anna", null, true, true),
+                    new SyncedUser(JAN, "jan", "jan@example.com", "Jan", null, true, true)));
+            return 2L;
+        }).when(reader).readAll(any());
+        loader.refresh();
+    }
+
+    @Test
+    void deletedUserStaysGoneAfterTheRefresh() throws Exception {
+        loader.apply(UserCacheInvalidationEvent.byId("c1", JAN));
+        assertNull(loader.getById(loader.current(), JAN), "Hidden until the next refresh");
+        when(reader.readExisting(Set.of(JAN))).thenReturn(Set.of());
+
+        loader.refresh();
+
+        UserSnapshot current = loader.current();
+        assertNull(loader.getById(current, JAN));
+        assertNull(loader.getByUsername(current, "jan"));
+        assertNull(loader.getByEmail(current, "jan@example.com"));
+        assertEquals(1, current.size());
+        assertTrue(loader.isSearchable());
+    }
+
+    @Test
+    void invalidatedUserThatStillExistsIsServedAgain() throws Exception {
+        loader.apply(UserCacheInvalidationEvent.byUsername("c1", "anna"));
+        when(reader.readExisting(Set.of(ANNA))).thenReturn(Set.of(ANNA));
+
+        loader.refresh();
+
+        assertEquals("anna", loader.getById(loader.current(), ANNA).getUsername());
+        assertEquals(2, loader.current().size());
+    }
+
+    @Test
+    void changedUsersAreNotLookedUpAgain() throws Exception {
+        loader.apply(UserCacheInvalidationEvent.byId("c1", JAN));
+        doAnswer(invocation -> {
+            invocation.<UserSyncReader.BatchHandler>getArgument(1).accept(List.of(
+                    new SyncedUser(JAN, "janek", "jan@example.com", "Jan", null, true, true)));
+            return 1L;
+        }).when(reader).readChangedSince(anyLong(), any());
+
+        loader.refresh();
+
+        assertEquals("janek", loader.getById(loader.current(), JAN).getUsername());
+        verify(reader, never()).readExisting(any());
+    }
+}
@@ -0,0 +1,111 @@
+package org.p2proto.keycloak.cache;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+import org.p2proto.keycloak.ExternalUser;
+import org.p2proto.keycloak.search.UserSearchQuery;
+import org.p2proto.keycloak.sync.SyncedUser;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserSnapshotTest {
+
+    private static final String ANNA = "00000000-0000-0000-0000-000000000001";
+    private static final String JAN = "00000000-0000-0000-0000-000000000002";
+    private static final String PIOTR = "00000000-0000-0000-0000-000000000003";
+
+    private static final UserSnapshot SNAPSHOT = UserSnapshot.of(List.of(
+            new SyncedUser(PIOTR, "piotr", null, "Piotr", null, false, false),
+            new SyncedUser(JAN, "jan", "shared@example.com", "Jan", "Nowak", true, false),
+            new SyncedUser(ANNA, "anna", "anna@example.com", "Anna", "Kowalska", true, true)));
+
+    private static List<String> usernames(Map<String, String> params, int firstResult, int maxResults) {
+        UserSearchQuery.Matcher matcher = UserSearchQuery.compile(params).matcher();
+        return SNAPSHOT.search(matcher, firstResult, maxResults).stream().map(ExternalUser::getUsername).toList();
+    }
+
+    @Test
+    void testLookupByAllKeys() {
+        ExternalUser anna = SNAPSHOT.getById(ANNA);
+
+        assertEquals("anna", anna.getUsername());
+        assertEquals("anna@example.com", anna.getEmail());
+        assertEquals("Kowalska", anna.getLastName());
+        assertEquals(ANNA, SNAPSHOT.getByUsername("anna").getUuid());
+        assertEquals(ANNA, SNAPSHOT.getByEmail("anna@example.com").getUuid());
+        assertNull(SNAPSHOT.getByUsername("Anna"), "Lookups are exact like the queries they replace");
+        assertNull(SNAPSHOT.getById("not-a-uuid"));
+        assertNull(SNAPSHOT.getByEmail(null));
+        assertEquals(3, SNAPSHOT.size());
+    }
+
+    @Test
+    void testNullColumnsStayNull() {
+        ExternalUser piotr = SNAPSHOT.getByUsername("piotr");
+
+        assertNull(piotr.getEmail());
+        assertNull(piotr.getLastName());
+        assertEquals("Piotr", piotr.getFirstName());
+    }
+
+    @Test
+    void testChangesReplaceRowsByUuid() {
+        UserSnapshot changed = SNAPSHOT.withChanges(List.of(
+                new SyncedUser(JAN, "janek", "jan@example.com", "Jan", "Nowak", true, true),
+                new SyncedUser("00000000-0000-0000-0000-000000000004", "zofia", "shared@example.com",
+                        null, null, true, false)));
+
+        assertEquals(4, changed.size());
+        assertNull(changed.getByUsername("jan"));
+        assertEquals(JAN, changed.getByUsername("janek").getUuid());
+        assertEquals("zofia", changed.getByEmail("shared@example.com").getUsername());
+        assertEquals("jan", SNAPSHOT.getById(JAN).getUsername(), "Snapshots are immutable");
+        assertSame(SNAPSHOT, SNAPSHOT.withChanges(List.of()));
+    }
+
+    @Test
+    void testUnchangedRowsKeepTheSnapshot() {
+        List<SyncedUser> reread = List.of(
+                new SyncedUser(PIOTR, "piotr", null, "Piotr", null, false, false),
+                new SyncedUser(ANNA, "anna", "anna@example.com", "Anna", "Kowalska", true, true));
+
+        assertSame(SNAPSHOT, SNAPSHOT.withChanges(reread, List.of("00000000-0000-0000-0000-000000000009")));
+        assertNotSame(SNAPSHOT, SNAPSHOT.withChanges(List.of(
+                new SyncedUser(PIOTR, "piotr", null, "Piotr", null, true, false))));
+        assertNotSame(SNAPSHOT, SNAPSHOT.withChanges(List.of(
+                new SyncedUser(ANNA, "anna", null, "Anna", "Kowalska", true, true))));
+        assertEquals(2, SNAPSHOT.withChanges(reread, List.of(JAN)).size());
+    }
+
+    @Test
+    void testSearchPagesInUsernameOrder() {
+        assertEquals(List.of("anna", "jan", "piotr"), usernames(Map.of(UserModel.SEARCH, "*"), 0, 10));
+        assertEquals(List.of("jan"), usernames(Map.of(UserModel.SEARCH, "*"), 1, 1));
+        assertEquals(List.of(), usernames(Map.of(UserModel.SEARCH, "*"), 3, 10));
+    }
+
+    @Test
+    void testUsernamesSortLikeCollateC() {
+        assertTrue(UserSnapshot.compareCodePoints("Zofia", "anna") < 0, "Upper case first, byte by byte");
+        assertTrue(UserSnapshot.compareCodePoints("anna", "annabel") < 0);
+        assertEquals(0, UserSnapshot.compareCodePoints("jan", "jan"));
+        // U+1F600 is encoded as a surrogate pair, which String.compareTo puts before U+FF21
+        assertTrue(UserSnapshot.compareCodePoints("\uFF21", "\uD83D\uDE00") < 0);
+        assertTrue("\uFF21".compareTo("\uD83D\uDE00") > 0);
+    }
+
+    @Test
+    void testSearchFollowsTheSqlFilter() {
+        assertEquals(List.of("anna", "jan"), usernames(Map.of(UserModel.SEARCH, "NOWAK kowal"), 0, 10));
+        assertEquals(List.of("anna"), usernames(Map.of(UserModel.EMAIL, "anna@"), 0, 10));
+        assertEquals(List.of(), usernames(Map.of(UserModel.EMAIL, "anna@", UserModel.EXACT, "true"), 0, 10));
+        assertEquals(List.of("jan"), usernames(Map.of(UserModel.FIRST_NAME, "j", UserModel.ENABLED, "true"), 0, 10));
+        assertEquals(List.of("jan", "piotr"), usernames(Map.of(UserModel.EMAIL_VERIFIED, "false"), 0, 10));
+        assertEquals(2, SNAPSHOT.count(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "NOWAK kowal")).matcher()));
+        assertNull(UserSearchQuery.compile(Map.of("department", "sales")).matcher(),
+                "Attribute filters need the database");
+    }
+}
@@ -0,0 +1,76 @@
+package org.p2proto.keycloak.credential;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginThrottleTest {
+
+    @Test
+    void usernameIsRejectedOnceItsBurstIsUsed() {
+        LoginThrottle throttle = new LoginThrottle(3, 0, 0, 0, 1024);
+
+        assertTrue(throttle.tryAcquire("alice", null));
+        assertTrue(throttle.tryAcquire("alice", null));
+        assertTrue(throttle.tryAcquire("alice", null));
+        assertFalse(throttle.tryAcquire("alice", null));
+        assertTrue(throttle.tryAcquire("bob", null));
+
+        assertEquals(1, throttle.getRejectedByUsername());
+        assertEquals(0, throttle.getRejectedByAddress());
+    }
+
+    @Test
+    void addressLimitSpansUsernames() {
+        LoginThrottle throttle = new LoginThrottle(0, 0, 2, 0, 1024);
+
+        assertTrue(throttle.isAddressLimited());
+        assertTrue(throttle.tryAcquire("alice", "203.0.113.7"));
+        assertTrue(throttle.tryAcquire("bob", "203.0.113.7"));
+        assertFalse(throttle.tryAcquire("carol", "203.0.113.7"));
+        assertTrue(throttle.tryAcquire("carol", "198.51.100.1"));
+        assertTrue(throttle.tryAcquire("carol", null));
+
+        assertEquals(1, throttle.getRejectedByAddress());
+    }
+
+    @Test
+    void attemptsComeBackAtTheConfiguredRate() {
+        LoginThrottle.TokenBuckets buckets = LoginThrottle.TokenBuckets.create(1, 60, 1024);
+        long now = 1000;
+
+        assertTrue(buckets.tryAcquire("alice", now));
+        assertFalse(buckets.tryAcquire("alice", now + 500));
+        assertTrue(buckets.tryAcquire("alice", now + 1000));
+        assertFalse(buckets.tryAcquire("alice", now + 1000));
+    }
+
+    @Test
+    void exhaustedKeyHardlyAffectsKeysSharingOneOfItsSlots() {
+        LoginThrottle.TokenBuckets buckets = LoginThrottle.TokenBuckets.create(1000, 0, 64);
+        for (int i = 0; i < 2000; i++) {
+            buckets.tryAcquire("attacker", 1);
+        }
+        assertFalse(buckets.tryAcquire("attacker", 1));
+
+        int admitted = 0;
+        for (int i = 0; i < 200; i++) {
+            if (buckets.tryAcquire("user" + i, 1)) {
+                admitted++;
+            }
+        }
+        // about 6 of the 200 share a slot with the attacker, only sharing both slots gets a key rejected
+        assertTrue(admitted >= 195, "admitted " + admitted);
+    }
+
+    @Test
+    void disabledThrottleAdmitsEverything() {
+        LoginThrottle throttle = LoginThrottle.disabled();
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(throttle.tryAcquire("alice", "203.0.113.7"));
+        }
+        assertFalse(throttle.isAddressLimited());
+        assertEquals(0, throttle.getRejected());
+    }
+}
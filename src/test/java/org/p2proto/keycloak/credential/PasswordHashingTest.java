@@ -0,0 +1,79 @@
+package org.p2proto.keycloak.credential;
+
+import org.junit.jupiter.api.Test;
+import org.mindrot.jbcrypt.BCrypt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordHashingTest {
+
+    @Test
+    void testBCryptVerifiesJBCryptHashes() {
+        PasswordHashVerifier verifier = new BCryptPasswordHashVerifier(4);
+        String hash = BCrypt.hashpw("secret123", BCrypt.gensalt(4));
+
+        assertTrue(verifier.supports(hash));
+        assertTrue(verifier.verify("secret123", hash));
+        assertFalse(verifier.verify("wrong", hash));
+        assertTrue(verifier.verify("secret123", hash.replace("$2a$", "$2y$")));
+        assertTrue(verifier.verify("secret123", hash.replace("$2a$", "$2b$")));
+    }
+
+    @Test
+    void testBCryptTruncatesLongPasswordsLikeJBCrypt() {
+        String longPassword = "x".repeat(100);
+        String hash = BCrypt.hashpw(longPassword, BCrypt.gensalt(4));
+
+        assertTrue(new BCryptPasswordHashVerifier(4).verify("x".repeat(80), hash));
+    }
+
+    @Test
+    void testMalformedHashDoesNotMatch() {
+        assertFalse(new BCryptPasswordHashVerifier(4).verify("secret", "$2a$10$tooShort"));
+        assertFalse(new Argon2PasswordHashVerifier(1, 64, 1).verify("secret", "$argon2id$v=19$m=64$broken"));
+        assertFalse(new Pbkdf2PasswordHashVerifier(Pbkdf2PasswordHashVerifier.SHA256, 1000).verify("secret", "$pbkdf2-sha256$x$y"));
+    }
+
+    @Test
+    void testArgon2RoundTrip() {
+        PasswordHashVerifier verifier = new Argon2PasswordHashVerifier(1, 1024, 1);
+        String hash = verifier.hash("secret123");
+
+        assertTrue(hash.startsWith("$argon2id$v=19$m=1024,t=1,p=1$"));
+        assertTrue(verifier.verify("secret123", hash));
+        assertFalse(verifier.verify("wrong", hash));
+        assertFalse(verifier.needsRehash(hash));
+        assertTrue(new Argon2PasswordHashVerifier(2, 1024, 1).needsRehash(hash));
+    }
+
+    @Test
+    void testPbkdf2RoundTrip() {
+        PasswordHashVerifier verifier = new Pbkdf2PasswordHashVerifier(Pbkdf2PasswordHashVerifier.SHA512, 1000);
+        String hash = verifier.hash("secret123");
+
+        assertTrue(hash.startsWith("$pbkdf2-sha512$1000$"));
+        assertTrue(verifier.verify("secret123", hash));
+        assertFalse(verifier.verify("wrong", hash));
+        assertTrue(new Pbkdf2PasswordHashVerifier(Pbkdf2PasswordHashVerifier.SHA512, 2000).needsRehash(hash));
+    }
+
+    @Test
+    void testVerifierSelectedByPrefix() {
+        PasswordHashing hashing = PasswordHashing.create("argon2id", 0, true);
+
+        assertEquals("bcrypt", hashing.verifierFor("$2b$10$abc").getAlgorithm());
+        assertEquals("argon2id", hashing.verifierFor("$argon2id$v=19$m=1,t=1,p=1$a$b").getAlgorithm());
+        assertEquals("pbkdf2-sha256", hashing.verifierFor("$pbkdf2-sha256$1$a$b").getAlgorithm());
+        assertNull(hashing.verifierFor("plaintext"));
+    }
+
+    @Test
+    void testShouldRehash() {
+        String cost4 = BCrypt.hashpw("secret", BCrypt.gensalt(4));
+
+        assertFalse(PasswordHashing.create("bcrypt", 4, false).shouldRehash(cost4));
+        assertFalse(PasswordHashing.create("bcrypt", 4, true).shouldRehash(cost4));
+        assertTrue(PasswordHashing.create("bcrypt", 5, true).shouldRehash(cost4));
+        assertTrue(PasswordHashing.create("argon2id", 0, true).shouldRehash(cost4));
+    }
+}
@@ -0,0 +1,129 @@
+package org.p2proto.keycloak.credential;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordVerificationExecutorTest {
+
+    /**
+     * Matches every password once released, standing in for a slow hash.
+     */
+    private static final class BlockingVerifier implements PasswordHashVerifier {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String getAlgorithm() {
+            return "blocking";
+        }
+
+        @Override
+        public boolean supports(String storedHash) {
+            return true;
+        }
+
+        @Override
+        public boolean verify(String password, String storedHash) {
+            started.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public String hash(String password) {
+            return "rehashed:" + Thread.currentThread().getName();
+        }
+
+        @Override
+        public boolean needsRehash(String storedHash) {
+            return false;
+        }
+    }
+
+    @Test
+    void inlineVerifiesOnTheCallingThread() {
+        PasswordVerificationExecutor executor = PasswordVerificationExecutor.inline();
+        BlockingVerifier verifier = new BlockingVerifier();
+        verifier.release.countDown();
+
+        assertTrue(executor.verify(verifier, "secret", "hash"));
+        assertEquals("rehashed:" + Thread.currentThread().getName(), executor.tryHash(verifier, "secret"));
+
+        assertEquals(1, executor.getCompletedCount());
+        assertEquals(0, executor.getPoolSize());
+        assertEquals(0, executor.getQueueCapacity());
+        executor.close();
+    }
+
+    @Test
+    void saturatedPoolRejectsInsteadOfWaiting() throws Exception {
+        PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 10000);
+        BlockingVerifier verifier = new BlockingVerifier();
+        try {
+            CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(
+                    () -> executor.verify(verifier, "secret", "hash"));
+            assertTrue(verifier.started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(
+                    () -> executor.verify(verifier, "secret", "hash"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (executor.getQueueDepth() < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, executor.getActiveCount());
+            assertEquals(1, executor.getQueueDepth());
+            assertEquals(1, executor.getQueueCapacity());
+
+            assertThrows(RejectedExecutionException.class, () -> executor.verify(verifier, "secret", "hash"));
+            assertNull(executor.tryHash(verifier, "secret"), "Rehash ran on a saturated pool");
+            assertEquals(2, executor.getRejectedCount());
+
+            verifier.release.countDown();
+            assertTrue(running.get(5, TimeUnit.SECONDS));
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+            assertEquals(2, executor.getCompletedCount());
+            assertEquals(0, executor.getTimedOutCount());
+            assertTrue(executor.getAverageQueueWaitMillis() > 0);
+            assertTrue(executor.getMaxVerifyMillis() >= executor.getAverageVerifyMillis());
+        } finally {
+            verifier.release.countDown();
+            executor.close();
+        }
+    }
+
+    @Test
+    void callerGivesUpAfterTheTimeout() throws Exception {
+        PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 50);
+        BlockingVerifier verifier = new BlockingVerifier();
+        try {
+            long start = System.nanoTime();
+            assertThrows(RejectedExecutionException.class, () -> executor.verify(verifier, "secret", "hash"));
+
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, executor.getTimedOutCount());
+            assertEquals(0, executor.getRejectedCount());
+        } finally {
+            verifier.release.countDown();
+            executor.close();
+        }
+    }
+
+    @Test
+    void rehashRunsOnThePool() {
+        PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 10000);
+        try {
+            assertEquals("rehashed:p2-password-verifier-1", executor.tryHash(new BlockingVerifier(), "secret"));
+        } finally {
+            executor.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockingBridgeTest {
+
+    @Test
+    void bothModesRunOnCallingThread() throws SQLException {
+        BlockingBridge direct = BlockingBridge.create(BlockingBridge.Mode.DIRECT, 1, 1000);
+        BlockingBridge queued = BlockingBridge.create(BlockingBridge.Mode.QUEUED, 1, 1000);
+
+        assertSame(Thread.currentThread(), direct.call(Thread::currentThread));
+        assertSame(Thread.currentThread(), queued.call(Thread::currentThread));
+    }
+
+    @Test
+    void queuedModeRunsAtMostOneCallPerPermit() throws Exception {
+        BlockingBridge bridge = BlockingBridge.create(BlockingBridge.Mode.QUEUED, 2, 5000);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int value = i;
+                results.add(callers.submit(() -> bridge.call(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    return value;
+                })));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i, results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+            bridge.close();
+        }
+        assertTrue(maxRunning.get() <= 2, "ran " + maxRunning.get() + " calls at once");
+        assertEquals(0, bridge.getTimeouts());
+    }
+
+    @Test
+    void callFailsWhenNoPermitFreesUpInTime() throws Exception {
+        BlockingBridge bridge = BlockingBridge.create(BlockingBridge.Mode.QUEUED, 1, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                bridge.call(() -> {
+                    holding.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        holder.start();
+        try {
+            assertTrue(holding.await(5, TimeUnit.SECONDS));
+            assertThrows(SQLTransientConnectionException.class, () -> bridge.call(() -> "never"));
+            assertEquals(1, bridge.getTimeouts());
+            release.countDown();
+            holder.join(5000);
+            assertEquals("after", bridge.call(() -> "after"));
+        } finally {
+            release.countDown();
+            bridge.close();
+        }
+    }
+
+    @Test
+    void sqlExceptionsReachTheCaller() {
+        BlockingBridge bridge = BlockingBridge.create(BlockingBridge.Mode.QUEUED, 1, 1000);
+        SQLException failure = new SQLException("relation does not exist");
+
+        SQLException thrown = assertThrows(SQLException.class, () -> bridge.call(() -> {
+            throw failure;
+        }));
+
+        assertSame(failure, thrown);
+        bridge.close();
+    }
+
+    @Test
+    void acquiredPermitIsHeldUntilReleased() throws SQLException {
+        BlockingBridge bridge = BlockingBridge.create(BlockingBridge.Mode.QUEUED, 1, 50);
+        Runnable release = bridge.acquire();
+
+        assertThrows(SQLTransientConnectionException.class, () -> bridge.call(() -> "never"));
+        release.run();
+        release.run();
+        assertEquals("after", bridge.call(() -> "after"));
+        Runnable second = bridge.acquire();
+        assertThrows(SQLTransientConnectionException.class, bridge::acquire, "Released once, not twice");
+        second.run();
+        bridge.close();
+    }
+
+    @Test
+    void earlierModeNamesStillParse() {
+        assertEquals(BlockingBridge.Mode.DIRECT, BlockingBridge.Mode.parse("platform", BlockingBridge.Mode.QUEUED));
+        assertEquals(BlockingBridge.Mode.QUEUED, BlockingBridge.Mode.parse("VIRTUAL", BlockingBridge.Mode.DIRECT));
+        assertEquals(BlockingBridge.Mode.DIRECT, BlockingBridge.Mode.parse("threads", BlockingBridge.Mode.DIRECT));
+    }
+}
@@ -0,0 +1,197 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class CircuitBreakerTest {
+
+    /**
+     * Local stand-in for a degraded PostgreSQL. Every statement takes {@code latencyMillis}; like PgJDBC, a
+     * statement whose query timeout passes is cancelled with SQLState 57014. One second of query timeout lasts
+     * 10 ms here to keep the tests short.
+     */
+    private static final class DegradedDatabase {
+        private static final long MILLIS_PER_TIMEOUT_SECOND = 10;
+
+        private final DataSource dataSource = mock(DataSource.class);
+        private final AtomicInteger statements = new AtomicInteger();
+        private final AtomicInteger queryTimeout = new AtomicInteger();
+        private volatile long latencyMillis;
+
+        private DegradedDatabase() throws SQLException {
+            Connection connection = mock(Connection.class);
+            PreparedStatement stmt = mock(PreparedStatement.class);
+            when(dataSource.getConnection()).thenReturn(connection);
+            when(connection.prepareStatement(anyString())).thenReturn(stmt);
+            doAnswer(invocation -> {
+                queryTimeout.set(invocation.getArgument(0));
+                return null;
+            }).when(stmt).setQueryTimeout(anyInt());
+            when(stmt.executeQuery()).thenAnswer(invocation -> {
+                statements.incrementAndGet();
+                long timeoutMillis = queryTimeout.get() * MILLIS_PER_TIMEOUT_SECOND;
+                if (timeoutMillis > 0 && latencyMillis > timeoutMillis) {
+                    Thread.sleep(timeoutMillis);
+                    throw new SQLException("ERROR: canceling statement due to user request", "57014");
+                }
+                Thread.sleep(latencyMillis);
+                return mock(ResultSet.class);
+            });
+        }
+
+        /**
+         * A single-row lookup the way the provider runs it, with a one second query timeout.
+         */
+        private String lookup(CircuitBreaker breaker) throws SQLException {
+            return breaker.call(() -> {
+                try (Connection connection = dataSource.getConnection();
+                     PreparedStatement stmt = connection.prepareStatement("SELECT 1")) {
+                    stmt.setQueryTimeout(1);
+                    stmt.executeQuery();
+                    return "found";
+                }
+            });
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private CircuitBreaker breaker(int failureThreshold, int maxConcurrency) {
+        return new CircuitBreaker("c1", failureThreshold, 10, maxConcurrency, clock::get);
+    }
+
+    @Test
+    void slowDatabaseOpensTheCircuitAndCallsFailFast() throws SQLException {
+        DegradedDatabase database = new DegradedDatabase();
+        database.latencyMillis = 50;
+        CircuitBreaker breaker = breaker(3, 8);
+
+        for (int i = 0; i < 3; i++) {
+            SQLException e = assertThrows(SQLException.class, () -> database.lookup(breaker));
+            assertEquals("57014", e.getSQLState());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        assertEquals(1.0, breaker.getConcurrencyLimit(), "Each failure halves the limit");
+
+        long start = System.nanoTime();
+        assertThrows(CircuitBreaker.RejectedException.class, () -> database.lookup(breaker));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(database.latencyMillis));
+        assertEquals(3, database.statements.get(), "An open circuit does not reach the database");
+        assertEquals(1, breaker.getOpened());
+        assertEquals(1, breaker.getRejected());
+        assertEquals(0, breaker.getInFlight());
+    }
+
+    @Test
+    void probeClosesTheCircuitOnceTheDatabaseRecovers() throws SQLException {
+        DegradedDatabase database = new DegradedDatabase();
+        database.latencyMillis = 50;
+        CircuitBreaker breaker = breaker(1, 8);
+        assertThrows(SQLException.class, () -> database.lookup(breaker));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThrows(SQLException.class, () -> database.lookup(breaker), "The probe still times out");
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState());
+        assertThrows(CircuitBreaker.RejectedException.class, () -> database.lookup(breaker));
+
+        database.latencyMillis = 0;
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals("found", database.lookup(breaker));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+        assertEquals("found", database.lookup(breaker));
+        assertEquals(2, breaker.getOpened());
+        assertEquals(2, breaker.getHalfOpened());
+        assertEquals(1, breaker.getClosed());
+        assertEquals(4, database.statements.get());
+    }
+
+    @Test
+    void onlyOneProbeAtATime() throws SQLException {
+        CircuitBreaker breaker = breaker(1, 8);
+        assertThrows(SQLException.class, () -> breaker.call(() -> {
+            throw new SQLTransientConnectionException("Connection is not available, request timed out after 5000ms");
+        }));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+
+        String result = breaker.call(() -> {
+            assertEquals("HALF_OPEN", breaker.getState());
+            assertThrows(CircuitBreaker.RejectedException.class, () -> breaker.call(() -> "second"));
+            return "probe";
+        });
+
+        assertEquals("probe", result);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+
+    @Test
+    void errorsOfAHealthyDatabaseDoNotCount() throws SQLException {
+        CircuitBreaker breaker = breaker(2, 8);
+        for (int i = 0; i < 5; i++) {
+            assertThrows(SQLException.class, () -> breaker.call(() -> {
+                throw new SQLException("column \"similarity\" does not exist", "42703");
+            }));
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertEquals(8.0, breaker.getConcurrencyLimit());
+        assertTrue(CircuitBreaker.isDatabaseFailure(new SQLException("terminating connection", "57P01")));
+        assertTrue(CircuitBreaker.isDatabaseFailure(new SQLException("connection refused", "08001")));
+        assertFalse(CircuitBreaker.isDatabaseFailure(new SQLException("duplicate key", "23505")));
+    }
+
+    @Test
+    void reducedLimitRejectsCallsBeyondItUntilItRecovers() throws SQLException {
+        CircuitBreaker breaker = breaker(5, 4);
+        // a healthy database is not limited, the pool queues what is over the limit
+        assertEquals(6, nested(breaker, 6));
+
+        assertThrows(SQLException.class, () -> breaker.call(() -> {
+            throw new SQLException("ERROR: canceling statement due to user request", "57014");
+        }));
+        assertEquals(2.0, breaker.getConcurrencyLimit());
+        assertThrows(CircuitBreaker.RejectedException.class, () -> nested(breaker, 3));
+        assertEquals(1, breaker.getLimited());
+        assertEquals(0, breaker.getInFlight());
+
+        for (int i = 0; i < 20; i++) {
+            breaker.call(() -> null);
+        }
+        assertEquals(4.0, breaker.getConcurrencyLimit());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState());
+    }
+
+    @Test
+    void disabledBreakerPassesEverythingThrough() throws SQLException {
+        CircuitBreaker breaker = CircuitBreaker.disabled();
+        for (int i = 0; i < 10; i++) {
+            assertThrows(SQLTransientConnectionException.class, () -> breaker.call(() -> {
+                throw new SQLTransientConnectionException("timeout");
+            }));
+        }
+
+        assertEquals("value", breaker.call(() -> "value"));
+        assertEquals(0, breaker.getOpened());
+    }
+
+    /**
+     * Holds {@code depth} calls in flight at once, each one making the next from inside.
+     */
+    private static int nested(CircuitBreaker breaker, int depth) throws SQLException {
+        return breaker.call(() -> depth == 1 ? 1 : 1 + nested(breaker, depth - 1));
+    }
+}
@@ -0,0 +1,103 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ReplicaRouterTest {
+
+    @Test
+    void readsRotateOverReplicasAndWritesGoToPrimary() throws SQLException {
+        DataSource primary = mock(DataSource.class);
+        DataSource first = mock(DataSource.class);
+        DataSource second = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        Connection firstConnection = mock(Connection.class);
+        Connection secondConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        when(first.getConnection()).thenReturn(firstConnection);
+        when(second.getConnection()).thenReturn(secondConnection);
+
+        ReplicaRouter router = new ReplicaRouter(primary, List.of(first, second), 5);
+
+        assertSame(firstConnection, router.getReadConnection());
+        assertSame(secondConnection, router.getReadConnection());
+        assertSame(firstConnection, router.getReadConnection());
+        assertSame(primaryConnection, router.getWriteConnection());
+        assertEquals(0, router.getPrimaryFallbacks());
+    }
+
+    @Test
+    void unreachableReplicaIsSkippedUntilHealthCheckRestoresIt() throws SQLException {
+        DataSource primary = mock(DataSource.class);
+        DataSource first = mock(DataSource.class);
+        DataSource second = mock(DataSource.class);
+        Connection secondConnection = mock(Connection.class);
+        when(first.getConnection()).thenThrow(new SQLException("connection refused"));
+        when(second.getConnection()).thenReturn(secondConnection);
+
+        ReplicaRouter router = new ReplicaRouter(primary, List.of(first, second), 5);
+
+        assertSame(secondConnection, router.getReadConnection());
+        assertSame(secondConnection, router.getReadConnection());
+        assertEquals(1, router.getHealthyReplicaCount());
+        verify(first, times(1)).getConnection();
+
+        Connection firstConnection = lagging(0);
+        Connection secondCheck = lagging(0);
+        reset(first);
+        when(first.getConnection()).thenReturn(firstConnection);
+        when(second.getConnection()).thenReturn(secondCheck);
+        router.checkHealth();
+
+        assertEquals(2, router.getHealthyReplicaCount());
+    }
+
+    @Test
+    void laggingReplicasFallBackToPrimary() throws SQLException {
+        DataSource primary = mock(DataSource.class);
+        DataSource replica = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        when(replica.getConnection()).thenAnswer(invocation -> lagging(30));
+
+        ReplicaRouter router = new ReplicaRouter(primary, List.of(replica), 5);
+        router.checkHealth();
+
+        assertEquals(0, router.getHealthyReplicaCount());
+        assertSame(primaryConnection, router.getReadConnection());
+        assertEquals(1, router.getPrimaryFallbacks());
+    }
+
+    @Test
+    void primaryOnlyRouterReadsFromPrimary() throws SQLException {
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+
+        ReplicaRouter router = ReplicaRouter.primaryOnly(primary);
+
+        assertSame(primaryConnection, router.getReadConnection());
+        assertEquals(0, router.getReplicaCount());
+        assertEquals(0, router.getPrimaryFallbacks());
+    }
+
+    private static Connection lagging(double seconds) throws SQLException {
+        Connection connection = mock(Connection.class);
+        Statement stmt = mock(Statement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(connection.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(ReplicaRouter.LAG_SQL)).thenReturn(rs);
+        when(rs.next()).thenReturn(true);
+        when(rs.getDouble(1)).thenReturn(seconds);
+        return connection;
+    }
+}
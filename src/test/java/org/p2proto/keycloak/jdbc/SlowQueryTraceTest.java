@@ -0,0 +1,105 @@
+package org.p2proto.keycloak.jdbc;
+
+import org.junit.jupiter.api.Test;
+import org.p2proto.keycloak.metrics.Operation;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class SlowQueryTraceTest {
+
+    private static long millisAgo(long millis) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    void keepsSlowStatementsNewestFirstWithoutValues() {
+        SlowQueryTrace trace = new SlowQueryTrace("c1", 50, null, null);
+
+        trace.record(Operation.GET_USER_BY_USERNAME, "SELECT 1", List.of("alice"), System.nanoTime());
+        trace.record(Operation.SEARCH_FOR_USER, "SELECT 2", List.of("%ali%", 20), millisAgo(100));
+        trace.record(Operation.GET_USERS_COUNT, "SELECT 3", List.of(true), millisAgo(100));
+
+        List<SlowQueryTrace.SlowQuery> queries = trace.getSlowQueries();
+        assertEquals(List.of("SELECT 3", "SELECT 2"), queries.stream().map(SlowQueryTrace.SlowQuery::getSql).toList());
+        SlowQueryTrace.SlowQuery search = queries.get(1);
+        assertEquals("c1", search.getComponentId());
+        assertEquals("searchForUserStream", search.getOperation());
+        assertEquals(List.of("String", "Integer"), search.getParameterTypes());
+        assertTrue(search.getMillis() >= 100);
+        assertNull(search.getPlan());
+        assertEquals(2, trace.getCaptured());
+    }
+
+    @Test
+    void bufferKeepsTheLatestEntries() {
+        SlowQueryTrace trace = new SlowQueryTrace("c1", 1, null, null);
+        for (int i = 0; i < SlowQueryTrace.CAPACITY + 10; i++) {
+            trace.record(Operation.SEARCH_FOR_USER, "SELECT " + i, List.of(), millisAgo(5));
+        }
+
+        List<SlowQueryTrace.SlowQuery> queries = trace.getSlowQueries();
+        assertEquals(SlowQueryTrace.CAPACITY, queries.size());
+        assertEquals("SELECT " + (SlowQueryTrace.CAPACITY + 9), queries.get(0).getSql());
+        assertEquals("SELECT 10", queries.get(SlowQueryTrace.CAPACITY - 1).getSql());
+
+        trace.clear();
+        assertTrue(trace.getSlowQueries().isEmpty());
+        assertEquals(SlowQueryTrace.CAPACITY + 10, trace.getCaptured());
+    }
+
+    @Test
+    void explainsEachStatementTextOncePerInterval() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getString(1)).thenReturn("Seq Scan on users", "Execution Time: 812.000 ms");
+        SlowQueryTrace trace = new SlowQueryTrace("c1", 10, ReplicaRouter.primaryOnly(dataSource), Runnable::run);
+
+        String sql = "SELECT uuid FROM users WHERE LOWER(email) LIKE ?";
+        trace.record(Operation.SEARCH_FOR_USER, sql, List.of("%@example.com"), millisAgo(20));
+        trace.record(Operation.SEARCH_FOR_USER, sql, List.of("%@example.org"), millisAgo(20));
+
+        verify(connection, times(1)).prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+        verify(stmt).setObject(1, "%@example.com");
+        verify(connection).close();
+        List<SlowQueryTrace.SlowQuery> queries = trace.getSlowQueries();
+        assertNull(queries.get(0).getPlan());
+        assertEquals("Seq Scan on users\nExecution Time: 812.000 ms\n", queries.get(1).getPlan());
+    }
+
+    @Test
+    void entriesAreReadableOverJmx() throws Exception {
+        SlowQueryTrace trace = new SlowQueryTrace("c1", 1, null, null);
+        trace.record(Operation.GET_USER_BY_EMAIL, "SELECT 1", List.of("a@example.com"), millisAgo(5));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.p2proto.keycloak:type=UserStorageTest,name=slowQueries");
+        server.registerMBean(trace, name);
+        try {
+            CompositeData[] queries = (CompositeData[]) server.getAttribute(name, "SlowQueries");
+            assertEquals(1, queries.length);
+            assertEquals("getUserByEmail", queries[0].get("operation"));
+            assertArrayEquals(new String[]{"String"}, (String[]) queries[0].get("parameterTypes"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.p2proto.keycloak.metrics;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.p2proto.keycloak.cache.CacheStatistics;
+import org.p2proto.keycloak.credential.LoginThrottle;
+import org.p2proto.keycloak.jdbc.CircuitBreaker;
+import org.p2proto.keycloak.jdbc.ReplicaRouter;
+import org.p2proto.keycloak.jdbc.SlowQueryTrace;
+import org.p2proto.keycloak.search.SearchTemplateCache;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProviderMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    void onlyCallsOverTheThresholdCountAsSlow() {
+        ProviderMetrics metrics = new ProviderMetrics();
+        metrics.logSlowCalls("c1", 10);
+        OperationMetrics lookups = metrics.get(Operation.GET_USER_BY_ID);
+        Object unprintable = new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("Fast calls must not format their details");
+            }
+        };
+
+        lookups.record(System.nanoTime(), unprintable);
+        lookups.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20), "id-1");
+        lookups.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20), "id-2");
+        assertEquals(2, lookups.getSlowCalls());
+        assertEquals(3, lookups.getCalls());
+
+        metrics.logSlowCalls("c1", 0);
+        lookups.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20), "id-3");
+        assertEquals(2, lookups.getSlowCalls());
+    }
+
+    @Test
+    void slowCallsAreLoggedWithoutArgumentValues() {
+        assertEquals("none", SlowCallLog.describe(null));
+        assertEquals("String(17)", SlowCallLog.describe("alice@example.com"));
+        assertEquals("3", SlowCallLog.describe(3));
+        assertEquals("Collection(2)", SlowCallLog.describe(Set.of("id-1", "id-2")));
+        assertEquals("Map[first, keycloak.session.realm.users.query.search]", SlowCallLog.describe(Map.of(
+                "keycloak.session.realm.users.query.search", "alice", "first", "0")));
+    }
+
+    @Test
+    void operationCountersAreVisibleInMicrometerAndJmx() throws Exception {
+        ProviderMetrics metrics = new ProviderMetrics();
+        metrics.register("c1", new CacheStatistics(), new SearchTemplateCache(), ReplicaRouter.primaryOnly(null),
+                LoginThrottle.disabled(), SlowQueryTrace.disabled(), CircuitBreaker.disabled());
+        try {
+            OperationMetrics lookups = metrics.get(Operation.GET_USER_BY_USERNAME);
+            long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5);
+            lookups.recordQuery(start);
+            lookups.recordRows(1);
+            lookups.record(start);
+            lookups.recordError();
+
+            FunctionTimer calls = registry.get("p2.user.storage.calls")
+                    .tags("component", "c1", "operation", "getUserByUsername").functionTimer();
+            assertEquals(1.0, calls.count());
+            assertTrue(calls.totalTime(TimeUnit.MILLISECONDS) >= 5.0);
+            assertEquals(1.0, registry.get("p2.user.storage.rows")
+                    .tags("operation", "getUserByUsername").functionCounter().count());
+            assertEquals(1.0, registry.get("p2.user.storage.errors")
+                    .tags("operation", "getUserByUsername").functionCounter().count());
+
+            ObjectName name = new ObjectName(
+                    "org.p2proto.keycloak:type=UserStorage,component=\"c1\",operation=getUserByUsername");
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Calls"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Queries"));
+        } finally {
+            metrics.close();
+        }
+
+        assertNull(registry.find("p2.user.storage.calls").tags("component", "c1").meter());
+        assertTrue(ManagementFactory.getPlatformMBeanServer()
+                .queryNames(new ObjectName("org.p2proto.keycloak:type=UserStorage,component=\"c1\",*"), null).isEmpty());
+    }
+}
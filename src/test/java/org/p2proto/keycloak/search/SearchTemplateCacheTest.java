@@ -0,0 +1,77 @@
+package org.p2proto.keycloak.search;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchTemplateCacheTest {
+
+    @Test
+    void searchesDifferingOnlyInValuesShareTheTemplate() {
+        SearchTemplateCache templates = new SearchTemplateCache();
+
+        UserSearchQuery first = UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna kowalski"));
+        UserSearchQuery second = UserSearchQuery.compile(Map.of(UserModel.SEARCH, "jan nowak"));
+        String sql = templates.sql(first, false, true, false);
+
+        assertSame(sql, templates.sql(second, false, true, false));
+        assertEquals(first.toSql(false, true, false), sql);
+        assertEquals(List.of("%jan%", "%jan%", "%jan%", "%jan%", "%nowak%", "%nowak%", "%nowak%", "%nowak%"),
+                second.getParameters());
+        assertEquals(1, templates.getHits());
+        assertEquals(1, templates.getMisses());
+        assertEquals(Map.of(sql, 1L), templates.getHitsByTemplate());
+    }
+
+    @Test
+    void shapeTracksTermCountPagingAndBackend() {
+        SearchTemplateCache templates = new SearchTemplateCache();
+
+        templates.sql(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna")), false, true, false);
+        templates.sql(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna kowalski")), false, true, false);
+        templates.sql(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna")), false, true, true);
+        templates.sql(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna")), true, true, false);
+        templates.sql(UserSearchQuery.compile(Map.of(UserModel.SEARCH, "anna"), SearchBackend.TRIGRAM), false, true, false);
+
+        assertEquals(5, templates.getTemplateCount());
+        assertEquals(0, templates.getHits());
+    }
+
+    @Test
+    void filtersRenderInParameterOrder() {
+        UserSearchQuery query = UserSearchQuery.compile(Map.of(
+                UserModel.EXACT, "true", UserModel.LAST_NAME, "Nowak", UserModel.ENABLED, "true"));
+
+        assertEquals(" WHERE 1=1 AND LOWER(last_name) = ? AND enabled = ?", query.getWhere());
+        assertEquals(List.of("nowak", true), query.getParameters());
+    }
+
+    @Test
+    void filterKeysKeepValuesApart() {
+        UserSearchQuery split = UserSearchQuery.compile(Map.of(
+                UserModel.EXACT, "true", UserModel.FIRST_NAME, "a, b", UserModel.LAST_NAME, "c"));
+        UserSearchQuery joined = UserSearchQuery.compile(Map.of(
+                UserModel.EXACT, "true", UserModel.FIRST_NAME, "a", UserModel.LAST_NAME, "b, c"));
+
+        assertEquals(split.getWhere(), joined.getWhere());
+        assertNotEquals(split.getFilterKey(), joined.getFilterKey());
+        assertEquals(split.getFilterKey(), UserSearchQuery.compile(Map.of(
+                UserModel.EXACT, "true", UserModel.FIRST_NAME, "a, b", UserModel.LAST_NAME, "c")).getFilterKey());
+    }
+
+    @Test
+    void likeMatchesLikePostgres() {
+        assertTrue(UserSearchQuery.Matcher.like("Kowalska", "%wal%"));
+        assertTrue(UserSearchQuery.Matcher.like("anna", "a_n%"));
+        assertTrue(UserSearchQuery.Matcher.like("aaab", "%a%ab"));
+        assertTrue(UserSearchQuery.Matcher.like("", "%"));
+        assertTrue(UserSearchQuery.Matcher.like("50%", "50\\%"));
+        assertFalse(UserSearchQuery.Matcher.like("500", "50\\%"));
+        assertFalse(UserSearchQuery.Matcher.like("anna", "ann"));
+        assertFalse(UserSearchQuery.Matcher.like(null, "%"));
+    }
+}
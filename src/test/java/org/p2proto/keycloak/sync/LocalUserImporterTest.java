@@ -0,0 +1,68 @@
+package org.p2proto.keycloak.sync;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class LocalUserImporterTest {
+
+    private final UserProvider local = mock(UserProvider.class);
+    private final UserCache cache = mock(UserCache.class);
+    private final RealmModel realm = mock(RealmModel.class);
+    private final LocalUserImporter importer = new LocalUserImporter(null, "realm", "component");
+
+    @Test
+    void newUserIsAddedWithPlatformIdAndLinked() {
+        UserModel added = mock(UserModel.class);
+        when(local.addUser(realm, "uuid-1", "alice", true, false)).thenReturn(added);
+        when(added.getUsername()).thenReturn("alice");
+        SynchronizationResult result = new SynchronizationResult();
+
+        importer.importUser(local, cache, realm, user("uuid-1", "alice"), result);
+
+        assertEquals(1, result.getAdded());
+        verify(added).setFederationLink("component");
+        verify(added).setEmail("alice@example.com");
+        verify(added).setEnabled(true);
+        verify(added, never()).setUsername(any());
+        verifyNoInteractions(cache);
+    }
+
+    @Test
+    void linkedUserIsUpdatedAndEvicted() {
+        UserModel existing = mock(UserModel.class);
+        when(local.getUserById(realm, "uuid-1")).thenReturn(existing);
+        when(existing.getFederationLink()).thenReturn("component");
+        when(existing.getUsername()).thenReturn("old-name");
+        SynchronizationResult result = new SynchronizationResult();
+
+        importer.importUser(local, cache, realm, user("uuid-1", "alice"), result);
+
+        assertEquals(1, result.getUpdated());
+        verify(existing).setUsername("alice");
+        verify(cache).evict(realm, existing);
+    }
+
+    @Test
+    void usersOwnedByOthersAreNotTouched() {
+        UserModel localUser = mock(UserModel.class);
+        when(local.getUserByUsername(realm, "alice")).thenReturn(localUser);
+        SynchronizationResult result = new SynchronizationResult();
+
+        importer.importUser(local, cache, realm, user("uuid-1", "alice"), result);
+
+        assertEquals(1, result.getFailed());
+        verify(local, never()).addUser(any(), anyString(), anyString(), anyBoolean(), anyBoolean());
+        verifyNoInteractions(cache);
+    }
+
+    private static SyncedUser user(String uuid, String username) {
+        return new SyncedUser(uuid, username, username + "@example.com", "Alice", "Smith", true, false);
+    }
+}
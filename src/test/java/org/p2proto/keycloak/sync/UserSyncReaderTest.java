@@ -0,0 +1,94 @@
+package org.p2proto.keycloak.sync;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UserSyncReaderTest {
+
+    @Test
+    void readAllStreamsRowsInBatchesThroughACursor() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PreparedStatement estimate = mock(PreparedStatement.class);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        ResultSet estimateRows = mock(ResultSet.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(anyString())).thenReturn(estimate);
+        when(connection.prepareStatement(UserSyncReader.FULL_SQL)).thenReturn(stmt);
+        when(estimate.executeQuery()).thenReturn(estimateRows);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, true, true, true, false);
+        when(rs.getString("uuid")).thenReturn("1", "2", "3", "4", "5");
+        when(rs.getString("username")).thenReturn("u1", "u2", "u3", "u4", "u5");
+        when(rs.getBoolean("enabled")).thenReturn(true);
+
+        List<List<String>> batches = new ArrayList<>();
+        long count = new UserSyncReader(dataSource, 2, "test").readAll(batch ->
+                batches.add(batch.stream().map(SyncedUser::getUsername).toList()));
+
+        assertEquals(5, count);
+        assertEquals(List.of(List.of("u1", "u2"), List.of("u3", "u4"), List.of("u5")), batches);
+        verify(stmt).setFetchSize(2);
+        verify(connection).setAutoCommit(false);
+        verify(connection).commit();
+        verify(connection).setAutoCommit(true);
+        verify(connection).close();
+    }
+
+    @Test
+    void readChangedSinceQueriesUpdatedAtWithOverlap() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(UserSyncReader.CHANGED_SQL)).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+
+        long lastSync = 1_700_000_000_000L;
+        long count = new UserSyncReader(dataSource, 100, "test").readChangedSince(lastSync, batch -> fail());
+
+        assertEquals(0, count);
+        verify(stmt).setTimestamp(1, new Timestamp(lastSync - UserSyncReader.CHANGE_OVERLAP_MILLIS));
+        verify(connection, never()).prepareStatement(contains("reltuples"));
+    }
+
+    @Test
+    void readByIdsBindsTheUuidsAsAnArray() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        ResultSet rs = mock(ResultSet.class);
+        Array uuids = mock(Array.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(UserSyncReader.BY_IDS_SQL)).thenReturn(stmt);
+        when(connection.createArrayOf("text", new String[]{"1", "2"})).thenReturn(uuids);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, false);
+        when(rs.getString("uuid")).thenReturn("1");
+        when(rs.getString("username")).thenReturn("u1");
+
+        List<String> read = new ArrayList<>();
+        long count = new UserSyncReader(dataSource, 100, "test").readByIds(List.of("1", "2"), batch ->
+                batch.forEach(user -> read.add(user.getUsername())));
+
+        assertEquals(1, count);
+        assertEquals(List.of("u1"), read);
+        verify(stmt).setArray(1, uuids);
+        verify(connection, never()).prepareStatement(contains("reltuples"));
+    }
+}